@@ -1,5 +1,8 @@
 package um.simulator.actor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -11,7 +14,12 @@ import java.util.logging.Logger;
 import um.simulator.comm.CommStack;
 import um.simulator.comm.physical.WAVEProtocol;
 import um.simulator.comm.application.ApplicationLayer;
+import um.simulator.comm.physical.PPDU;
+import um.simulator.core.Inbox;
+import um.simulator.core.LocalCoordinator;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
+import um.simulator.core.SimThreads;
 import um.simulator.map.GlobalMap;
 import um.simulator.map.MapLine;
 
@@ -58,6 +66,19 @@ public class Actor extends Thread {
     String appName;
     char opMode;
     String[] csParams;
+    /** true when the actor is being moved to another LocalCoordinator: it 
+     * stops at its next cycle, and its state is sent instead of removing it */
+    volatile boolean migrating = false;
+    /** messages already processed by the physical layer since the migration 
+     * was prepared, so that the new LocalCoordinator discards its copies; 
+     * null if no migration is being prepared */
+    volatile HashSet<String> processedMessages = null;
+    /** state received from the previous LocalCoordinator, restored when the 
+     * actor starts; null for a new actor */
+    DataInputStream migratedState = null;
+    /** frames received before moving, not read yet, passed to the physical 
+     * layer when the actor starts */
+    ArrayList<PPDU> migratedFrames = null;
     
 
     /**
@@ -93,63 +114,238 @@ public class Actor extends Thread {
      */
     @Override
     public void run() {
-        cs = new CommStack(this, this.csParams);
-        /** time variables to control the <Actor>s lifetime */
-        long time_ini; 
-        /** lifecicle duration in ns */
-        long deltaTime; 
-        /** lifecicle duration in ms */
-        long deltaTime_ms;
-        setInitialParameters();
+        initActor();
         /** start the comunication Thread CommStack */
-        cs.start();
+        SimThreads.start(cs);
         
         /** while the actor is alive, keep updating it every time_pace milliseconds */
         try {
-            while (alive && !SimStatus.globalActors.get(id).actorDyingQ()) {
-                /** decreases lifetime as the cycles pass */
-                lifetime = lifetime - time_pace; 
-                if (lifetime > 0) {
-                    /** saves current time in nanoseconds */
-                    time_ini = System.nanoTime();
-                    label = moveActor();
-                    SimStatus.setActorStatus(id, x, y, vx, vy, label);
-                    /** saves lifecycle duration */
-                    deltaTime = System.nanoTime() - time_ini;
-                    deltaTime_ms = TimeUnit.NANOSECONDS.toMillis(deltaTime);
-                    /** if lifecycle duration is less than the time pace, sleeps for the time remaining */
-                    if (deltaTime_ms <= time_pace) {
-                        Thread.sleep(time_pace - deltaTime_ms);
-                    }
-                    /** if lifecycle is more than 20% bigger than time pace, launches warning */
-                    if(deltaTime_ms > 0.2*time_pace) { 
-                        System.err.println("WARNING - actor "+id+" lifecicle time >20% of time_pace");
-                    }
-                } else {
-                    
-                    /** Starts de dying process */
-                    System.out.println("Actor " + id + " lifetime is over...");
-                    dying = true;
-                    /** sets actor status to 'dying' */
-                    SimStatus.setActorStatus(id, x, y, vx, vy, label, dying);
-                    /** sleep for some time, waiting for the news to spread */
-                    Thread.sleep(500);
-                }
+            long delay;
+            while ((delay = step()) >= 0) {
+                Thread.sleep(delay);
             }
             /** completes the dying process */
             alive = false;
-            cs.join();
-            SimStatus.removeActor(id);
+            SimThreads.join(cs);
+            end();
         } catch (InterruptedException ex) {
             Logger.getLogger(Actor.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
+    /** 
+     * Prepares the actor to start moving: creates its Communication Stack 
+     * and sets the actor type specific parameters.
+     */
+    public void initActor() {
+        cs = new CommStack(this, this.csParams);
+        setInitialParameters();
+        if (migratedState != null) {
+            /** a migrated actor resumes where it stopped */
+            try {
+                readState(migratedState);
+                cs.readState(migratedState);
+            } catch (IOException ex) {
+                System.out.println("Error in Actor.initActor(): invalid state of actor " + id + ":\n" + ex);
+            }
+            migratedState = null;
+            SimStatus.setActorStatus(id, x, y, vx, vy, label);
+            /** its physical protocol reads the broadcasts from now on */
+            SimStatus.actorArrived(id, migratedFrames);
+            migratedFrames = null;
+        }
+    }
+    
+    /**
+     * Ends the actor, once it and its Communication Stack have stopped: 
+     * removes it from the simulation or, if it is migrating, hands it to 
+     * the <code>LocalCoordinator</code>, which sends its state.
+     */
+    public void end() {
+        LocalCoordinator.actorEnded(this);
+    }
+    
+    /**
+     * Executes one update cycle of the actor.
+     * Used by <code>run()</code> and by the <code>SimKernel</code>.
+     * 
+     * @return the time, in milliseconds, until the next cycle, or -1 if the 
+     * actor has reached the end of its life
+     */
+    public long step() {
+        /** time variables to control the <Actor>s lifetime */
+        long time_ini; 
+        /** lifecicle duration in ns */
+        long deltaTime; 
+        /** lifecicle duration in ms */
+        long deltaTime_ms;
+        ActorStatus status = SimStatus.getActorStatus(id);
+        if (!alive || migrating || status == null || status.actorDyingQ()) {
+            return -1;
+        }
+        /** decreases lifetime as the cycles pass */
+        lifetime = lifetime - time_pace; 
+        if (lifetime > 0) {
+            /** saves current time in nanoseconds */
+            time_ini = System.nanoTime();
+            label = moveActor();
+            SimStatus.setActorStatus(id, x, y, vx, vy, label);
+            /** saves lifecycle duration */
+            deltaTime = System.nanoTime() - time_ini;
+            deltaTime_ms = TimeUnit.NANOSECONDS.toMillis(deltaTime);
+            /** if lifecycle is more than 20% bigger than time pace, launches warning */
+            if(deltaTime_ms > 0.2*time_pace) { 
+                System.err.println("WARNING - actor "+id+" lifecicle time >20% of time_pace");
+            }
+            /** if lifecycle duration is less than the time pace, waits for the time remaining */
+            return SimClock.remainingTime(time_pace, deltaTime_ms);
+        } else {
+            /** Starts de dying process */
+            System.out.println("Actor " + id + " lifetime is over...");
+            dying = true;
+            /** sets actor status to 'dying' */
+            SimStatus.setActorStatus(id, x, y, vx, vy, label, dying);
+            /** waits for some time, for the news to spread */
+            return 500;
+        }
+    }
+    
     /** Initializes some Actor type specific parameters. */
     public void setInitialParameters() {
         /** DO NOTHING */
     }
     
+    /**
+     * Writes the state of the actor that changes while it moves, so that it 
+     * can be resumed by another <code>LocalCoordinator</code>. The actor 
+     * types with more state override it, writing their own after this one.
+     * 
+     * @param out the stream where the state is written
+     * @throws IOException if an error occurs
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeDouble(x);
+        out.writeDouble(y);
+        out.writeDouble(vx);
+        out.writeDouble(vy);
+        out.writeDouble(speed);
+        out.writeUTF(label);
+        out.writeLong(lifetime);
+        out.writeInt(time_pace);
+        out.writeDouble(xfs);
+        out.writeDouble(yfs);
+        out.writeInt(actual_point_id);
+        out.writeInt(previous_point_id);
+        out.writeInt(current_lane);
+        synchronized (positionHistory) {
+            out.writeInt(positionHistory.size());
+            for (ActorPositionTimestamp apt : positionHistory) {
+                out.writeLong(apt.getTime_stamp());
+                out.writeDouble(apt.getActor_x());
+                out.writeDouble(apt.getActor_y());
+            }
+        }
+    }
+    
+    /**
+     * Reads the state written by <code>writeState</code>.
+     * 
+     * @param in the stream from where the state is read
+     * @throws IOException if an error occurs
+     */
+    public void readState(DataInputStream in) throws IOException {
+        x = in.readDouble();
+        y = in.readDouble();
+        vx = in.readDouble();
+        vy = in.readDouble();
+        speed = in.readDouble();
+        label = in.readUTF();
+        lifetime = in.readLong();
+        time_pace = in.readInt();
+        xfs = in.readDouble();
+        yfs = in.readDouble();
+        actual_point_id = in.readInt();
+        previous_point_id = in.readInt();
+        current_lane = in.readInt();
+        synchronized (positionHistory) {
+            positionHistory.clear();
+            for (int n = in.readInt(); n > 0; n--) {
+                positionHistory.add(new ActorPositionTimestamp(in.readLong(), in.readDouble(), in.readDouble()));
+            }
+        }
+    }
+    
+    /**
+     * Prepares the migration of the actor: from now on, the messages 
+     * processed by its physical layer are recorded. The messages already 
+     * read, but not yet sent to the other LocalCoordinators, are recorded too.
+     */
+    public void prepareMigration() {
+        HashSet<String> processed = new HashSet<>();
+        Inbox toNodes = SimStatus.inboxes.get("Broadcast");
+        if (toNodes != null) {
+            for (PPDU m : toNodes.peekAll()) {
+                if (m.isRead() && id.equals(m.getDestination_id())) {
+                    processed.add(m.toStringToPacket());
+                }
+            }
+        }
+        processedMessages = processed;
+    }
+    
+    /**
+     * Records a message processed by the physical layer, if the migration 
+     * of the actor is being prepared.
+     * 
+     * @param m the message
+     */
+    public void messageProcessed(PPDU m) {
+        HashSet<String> processed = processedMessages;
+        if (processed != null) {
+            synchronized (processed) {
+                processed.add(m.toStringToPacket());
+            }
+        }
+    }
+    
+    /**
+     * @return the messages processed since the migration was prepared, or null
+     */
+    public HashSet<String> getProcessedMessages() {
+        return processedMessages;
+    }
+    
+    /** Stops the actor at its next cycle, to move it to another LocalCoordinator. */
+    public void migrate() {
+        migrating = true;
+    }
+    
+    /**
+     * @return true if the actor is stopping to move to another LocalCoordinator
+     */
+    public boolean isMigrating() {
+        return migrating;
+    }
+    
+    /**
+     * Sets the state received from the previous LocalCoordinator, restored 
+     * when the actor starts (see <code>initActor</code>).
+     * 
+     * @param in the stream with the state of the actor and of its Communication Stack
+     * @param received the frames it received before moving, and did not read
+     */
+    public void setMigratedState(DataInputStream in, ArrayList<PPDU> received) {
+        migratedState = in;
+        migratedFrames = received;
+    }
+    
+    /**
+     * @return the description from which the actor was created
+     */
+    public String getDescription() {
+        return String.join(":", actorParams);
+    }
+
     /**
      * @return an ArrayList with the Actor's position history
      */
@@ -194,27 +390,23 @@ public class Actor extends Thread {
      */
     public void setNextDestination(GlobalMap map, double goBackProbability) {
         int nextPointId;
-        HashSet destIds = (HashSet) (map.pointsNeighbours.get(actual_point_id)).clone();
-        if (randomGenerator.nextDouble() < goBackProbability || destIds.size()==1) { 
-            /** goes back with GOBACKPROBABILITY probability */
-            nextPointId = previous_point_id;
-        }else{ 
-            /** selects one of the other options with equal probability */
-            /** removes the previous point from the set of options*/
-            destIds.remove(previous_point_id);
-            /** selects among the remaining options */
-            ArrayList destIds2 = new ArrayList(destIds);
-            nextPointId = (int) destIds2.get(randomGenerator.nextInt(destIds2.size()));
-        }
-
+        /** goes back with GOBACKPROBABILITY probability, or selects one of the other options with equal probability */
+        nextPointId = map.chooseNextPoint(actual_point_id, previous_point_id, goBackProbability, randomGenerator);
         /** updates the coordinates of the destination */
-        xfs = map.points.get(nextPointId).getX();
-        yfs = map.points.get(nextPointId).getY();
+        xfs = map.getPointX(nextPointId);
+        yfs = map.getPointY(nextPointId);
         previous_point_id = actual_point_id;
         actual_point_id = nextPointId;
 
     }
 
+    /**
+     * @return the Actor's Communication Stack
+     */
+    public CommStack getCommStack() {
+        return cs;
+    }
+
     /**
      * @return the Actor's ID
      */
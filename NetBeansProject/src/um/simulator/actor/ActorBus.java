@@ -1,13 +1,16 @@
 package um.simulator.actor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import static um.simulator.actor.ActorCar.BACKPROBABILITY;
+import um.simulator.core.SimClock;
 import um.simulator.core.LocalCoordinator;
 import um.simulator.core.SimStatus;
 import um.simulator.map.*;
@@ -100,6 +103,70 @@ public class ActorBus extends Actor {
         setSpeedVector(speed);
     }
 
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        out.writeBoolean(way);
+        out.writeDouble(initialSpeed);
+        out.writeDouble(maxSpeed);
+        out.writeDouble(minSpeed);
+        out.writeDouble(xis);
+        out.writeDouble(yis);
+        out.writeDouble(xn);
+        out.writeDouble(yn);
+        out.writeDouble(vx1);
+        out.writeDouble(vy1);
+        out.writeInt(lane);
+        out.writeDouble(pc);
+        out.writeInt(stopState);
+        out.writeLong(stopBreak);
+        out.writeDouble(new_speed);
+        out.writeDouble(stopDistance);
+        out.writeDouble(stopX);
+        out.writeDouble(stopY);
+        out.writeDouble(neighbourDist);
+        out.writeDouble(neighbourSpeed);
+        out.writeInt(actorLane);
+        out.writeLong(overtakingTime);
+        out.writeDouble(x_traffic);
+        out.writeDouble(y_traffic);
+        out.writeDouble(tlDistance);
+        out.writeInt(tlState);
+        out.writeInt(id_tl);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        way = in.readBoolean();
+        initialSpeed = in.readDouble();
+        maxSpeed = in.readDouble();
+        minSpeed = in.readDouble();
+        xis = in.readDouble();
+        yis = in.readDouble();
+        xn = in.readDouble();
+        yn = in.readDouble();
+        vx1 = in.readDouble();
+        vy1 = in.readDouble();
+        lane = in.readInt();
+        pc = in.readDouble();
+        stopState = in.readInt();
+        stopBreak = in.readLong();
+        new_speed = in.readDouble();
+        stopDistance = in.readDouble();
+        stopX = in.readDouble();
+        stopY = in.readDouble();
+        neighbourDist = in.readDouble();
+        neighbourSpeed = in.readDouble();
+        actorLane = in.readInt();
+        overtakingTime = in.readLong();
+        x_traffic = in.readDouble();
+        y_traffic = in.readDouble();
+        tlDistance = in.readDouble();
+        tlState = in.readInt();
+        id_tl = in.readInt();
+    }
+
     @Override
     public String moveActor() {
         double collisionProb;
@@ -115,15 +182,16 @@ public class ActorBus extends Actor {
      */
     public void updateSpeed(double collisionProb) {
 
-        maxSpeed = Double.parseDouble(getWayTag("maxspeed", "50"));
-        n_lanes = Integer.parseInt(getWayTag("lanes", "1"));
+        MapLine ml = linesMap.getMapLine(actual_point_id);
+        maxSpeed = ml.getMaxSpeed();
+        n_lanes = ml.getLanes();
         /** converts km/h to m/ms */
         maxSpeed = maxSpeed / 3600; 
 
         if (stopState != 2) {
             /** tries to go the right-most lane */
             if (actorLane > 1) {
-                long tempo_ult = System.currentTimeMillis() - overtakingTime;
+                long tempo_ult = SimClock.currentTimeMillis() - overtakingTime;
                 if (tempo_ult > 3 * 1000) {
                     ActorStatus as = getFrontNeighbour(actorLane - 1);
                     if (as == null || as.getActor_speed() <= speed) {
@@ -142,7 +210,7 @@ public class ActorBus extends Actor {
                             if (as.getActor_speed() < speed - 0.003) {
                                 ActorStatus as2 = getFrontNeighbour(actorLane + 1);
                                 if (as2 == null || speed <= as2.getActor_speed()) {
-                                    overtakingTime = System.currentTimeMillis();
+                                    overtakingTime = SimClock.currentTimeMillis();
                                     actorLane++;
 
                                 }
@@ -195,10 +263,10 @@ public class ActorBus extends Actor {
                 vy = 0;
                 speed = 0;
                 stopState = 2;
-                stopBreak = System.currentTimeMillis();
+                stopBreak = SimClock.currentTimeMillis();
             }
         } else if (stopState == 2) {
-            long tempo = System.currentTimeMillis() - stopBreak;
+            long tempo = SimClock.currentTimeMillis() - stopBreak;
             if (tempo > 2 * 1000) {
                 stopState = 0;
                 /** increses speed */
@@ -208,7 +276,7 @@ public class ActorBus extends Actor {
         
         /** traffic light in the way */
         if (tlState == 1) {
-            int state = SimStatus.globalActors.get("TrafficLight." + id_tl).getTlState();
+            int state = SimStatus.getTrafficLightState(id_tl);
             /** yellow or red traffic light */
             if (state == 1 || state == 2) {
                 tlDistance = Math.sqrt((x - x_traffic) * (x - x_traffic) + (y - y_traffic) * (y - y_traffic));
@@ -249,8 +317,7 @@ public class ActorBus extends Actor {
      */
     public String getWayTag(String key, String defaultValue) {
         MapLine ml = this.linesMap.getMapLine(actual_point_id);
-        int id_line = ml.getId();
-        String value = linesMap.getLines().get(id_line).getTags().get(key);
+        String value = ml.getTags() == null ? null : ml.getTags().get(key);
         if (value == null) {
             return defaultValue;
         }
@@ -326,27 +393,17 @@ public class ActorBus extends Actor {
                 y = yn;
             }
         }
-        addPositionToHistory(System.currentTimeMillis(), x, y);
+        addPositionToHistory(SimClock.currentTimeMillis(), x, y);
     }
 
     @Override
     public void setNextDestination(GlobalMap map, double goBackProbability) {
         int nextPointId;
-        HashSet destIds = (HashSet) (map.pointsNeighbours.get(actual_point_id)).clone();
-        if (randomGenerator.nextDouble() < goBackProbability || destIds.size()==1) { 
-            /** goes back with GOBACKPROBABILITY probability */
-            nextPointId = previous_point_id;
-        }else{
-            /** selects one of the other options with equal probability */
-            /** removes the previous point from the set of options*/
-            destIds.remove(previous_point_id);
-            /** selects among the remaining options */
-            ArrayList destIds2 = new ArrayList(destIds);
-            nextPointId = (int) destIds2.get(randomGenerator.nextInt(destIds2.size()));
-        }
+        /** goes back with GOBACKPROBABILITY probability, or selects one of the other options with equal probability */
+        nextPointId = map.chooseNextPoint(actual_point_id, previous_point_id, goBackProbability, randomGenerator);
         /** updates the coordinates of the destination */
-        xfs = map.points.get(nextPointId).getX();
-        yfs = map.points.get(nextPointId).getY();
+        xfs = map.getPointX(nextPointId);
+        yfs = map.getPointY(nextPointId);
         previous_point_id = actual_point_id;
         actual_point_id = nextPointId;
 
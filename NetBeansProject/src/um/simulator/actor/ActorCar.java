@@ -1,13 +1,16 @@
 package um.simulator.actor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import static um.simulator.actor.ActorCar.BACKPROBABILITY;
+import um.simulator.core.SimClock;
 import um.simulator.core.LocalCoordinator;
 import um.simulator.core.SimStatus;
 import um.simulator.map.GlobalMap;
@@ -85,14 +88,78 @@ public class ActorCar extends Actor {
     }
 
     @Override
-    public void run() {
+    public void initActor() {
         this.setInitialParameters();
         if (new_mode <= 0.5) {
             mode = 0;
         } else {
             mode = 1;
         }
-        super.run();
+        super.initActor();
+    }
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        out.writeBoolean(way);
+        out.writeDouble(initialSpeed);
+        out.writeDouble(xis);
+        out.writeDouble(yis);
+        out.writeDouble(maxSpeed);
+        out.writeDouble(xn);
+        out.writeDouble(yn);
+        out.writeDouble(vx1);
+        out.writeDouble(vy1);
+        out.writeInt(mode);
+        out.writeInt(road);
+        out.writeInt(lane);
+        out.writeInt(tempo_ultrapassagem);
+        out.writeInt(counter);
+        out.writeInt(overtake);
+        out.writeDouble(pc);
+        out.writeDouble(maxLimit);
+        out.writeDouble(new_speed);
+        out.writeDouble(neighbourDist);
+        out.writeLong(stopBreak);
+        out.writeDouble(new_mode);
+        out.writeInt(actorLane);
+        out.writeDouble(x_traffic);
+        out.writeDouble(y_traffic);
+        out.writeDouble(tlDistance);
+        out.writeInt(tlState);
+        out.writeInt(id_tl);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        way = in.readBoolean();
+        initialSpeed = in.readDouble();
+        xis = in.readDouble();
+        yis = in.readDouble();
+        maxSpeed = in.readDouble();
+        xn = in.readDouble();
+        yn = in.readDouble();
+        vx1 = in.readDouble();
+        vy1 = in.readDouble();
+        mode = in.readInt();
+        road = in.readInt();
+        lane = in.readInt();
+        tempo_ultrapassagem = in.readInt();
+        counter = in.readInt();
+        overtake = in.readInt();
+        pc = in.readDouble();
+        maxLimit = in.readDouble();
+        new_speed = in.readDouble();
+        neighbourDist = in.readDouble();
+        stopBreak = in.readLong();
+        new_mode = in.readDouble();
+        actorLane = in.readInt();
+        x_traffic = in.readDouble();
+        y_traffic = in.readDouble();
+        tlDistance = in.readDouble();
+        tlState = in.readInt();
+        id_tl = in.readInt();
     }
 
     @Override
@@ -176,7 +243,7 @@ public class ActorCar extends Actor {
                 x = xn;
                 y = yn;
             }
-        addPositionToHistory(System.currentTimeMillis(), x, y);
+        addPositionToHistory(SimClock.currentTimeMillis(), x, y);
     }
     /** Calculates collision probability.
      * @return a double
@@ -304,8 +371,7 @@ public class ActorCar extends Actor {
 
     public String getWayTag(String key, String defaultValue) {
         MapLine ml = this.linesMap.getMapLine(actual_point_id);
-        int id_line = ml.getId();
-        String value = linesMap.getLines().get(id_line).getTags().get(key);
+        String value = ml.getTags() == null ? null : ml.getTags().get(key);
         if (value == null) {
             return defaultValue;
         }
@@ -318,9 +384,10 @@ public class ActorCar extends Actor {
      */
     private void updateSpeed(double colisionProb) {
 
-        maxSpeed = Double.parseDouble(getWayTag("maxspeed", "50"));
+        MapLine ml = linesMap.getMapLine(actual_point_id);
+        maxSpeed = ml.getMaxSpeed();
         maxLimit = (maxSpeed + 20) / 3600;
-        n_lanes = Integer.parseInt(getWayTag("lanes", "1"));
+        n_lanes = ml.getLanes();
         /** converts km/h to m/ms */
         maxSpeed = maxSpeed / 3600;
         if (speed != 0) {
@@ -330,7 +397,7 @@ public class ActorCar extends Actor {
             if (mode == 0) {
                 /** traffic light in the way */
                 if (tlState == 1) {
-                    int estado = SimStatus.globalActors.get("TrafficLight." + id_tl).getTlState();
+                    int estado = SimStatus.getTrafficLightState(id_tl);
                     /** yellow or red traffic light */
                     if (estado == 1 || estado == 2) {
                         tlDistance = Math.sqrt((x - x_traffic) * (x - x_traffic) + (y - y_traffic) * (y - y_traffic));
@@ -401,7 +468,7 @@ public class ActorCar extends Actor {
             if (mode == 1) 
             {
                 if (tlState == 1) {
-                    int state = SimStatus.globalActors.get("TrafficLight." + id_tl).getTlState();
+                    int state = SimStatus.getTrafficLightState(id_tl);
                     
                     /** traffic light is red or yellow */
                     if (state == 1 || state == 2) {
@@ -528,21 +595,11 @@ public class ActorCar extends Actor {
     @Override
     public void setNextDestination(GlobalMap map, double goBackProbability) {
         int nextPointId;
-        HashSet destIds = (HashSet) (map.pointsNeighbours.get(actual_point_id)).clone();
-        if (randomGenerator.nextDouble() < goBackProbability || destIds.size()==1) { 
-            /** goes back with GOBACKPROBABILITY probability */
-            nextPointId = previous_point_id;
-        } else {
-            /** selects one of the other options with equal probability */
-            /** removes the previous point from the set of options*/
-            destIds.remove(previous_point_id);
-            /** selects among the remaining options */
-            ArrayList destIds2 = new ArrayList(destIds);
-            nextPointId = (int) destIds2.get(randomGenerator.nextInt(destIds2.size()));
-        }
+        /** goes back with GOBACKPROBABILITY probability, or selects one of the other options with equal probability */
+        nextPointId = map.chooseNextPoint(actual_point_id, previous_point_id, goBackProbability, randomGenerator);
         /** updates the coordinates of the destination */
-        xfs = map.points.get(nextPointId).getX();
-        yfs = map.points.get(nextPointId).getY();
+        xfs = map.getPointX(nextPointId);
+        yfs = map.getPointY(nextPointId);
         previous_point_id = actual_point_id;
         actual_point_id = nextPointId;
 
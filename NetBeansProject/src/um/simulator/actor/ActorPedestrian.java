@@ -1,7 +1,11 @@
 package um.simulator.actor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import um.simulator.comm.CommStack;
+import um.simulator.core.SimClock;
 import um.simulator.core.LocalCoordinator;
 
 /** This class represents a Actor of type Pedestrian.
@@ -47,6 +51,32 @@ public class ActorPedestrian extends Actor {
         actual_point_id = linesMap.getMapPointID(x, y);
         
     }
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        out.writeBoolean(sentido);
+        out.writeDouble(speedini);
+        out.writeDouble(xis);
+        out.writeDouble(yis);
+        out.writeDouble(xn);
+        out.writeDouble(yn);
+        out.writeDouble(lane);
+        out.writeInt(roads);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        sentido = in.readBoolean();
+        speedini = in.readDouble();
+        xis = in.readDouble();
+        yis = in.readDouble();
+        xn = in.readDouble();
+        yn = in.readDouble();
+        lane = in.readDouble();
+        roads = in.readInt();
+    }
+
     @Override
     public String moveActor() {
         updateSpeed();
@@ -113,7 +143,7 @@ public class ActorPedestrian extends Actor {
             y = y1;
         }
 
-        addPositionToHistory(System.currentTimeMillis(), x, y);
+        addPositionToHistory(SimClock.currentTimeMillis(), x, y);
     }
 
     /** Aligns the speed vector to the current lane. 
@@ -5,17 +5,7 @@
  */
 package um.simulator.actor;
 
-import static java.lang.Thread.sleep;
-import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import um.simulator.comm.CommStack;
-import um.simulator.comm.physical.WAVEProtocol;
-import um.simulator.comm.application.ApplicationLayer;
 import um.simulator.core.SimStatus;
-import static java.lang.Thread.sleep;
-import static java.lang.Thread.sleep;
-import static java.lang.Thread.sleep;
 
 /**
  * This class represents an Actor of type Traffic Light.
@@ -64,58 +54,45 @@ public final class ActorTrafficLight extends Actor{
         }
     }
     
-    /** This method changes the Traffic Light state and gets the <code>CommStack</code> running. */
+    /** Gets the <code>CommStack</code> ready to run. */
     @Override
-    public void run() {
-        try {
-            positionHistory.add(new ActorPositionTimestamp(0, x, y));
-            cs = new CommStack(this, this.csParams);
-            cs.start();
-            while (!SimStatus.globalActors.get(id).actorDyingQ()) {
-                
-                switch (stateTL) {
-                    case 0:
-                        as.setTlState(stateTL);
-                        as.setLabel("green");
-                        SimStatus.setActorStatus(as);
-                        try {
-                            sleep(green_time);
-                        } catch (InterruptedException ex) {
-                            Logger.getLogger(ActorTrafficLight.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                        stateTL=1;
-                        break;
-                    case 1:
-                        as.setTlState(stateTL);
-                        as.setLabel("yellow");
-                        SimStatus.setActorStatus(as);
-                        try {
-                            sleep(yellow_time);
-                        } catch (InterruptedException ex) {
-                            Logger.getLogger(ActorTrafficLight.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                        stateTL =2;
-                        break;
-                    case 2:
-                        as.setTlState(stateTL);
-                        as.setLabel("red");
-                        SimStatus.setActorStatus(as);
-                        try {
-                            sleep(red_time);
-                        } catch (InterruptedException ex) {
-                            Logger.getLogger(ActorTrafficLight.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                        stateTL=0;
-                        break;
-                    default:
-                        break;
-                }
-            }
-            alive = false;
-            cs.join();
-            SimStatus.removeActor(id);
-        }catch(InterruptedException ex){
-            Logger.getLogger(ActorTrafficLight.class.getName()).log(Level.SEVERE, null, ex);
+    public void initActor() {
+        positionHistory.add(new ActorPositionTimestamp(0, x, y));
+        super.initActor();
+    }
+    
+    /** This method changes the Traffic Light state.
+     * 
+     * @return the time, in milliseconds, that the new light stays ON, or -1 
+     * if the traffic light is dying
+     */
+    @Override
+    public long step() {
+        ActorStatus status = SimStatus.getActorStatus(id);
+        if (status == null || status.actorDyingQ()) {
+            return -1;
+        }
+        switch (stateTL) {
+            case 0:
+                as.setTlState(stateTL);
+                as.setLabel("green");
+                SimStatus.setActorStatus(as);
+                stateTL = 1;
+                return green_time;
+            case 1:
+                as.setTlState(stateTL);
+                as.setLabel("yellow");
+                SimStatus.setActorStatus(as);
+                stateTL = 2;
+                return yellow_time;
+            case 2:
+                as.setTlState(stateTL);
+                as.setLabel("red");
+                SimStatus.setActorStatus(as);
+                stateTL = 0;
+                return red_time;
+            default:
+                return 0;
         }
     }
 }
@@ -1,10 +1,13 @@
 package um.simulator.actor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import um.simulator.comm.CommStack;
+import um.simulator.core.SimClock;
 import um.simulator.core.LocalCoordinator;
 import um.simulator.core.SimStatus;
 import um.simulator.map.MapLine;
@@ -91,6 +94,58 @@ public class ActorTram extends Actor {
         setSpeedVector(speed);
     }
 
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        out.writeBoolean(way);
+        out.writeDouble(initialSpeed);
+        out.writeDouble(xis);
+        out.writeDouble(yis);
+        out.writeDouble(minSpeed);
+        out.writeDouble(maxSpeed);
+        out.writeDouble(stopX);
+        out.writeDouble(stopY);
+        out.writeDouble(stopState);
+        out.writeLong(stopBreak);
+        out.writeDouble(stopDistance);
+        out.writeDouble(neighbourDist);
+        out.writeDouble(new_speed);
+        out.writeDouble(xn);
+        out.writeDouble(yn);
+        out.writeDouble(pc);
+        out.writeDouble(x_traffic);
+        out.writeDouble(y_traffic);
+        out.writeDouble(tlDistance);
+        out.writeInt(tlState);
+        out.writeInt(id_tl);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        way = in.readBoolean();
+        initialSpeed = in.readDouble();
+        xis = in.readDouble();
+        yis = in.readDouble();
+        minSpeed = in.readDouble();
+        maxSpeed = in.readDouble();
+        stopX = in.readDouble();
+        stopY = in.readDouble();
+        stopState = in.readDouble();
+        stopBreak = in.readLong();
+        stopDistance = in.readDouble();
+        neighbourDist = in.readDouble();
+        new_speed = in.readDouble();
+        xn = in.readDouble();
+        yn = in.readDouble();
+        pc = in.readDouble();
+        x_traffic = in.readDouble();
+        y_traffic = in.readDouble();
+        tlDistance = in.readDouble();
+        tlState = in.readInt();
+        id_tl = in.readInt();
+    }
+
     @Override
     public String moveActor() {
         double collisionProb;
@@ -120,7 +175,7 @@ public class ActorTram extends Actor {
             x = xn;
             y = yn;
         }
-        addPositionToHistory(System.currentTimeMillis(), x, y);
+        addPositionToHistory(SimClock.currentTimeMillis(), x, y);
     }
     
     /** Calculates collision probability.
@@ -138,8 +193,7 @@ public class ActorTram extends Actor {
      */
     public String getWayTag(String key, String defaultValue) {
         MapLine ml = this.linesMap.getMapLine(actual_point_id);
-        int id_line = ml.getId();
-        String value = linesMap.getLines().get(id_line).getTags().get(key);
+        String value = ml.getTags() == null ? null : ml.getTags().get(key);
         if (value == null) {
             return defaultValue;
         }
@@ -152,8 +206,9 @@ public class ActorTram extends Actor {
      */
     private void updateSpeed(double collisionProb) {
 
-        maxSpeed = Double.parseDouble(getWayTag("maxspeed", "50"));
-        n_lanes = Integer.parseInt(getWayTag("lanes", "1"));
+        MapLine ml = linesMap.getMapLine(actual_point_id);
+        maxSpeed = ml.getMaxSpeed();
+        n_lanes = ml.getLanes();
         /** converts km/h to m/ms */
         maxSpeed = maxSpeed / 3600; 
 
@@ -193,10 +248,10 @@ public class ActorTram extends Actor {
                 vx = 0;
                 vy = 0;
                 stopState = 2;
-                stopBreak = System.currentTimeMillis();
+                stopBreak = SimClock.currentTimeMillis();
             }
         } else if (stopState == 2) {
-            long tempo = System.currentTimeMillis() - stopBreak;
+            long tempo = SimClock.currentTimeMillis() - stopBreak;
             if (tempo > 2 * 1000) {
                 stopState = 0;
                 /** increases speed */
@@ -206,7 +261,7 @@ public class ActorTram extends Actor {
 
         /** traffic light in the way */
         if (tlState == 1) {
-            int state = SimStatus.globalActors.get("TrafficLight." + id_tl).getTlState();
+            int state = SimStatus.getTrafficLightState(id_tl);
             /** yellow or red traffic light */
             if (state == 1 || state == 2) {
                 tlDistance = Math.sqrt((x - x_traffic) * (x - x_traffic) + (y - y_traffic) * (y - y_traffic));
@@ -240,21 +295,11 @@ public class ActorTram extends Actor {
     @Override
     public void setNextDestination(GlobalMap map, double goBackProbability) {
         int nextPointId;
-        HashSet destIds = (HashSet) (map.pointsNeighbours.get(actual_point_id)).clone();
-        if (randomGenerator.nextDouble() < goBackProbability || destIds.size()==1) { 
-            /** goes back with GOBACKPROBABILITY probability */
-            nextPointId = previous_point_id;
-        } else { 
-            /** selects one of the other options with equal probability */
-            /** removes the previous point from the set of options*/
-            destIds.remove(previous_point_id);
-            /** selects among the remaining options */
-            ArrayList destIds2 = new ArrayList(destIds);
-            nextPointId = (int) destIds2.get(randomGenerator.nextInt(destIds2.size()));
-        }
+        /** goes back with GOBACKPROBABILITY probability, or selects one of the other options with equal probability */
+        nextPointId = map.chooseNextPoint(actual_point_id, previous_point_id, goBackProbability, randomGenerator);
         /** updates the coordinates of the destination */
-        xfs = map.points.get(nextPointId).getX();
-        yfs = map.points.get(nextPointId).getY();
+        xfs = map.getPointX(nextPointId);
+        yfs = map.getPointY(nextPointId);
         previous_point_id = actual_point_id;
         actual_point_id = nextPointId;
         
@@ -5,6 +5,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Properties;
 import um.simulator.core.GlobalCoordinator;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
 import um.simulator.map.CoordinatesHelper;
 import um.simulator.map.GlobalMap;
@@ -161,7 +162,7 @@ public class Generator extends Thread {
                 actorsCount++;
             }
             try {
-                Thread.sleep(genPeriod);
+                SimClock.sleep(genPeriod);
             } catch (InterruptedException ex) {
                 Logger.getLogger(Generator.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -0,0 +1,190 @@
+package um.simulator.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import um.simulator.core.SimKernel;
+import um.simulator.core.SimThreads;
+
+/**
+ * Compares the execution modes of the LocalCoordinator with a synthetic load
+ * that mimics the local simulation: each actor has a mobility loop (every
+ * 100 ms), a CommStack loop (every 1000 ms) and a network protocol timer
+ * (every 1000 ms).
+ *
+ * For each number of actors and each mode (platform threads, virtual threads
+ * and SimKernel), reports the peak number of live platform threads and the
+ * percentage of mobility ticks that started more than 20% later than their
+ * period. The ticks are counted after all the loops started and a warm-up
+ * of <code>WARMUP</code> milliseconds, so that the time taken to start them
+ * does not count as overruns.
+ *
+ * Usage: <code>java um.simulator.benchmark.ExecutionModeBenchmark [seconds] [actors...] [modes...]</code>
+ *
+ * @version 1.0
+ */
+public class ExecutionModeBenchmark {
+
+    /** mobility update pace of the actors, in milliseconds */
+    static final int TIME_PACE = 100;
+    /** update pace of the CommStacks and protocols, in milliseconds */
+    static final int UPDATE_PACE = 1000;
+    /** time the loops run before the ticks are counted, in milliseconds */
+    static final int WARMUP = 2000;
+
+    static volatile boolean running;
+    static volatile boolean measuring;
+    static AtomicLong ticks = new AtomicLong();
+    static AtomicLong overruns = new AtomicLong();
+    static volatile double sink;
+
+    /** A periodic activity of a synthetic actor. */
+    static class Loop extends Thread implements SimKernel.SimTask {
+        int pace;
+        boolean mobility;
+        long lastStart = 0;
+
+        Loop(int pace, boolean mobility) {
+            this.pace = pace;
+            this.mobility = mobility;
+        }
+
+        @Override
+        public void run() {
+            long delay;
+            while ((delay = execute()) >= 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public long execute() {
+            if (!running) {
+                return -1;
+            }
+            long start = System.nanoTime();
+            if (mobility && measuring && lastStart != 0) {
+                ticks.incrementAndGet();
+                if ((start - lastStart) / 1000000 > 1.2 * pace) {
+                    overruns.incrementAndGet();
+                }
+            }
+            lastStart = start;
+            /** some work, similar to a mobility update */
+            double acc = 0;
+            for (int i = 1; i < 200; i++) {
+                acc += Math.sqrt(i * start % 1000);
+            }
+            sink = acc;
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            return Math.max(0, pace - elapsed);
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args duration of each run, in seconds, followed by the numbers of
+     * actors and by the modes to run (all if none)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = 10;
+        ArrayList<Integer> sizes = new ArrayList<>();
+        ArrayList<String> modes = new ArrayList<>();
+        if (args.length > 0) {
+            seconds = Integer.parseInt(args[0]);
+        }
+        for (int i = 1; i < args.length; i++) {
+            if (Character.isDigit(args[i].charAt(0))) {
+                sizes.add(Integer.parseInt(args[i]));
+            } else {
+                modes.add(args[i]);
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.addAll(Arrays.asList(1000, 5000, 10000));
+        }
+        if (modes.isEmpty()) {
+            modes.addAll(Arrays.asList("threads", "virtual", "kernel"));
+        }
+        boolean virtualSupported = SimThreads.enableVirtualThreads();
+        SimThreads.disableVirtualThreads();
+        if (!virtualSupported && modes.remove("virtual")) {
+            System.out.println("Virtual threads are not supported by this JVM (Java 21 or later): the 'virtual' runs are skipped");
+        }
+        System.out.println(String.format("%-8s %-8s %14s %10s %10s", "actors", "mode", "peak threads", "ticks", "overruns"));
+        for (int n : sizes) {
+            for (String mode : modes) {
+                run(n, mode, seconds);
+            }
+        }
+    }
+
+    /**
+     * Runs the synthetic load in one mode and prints the results.
+     *
+     * @param n number of actors
+     * @param mode threads, virtual or kernel
+     * @param seconds duration of the run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static void run(int n, String mode, int seconds) throws InterruptedException {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        ticks.set(0);
+        overruns.set(0);
+        measuring = false;
+        running = true;
+        ArrayList<Loop> loops = new ArrayList<>();
+        SimKernel kernel = null;
+        if (mode.equals("kernel")) {
+            kernel = new SimKernel(0);
+            kernel.start();
+        } else if (mode.equals("virtual")) {
+            SimThreads.enableVirtualThreads();
+        }
+        int peak = mx.getThreadCount();
+        String failure = null;
+        try {
+            for (int i = 0; i < n; i++) {
+                Loop[] actorLoops = {new Loop(TIME_PACE, true), new Loop(UPDATE_PACE, false), new Loop(UPDATE_PACE, false)};
+                for (Loop loop : actorLoops) {
+                    loops.add(loop);
+                    if (kernel != null) {
+                        kernel.schedule(loop, 0);
+                    } else {
+                        SimThreads.start(loop);
+                    }
+                }
+            }
+            Thread.sleep(WARMUP);
+            measuring = true;
+            long end = System.currentTimeMillis() + seconds * 1000L;
+            while (System.currentTimeMillis() < end) {
+                Thread.sleep(250);
+                peak = Math.max(peak, mx.getThreadCount());
+            }
+        } catch (OutOfMemoryError e) {
+            failure = "failed after " + loops.size() + " threads: " + e.getMessage();
+        }
+        running = false;
+        for (Loop loop : loops) {
+            SimThreads.join(loop);
+        }
+        if (kernel != null) {
+            kernel.stopKernel();
+            kernel.join();
+        }
+        SimThreads.disableVirtualThreads();
+        long t = ticks.get();
+        String overrun = t == 0 ? "-" : String.format("%.2f%%", 100.0 * overruns.get() / t);
+        System.out.println(String.format("%-8d %-8s %14d %10d %10s", n, mode, peak, t, overrun)
+                + (failure == null ? "" : "  (" + failure + ")"));
+    }
+}
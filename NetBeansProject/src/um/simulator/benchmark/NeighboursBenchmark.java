@@ -0,0 +1,129 @@
+package um.simulator.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import um.simulator.actor.ActorStatus;
+import um.simulator.core.SpatialGrid;
+
+/**
+ * Compares the cost of the neighbourhood queries made by the vehicles on every
+ * tick (<code>SimStatus.getNeighbours</code>) with a linear scan of all the
+ * actors and with the <code>SpatialGrid</code>.
+ *
+ * The actors are spread uniformly over a square area with a constant density
+ * (about 400 actors per square kilometre, a dense urban scenario), so the
+ * number of neighbours found by each query does not depend on the number of
+ * actors. Each round moves every actor a few meters (updating the grid) and
+ * makes one 30 m query per actor.
+ *
+ * Usage: <code>java um.simulator.benchmark.NeighboursBenchmark [rounds] [actors...]</code>
+ *
+ * @version 1.0
+ */
+public class NeighboursBenchmark {
+
+    /** actors per square meter */
+    static final double DENSITY = 400e-6;
+    /** query radius, in meters */
+    static final double RADIUS = 30;
+
+    static volatile int sink;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args number of rounds, followed by the numbers of actors
+     */
+    public static void main(String[] args) {
+        int rounds = 20;
+        int[] sizes = {1000, 10000};
+        if (args.length > 0) {
+            rounds = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println(String.format("%-8s %-8s %16s %16s %12s", "actors", "index", "us per query", "us per update", "neighbours"));
+        for (int n : sizes) {
+            /** warm-up */
+            run(n, false, 2);
+            run(n, true, 2);
+            print(n, "linear", run(n, false, rounds));
+            print(n, "grid", run(n, true, rounds));
+        }
+    }
+
+    static void print(int n, String index, double[] result) {
+        System.out.println(String.format("%-8d %-8s %16.2f %16.3f %12.1f", n, index, result[0], result[1], result[2]));
+    }
+
+    /**
+     * Moves and queries all the actors for some rounds.
+     *
+     * @param n number of actors
+     * @param useGrid true to use the grid, false to scan all the actors
+     * @param rounds number of rounds
+     * @return microseconds per query, microseconds per update and average number of neighbours
+     */
+    static double[] run(int n, boolean useGrid, int rounds) {
+        Random random = new Random(1);
+        double side = Math.sqrt(n / DENSITY);
+        HashMap<String, ActorStatus> actors = new HashMap<>();
+        SpatialGrid grid = new SpatialGrid(SpatialGrid.DEFAULT_CELL_SIZE);
+        ArrayList<ActorStatus> list = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ActorStatus as = new ActorStatus("c" + i, random.nextDouble() * side, random.nextDouble() * side, "");
+            list.add(as);
+        }
+        long updateTime = 0, queryTime = 0, found = 0;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                ActorStatus old = list.get(i);
+                double x = Math.min(side, Math.max(0, old.getActor_x() + random.nextDouble() * 6 - 3));
+                double y = Math.min(side, Math.max(0, old.getActor_y() + random.nextDouble() * 6 - 3));
+                ActorStatus as = new ActorStatus(old.getActorId(), x, y, "");
+                list.set(i, as);
+                actors.put(as.getActorId(), as);
+                if (useGrid) {
+                    grid.update(as);
+                }
+            }
+            long middle = System.nanoTime();
+            for (ActorStatus as : list) {
+                HashMap<String, ActorStatus> neighbours;
+                if (useGrid) {
+                    neighbours = grid.query(as.getActorId(), as.getActor_x(), as.getActor_y(), RADIUS);
+                } else {
+                    neighbours = scan(actors, as.getActorId(), as.getActor_x(), as.getActor_y(), RADIUS);
+                }
+                found += neighbours.size();
+            }
+            long end = System.nanoTime();
+            updateTime += middle - start;
+            queryTime += end - middle;
+        }
+        sink = (int) found;
+        double ops = (double) n * rounds;
+        return new double[]{queryTime / ops / 1000, updateTime / ops / 1000, found / ops};
+    }
+
+    /**
+     * The linear search previously made by <code>SimStatus.getNeighbours</code>.
+     */
+    static HashMap<String, ActorStatus> scan(HashMap<String, ActorStatus> actors, String a_id, double x, double y, double radius) {
+        HashMap<String, ActorStatus> neighbours = new HashMap<>();
+        for (ActorStatus as : actors.values()) {
+            double dx = x - as.getActor_x();
+            double dy = y - as.getActor_y();
+            if (!as.getActorId().contains(a_id) && Math.sqrt(dx * dx + dy * dy) <= radius) {
+                neighbours.put(as.getActorId(), as);
+            }
+        }
+        return neighbours;
+    }
+}
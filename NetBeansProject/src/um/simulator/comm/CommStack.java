@@ -5,17 +5,23 @@
  */
 package um.simulator.comm;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.actor.Actor;
+import um.simulator.actor.ActorStatus;
 import um.simulator.comm.network.NetworkLayer;
 import um.simulator.comm.physical.WAVEProtocol;
 import um.simulator.comm.application.ApplicationLayer;
 import um.simulator.comm.link.LinkLayer;
 import um.simulator.comm.physical.PhysicalLayer;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
+import um.simulator.core.SimThreads;
 
 /**
  * This class represents the Communication Stack.
@@ -78,38 +84,83 @@ public class CommStack extends Thread{
     
     @Override
     public void run(){
-        long time_ini, deltaTime, deltaTime_ms;
         try {
             Thread.sleep(1000);
         } catch (InterruptedException ex) {
             Logger.getLogger(CommStack.class.getName()).log(Level.SEVERE, null, ex);
         }
-        while(actor.alive || !SimStatus.globalActors.get(actor.getActorId()).actorDyingQ()) {
-            time_ini = System.nanoTime();
-            update();
-            deltaTime = System.nanoTime() - time_ini;
-            deltaTime_ms = TimeUnit.NANOSECONDS.toMillis(deltaTime);
-            
-            if (deltaTime_ms <= updatePace) {
-                try {
-                    /** sleeps for some time */
-                    Thread.sleep(updatePace - deltaTime_ms); 
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(CommStack.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            } else {
-                /** update cycle takes more than <code>updatePace</code> ms */
+        long delay;
+        while((delay = step()) >= 0) {
+            try {
+                /** sleeps for some time */
+                Thread.sleep(delay); 
+            } catch (InterruptedException ex) {
+                Logger.getLogger(CommStack.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-        this.networkLayer.turnOffLayer();
+        turnOff();
         try {
-            this.networkLayer.proto.join();
+            SimThreads.join(this.networkLayer.proto);
         } catch (InterruptedException ex) {
             Logger.getLogger(CommStack.class.getName()).log(Level.SEVERE, null, ex);
         }
         
     }
     
+    /**
+     * Executes one update cycle of the Communication Stack.
+     * Used by <code>run()</code> and by the <code>SimKernel</code>.
+     * 
+     * @return the time, in milliseconds, until the next cycle, or -1 if the
+     * actor owning the stack is gone
+     */
+    public long step() {
+        long time_ini, deltaTime, deltaTime_ms;
+        ActorStatus as = SimStatus.getActorStatus(actor.getActorId());
+        /** a dying actor may already be gone from <code>SimStatus</code>; 
+         * a migrating one stops without dying */
+        if (!actor.alive && (as == null || as.actorDyingQ() || actor.isMigrating())) {
+            return -1;
+        }
+        time_ini = System.nanoTime();
+        update();
+        deltaTime = System.nanoTime() - time_ini;
+        deltaTime_ms = TimeUnit.NANOSECONDS.toMillis(deltaTime);
+        /** if the update cycle takes more than <code>updatePace</code> ms, there is no wait */
+        return SimClock.remainingTime(updatePace, deltaTime_ms);
+    }
+    
+    /** Turns off the Communication Stack, ending the network protocol. */
+    public void turnOff() {
+        this.networkLayer.turnOffLayer();
+    }
+    
+    /**
+     * Writes the state of the layers (the frames waiting to be sent, the 
+     * buffer and history of the network protocol and the counters of the 
+     * application), to resume the stack in another LocalCoordinator.
+     * 
+     * @param out the stream where the state is written
+     * @throws IOException if an error occurs
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        phyLayer.proto.writeState(out);
+        networkLayer.proto.writeState(out);
+        appLayer.writeState(out);
+    }
+    
+    /**
+     * Reads the state written by <code>writeState</code>.
+     * 
+     * @param in the stream from where the state is read
+     * @throws IOException if an error occurs
+     */
+    public void readState(DataInputStream in) throws IOException {
+        phyLayer.proto.readState(in);
+        networkLayer.proto.readState(in);
+        appLayer.readState(in);
+    }
+    
     /**
      * Reference to the physical layer. 
      * 
@@ -6,6 +6,9 @@
 package um.simulator.comm.application;
 
 import um.simulator.comm.network.NetworkLayer;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Random;
 import um.simulator.actor.Actor;
@@ -86,6 +89,31 @@ public class Application {
         return actorDestinationID;
     }
     
+    /**
+     * Writes the counters of the application, to resume it in another 
+     * LocalCoordinator.
+     * 
+     * Overrided method in inherited classes.
+     * 
+     * @param out the stream where the state is written
+     * @throws IOException if an error occurs
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        
+    }
+    
+    /**
+     * Reads the state written by <code>writeState</code>.
+     * 
+     * Overrided method in inherited classes.
+     * 
+     * @param in the stream from where the state is read
+     * @throws IOException if an error occurs
+     */
+    public void readState(DataInputStream in) throws IOException {
+        
+    }
+    
     /**
      * Receive packets from the lower layer
      * @param packets array list with application pdu
@@ -6,8 +6,11 @@
 package um.simulator.comm.application;
 
 import um.simulator.comm.network.NetworkLayer;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -71,6 +74,28 @@ public class ApplicationLayer {
             app.update();
     }
     
+    /**
+     * Writes the state of the running application.
+     * 
+     * @param out the stream where the state is written
+     * @throws IOException if an error occurs
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        if(appRunning)
+            app.writeState(out);
+    }
+    
+    /**
+     * Reads the state written by <code>writeState</code>.
+     * 
+     * @param in the stream from where the state is read
+     * @throws IOException if an error occurs
+     */
+    public void readState(DataInputStream in) throws IOException {
+        if(appRunning)
+            app.readState(in);
+    }
+    
     /**
      * Receive packets from the lower layer
      * @param packets an array list containing application pdus
@@ -5,9 +5,13 @@
  */
 package um.simulator.comm.application;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Random;
 import um.simulator.comm.network.NetworkLayer;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
 import um.simulator.reporting.ReportLocal;
 
@@ -163,14 +167,14 @@ public class BasicApplication extends Application {
             }else if(fields[i].contains("p")){
                 data +=network.link.phy.actor.getX() + "-" + network.link.phy.actor.getY();
             }else if(fields[i].contains("t")){
-                data+= System.currentTimeMillis();
+                data+= SimClock.currentTimeMillis();
             }else if (!msgPayload.contains(null)){
                 data = msgPayload;
             }
         }
         
         System.out.println(actorId + " GENERATED MESSAGE: " + data);
-        APDU traffic = new APDU(System.currentTimeMillis() + ":" + appName + ":" + data);
+        APDU traffic = new APDU(SimClock.currentTimeMillis() + ":" + appName + ":" + data);
         SimStatus.reportLocal.reportSentMessage(actorId,7,data,-5);
         /** the APDU and the destination address are sent to the network layer */
         network.generatedDataPacket(msgDestination, traffic);
@@ -181,6 +185,29 @@ public class BasicApplication extends Application {
         SimStatus.reportLocal.reportReceivedMessage(actorId,7,a.getData(),-5);
     }
     
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(i);
+        out.writeInt(seconds);
+        out.writeInt(msgCycle);
+        out.writeInt(cycles);
+        out.writeInt(timeBreak);
+        out.writeBoolean(msgDestination != null);
+        if(msgDestination != null)
+            out.writeUTF(msgDestination);
+    }
+    
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        i = in.readInt();
+        seconds = in.readInt();
+        msgCycle = in.readInt();
+        cycles = in.readInt();
+        timeBreak = in.readInt();
+        if(in.readBoolean())
+            msgDestination = in.readUTF();
+    }
+    
     @Override
     public String generateRandomDestination() {
         return super.generateRandomDestination();
@@ -5,12 +5,16 @@
  */
 package um.simulator.comm.network;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.comm.application.APDU;
 import um.simulator.comm.link.LinkLayer;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
 import um.simulator.reporting.ReportLocal;
 
@@ -23,6 +27,9 @@ import um.simulator.reporting.ReportLocal;
  */
 public class DirectDelivery extends NetworkProtocol {
 
+    /** counter of timer iterations */
+    int timerCycles = 0;
+
     /** Constructor: creates a Direct-Delivery protocol.
      * 
      * @param linkLayer reference to the link layer
@@ -38,33 +45,28 @@ public class DirectDelivery extends NetworkProtocol {
      * Every TTL/4 seconds, sends the messages in the <code>waitLine</code>. 
      */
     @Override
-    public void run() {
-        int i = 0;
-        while (running) {
-
-            i++;
-            /** TTL removed from cycle */
-            if (i > 4)
-            {
-                /** when the counter reaches a quarter of the TTL sends the messages in the buffer */
-                try {
-                    sendDownQueue();//sends the messages in the waitLine
-                } catch (ParseException ex) {
-                    Logger.getLogger(Epidemic.class.getName()).log(Level.SEVERE, null, ex);
-                }
-                i = 0;
-            }
+    public long timerTick() {
+        if (!running) {
+            return -1;
+        }
+        timerCycles++;
+        /** TTL removed from cicle */
+        if (timerCycles > 4) {
+            /** when the counter reaches a quarter of the TTL sends the messages in the buffer */
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
+                /** sends messages in the waitLine */
+                sendDownQueue();
+            } catch (ParseException ex) {
                 Logger.getLogger(Epidemic.class.getName()).log(Level.SEVERE, null, ex);
             }
+            timerCycles = 0;
         }
+        return 1000;
     }
 
     @Override
     public void generatedDataPacket(String destAddress, APDU apdu){
-        NPDU npdu = new NPDU(nodeID, destAddress, System.currentTimeMillis() + "", "directDelivery", TTL, apdu.getData());
+        NPDU npdu = new NPDU(nodeID, destAddress, SimClock.currentTimeMillis() + "", "directDelivery", TTL, apdu.getData());
         SimStatus.reportLocal.reportSentMessage(nodeID,3,npdu.getData(),buffer.size());
         /** it's directDelivery, so it's destination is unicast */
         linkLayer.sendFrame(npdu, destAddress);
@@ -134,5 +136,16 @@ public class DirectDelivery extends NetworkProtocol {
     public void sendDataPacket(NPDU npdu, String destAddress){
         this.linkLayer.sendFrame(npdu, destAddress);
     }
-    
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        out.writeInt(timerCycles);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        timerCycles = in.readInt();
+    }
 }
@@ -5,12 +5,16 @@
  */
 package um.simulator.comm.network;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.comm.application.APDU;
 import um.simulator.comm.link.*;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
 
 /** This class represents the Epidemic protocol.
@@ -21,6 +25,9 @@ import um.simulator.core.SimStatus;
  */
 public class Epidemic extends NetworkProtocol {
 
+    /** counter of timer iterations */
+    int timerCycles = 0;
+
     /** Consctructor: creates an Epidemic protocol.
      * 
      * @param linkLayer reference to the link layer
@@ -36,33 +43,29 @@ public class Epidemic extends NetworkProtocol {
      * Every TTL/4 seconds, sends the messages in the <code>waitLine</code>. 
      */
     @Override
-    public void run() {
-        int i = 0;
-        while (running) {
-            i++;
-            /** TTL removed from cicle */
-            if (i > 20) {
-                /** when the counter reaches a quarter of the TTL sends the messages in the buffer */
-                try {
-                    /** sends messages in the waitLine */
-                    sendDownQueue();
-                } catch (ParseException ex) {
-                    Logger.getLogger(Epidemic.class.getName()).log(Level.SEVERE, null, ex);
-                }
-                i = 0;
-            }
+    public long timerTick() {
+        if (!running) {
+            return -1;
+        }
+        timerCycles++;
+        /** TTL removed from cicle */
+        if (timerCycles > 20) {
+            /** when the counter reaches a quarter of the TTL sends the messages in the buffer */
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
+                /** sends messages in the waitLine */
+                sendDownQueue();
+            } catch (ParseException ex) {
                 Logger.getLogger(Epidemic.class.getName()).log(Level.SEVERE, null, ex);
             }
+            timerCycles = 0;
         }
+        return 1000;
     }
 
     @Override
     public void generatedDataPacket(String destAddress, APDU apdu){
         
-        NPDU npdu = new NPDU(nodeID, destAddress, System.currentTimeMillis() + "", "Epidemic", TTL, apdu.getData());
+        NPDU npdu = new NPDU(nodeID, destAddress, SimClock.currentTimeMillis() + "", "Epidemic", TTL, apdu.getData());
         /** it's epidemic, so it's destination is broadcast */
         linkLayer.sendFrame(npdu, "Broadcast");
         addToBuffer(npdu);
@@ -156,4 +159,15 @@ public class Epidemic extends NetworkProtocol {
         this.linkLayer.sendFrame(npdu, destAddress);
     }
 
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        out.writeInt(timerCycles);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        timerCycles = in.readInt();
+    }
 }
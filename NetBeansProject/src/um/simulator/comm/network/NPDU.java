@@ -6,6 +6,7 @@
 package um.simulator.comm.network;
 
 import java.util.concurrent.TimeUnit;
+import um.simulator.core.SimClock;
 
 /**
  * This class represents a Network Layer PDU. 
@@ -152,7 +153,7 @@ public class NPDU {
      * @return TTL (time to live)
      */
     public long updateTTL(long timeUpdated){
-        long currentTime = System.currentTimeMillis();
+        long currentTime = SimClock.currentTimeMillis();
         int timeStored = (int) TimeUnit.MILLISECONDS.toSeconds(currentTime - timeUpdated);
         synchronized(timeToLive){
             this.timeToLive = this.timeToLive-timeStored;
@@ -38,19 +38,19 @@ public class NetworkLayer {
         /** iniciates the protocol */
         if(protocol.equalsIgnoreCase("Epidemic")){
             proto = new Epidemic(link, link.phy.actor.getActorId(), protocolQueue);
-            proto.start();
+            proto.startProtocol();
         }
         else if(protocol.equalsIgnoreCase("SprayAndWait")){
             proto = new SprayAndWait(link, link.phy.actor.getActorId(), protocolQueue, numberOfRetransmissions);
-            proto.start();
+            proto.startProtocol();
         }
         else if(protocol.equalsIgnoreCase("DirectDelivery")){
             proto = new DirectDelivery(link,link.phy.actor.getActorId(),protocolQueue);
-            proto.start();
+            proto.startProtocol();
         }
         else if(protocol.equalsIgnoreCase("PRoPHET")){
             proto = new PRoPHET(link,link.phy.actor.getActorId(),protocolQueue);
-            proto.start();
+            proto.startProtocol();
         }
         /** iniciates the application Layer */
         appLayer = new ApplicationLayer(link.phy.actor.getActorId(), 
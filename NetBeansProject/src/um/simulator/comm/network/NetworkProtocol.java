@@ -5,11 +5,18 @@
  */
 package um.simulator.comm.network;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import um.simulator.comm.application.APDU;
 import um.simulator.comm.link.LinkLayer;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
+import um.simulator.core.SimThreads;
 
 /**
  * This class represents a generic Network Protocol.
@@ -84,8 +91,43 @@ abstract public class NetworkProtocol extends Thread {
         this.bufferLimit = lineQueue;
     }
 
+    /**
+     * Runs the protocol timer every <code>timerTick()</code> milliseconds, 
+     * while the protocol is running.
+     */
     @Override
     public void run() {
+        long delay;
+        while ((delay = timerTick()) >= 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(NetworkProtocol.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    /**
+     * Starts the protocol: on its own <code>Thread</code> or, if the local 
+     * simulation runs on the <code>SimKernel</code>, as a timed event.
+     */
+    public void startProtocol() {
+        if (SimStatus.kernel != null) {
+            SimStatus.kernel.schedule(this::timerTick, 0);
+        } else {
+            SimThreads.start(this);
+        }
+    }
+    
+    /**
+     * Executes one iteration of the periodic work of the protocol 
+     * (e.g. resending the messages in the buffer).
+     * 
+     * @return the time, in milliseconds, until the next iteration, or -1 if 
+     * the protocol has ended
+     */
+    public long timerTick() {
+        return -1;
     }
 
     /**
@@ -150,7 +192,7 @@ abstract public class NetworkProtocol extends Thread {
             if (buffer.size() < bufferLimit || dropOneInvalidNPDU()) {
                 /** adds a packet to the buffer */
                 buffer.add(m);
-                bufferTimes.add(System.currentTimeMillis());
+                bufferTimes.add(SimClock.currentTimeMillis());
             } else { 
                 /** drops an invalid NPDU from buffer */
                 SimStatus.reportLocal.reportDroppedBufferNetworkMessage(nodeID,m.getData(),buffer.size());
@@ -211,6 +253,51 @@ abstract public class NetworkProtocol extends Thread {
         bufferOcupationValues.add(buffer.size());
     }
 
+    /**
+     * Writes the state of the protocol (the buffer, with the times when the 
+     * packets were stored, and the history), to resume it in another 
+     * LocalCoordinator. The protocols with more state override it, writing 
+     * their own after this one.
+     * 
+     * @param out the stream where the state is written
+     * @throws IOException if an error occurs
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        synchronized (buffer) {
+            out.writeInt(buffer.size());
+            for (int i = 0; i < buffer.size(); i++) {
+                out.writeUTF(buffer.get(i).getAllFields());
+                out.writeLong(bufferTimes.get(i));
+            }
+        }
+        synchronized (history) {
+            out.writeInt(history.size());
+            for (String h : history) {
+                out.writeUTF(h);
+            }
+        }
+    }
+    
+    /**
+     * Reads the state written by <code>writeState</code>.
+     * 
+     * @param in the stream from where the state is read
+     * @throws IOException if an error occurs
+     */
+    public void readState(DataInputStream in) throws IOException {
+        synchronized (buffer) {
+            for (int n = in.readInt(); n > 0; n--) {
+                buffer.add(new NPDU(in.readUTF()));
+                bufferTimes.add(in.readLong());
+            }
+        }
+        synchronized (history) {
+            for (int n = in.readInt(); n > 0; n--) {
+                history.add(in.readUTF());
+            }
+        }
+    }
+
     /**
      * Ends the protocol execution.
      */
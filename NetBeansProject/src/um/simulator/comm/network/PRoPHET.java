@@ -5,8 +5,11 @@
  */
 package um.simulator.comm.network;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -26,7 +29,9 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.comm.application.APDU;
 import um.simulator.comm.link.LinkLayer;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
+import um.simulator.core.SimThreads;
 
 /**
  * This class represents the PRoPHET protocol.
@@ -136,7 +141,7 @@ public class PRoPHET extends NetworkProtocol {
      */
     public PRoPHET(LinkLayer linkLayer, String id, int lineQueue) {
         super(linkLayer, id, lineQueue);
-        this.lastDecayTime = System.currentTimeMillis();
+        this.lastDecayTime = SimClock.currentTimeMillis();
         this.controlTTL = 3;
         this.protocolName = "PRoPHET";
         this.predictabilities = new ConcurrentHashMap();
@@ -158,7 +163,7 @@ public class PRoPHET extends NetworkProtocol {
     
         
         /** starts the neighbors manager thread */
-        neighborsManager.start();
+        SimThreads.start(neighborsManager);
         try {
             
             while (running) {
@@ -173,32 +178,8 @@ public class PRoPHET extends NetworkProtocol {
                         neighborsNotEmpty.await();
                         
                     }
-                    /** when a signal is received, locks neighbors again */
-                    neighborsLock.lock();
-                    try {
-                        for (Entry<String, PRoPHET_Neighbour> e : neighbors.entrySet()) {
-                            /** neighbour id */
-                            String key_id = e.getKey();
-                            /** neighbor values */
-                            PRoPHET_Neighbour value_n = e.getValue(); 
-                            Long lastStateUpdate = value_n.lastStateUpdate;
-                            Long currTime = System.currentTimeMillis();
-                            /** the delivery predictability is increased for the active neighbors nodes */
-                            directContactFormula(key_id);
-                            /** if elapsed time is smaller than timeoutState value */
-                            if ((currTime - lastStateUpdate) < timeoutState) {
-                                /** resends the packet acordingly to state (mandatory for hello) */
-                                if(value_n.state==1){
-                                    sendSummaryVector(key_id); 
-                                }
-                            } else {
-                                value_n.state = 1;
-                                value_n.lastStateUpdate = System.currentTimeMillis();
-                            }
-                        }
-                    } finally {
-                        neighborsLock.unlock();
-                    }
+                    /** when a signal is received, updates the neighbors */
+                    updateNeighbours();
                 } finally {
                     neighborsLock.unlock();
                 }
@@ -210,6 +191,74 @@ public class PRoPHET extends NetworkProtocol {
         }
     }
 
+    /**
+     * Starts the protocol and its neighbours manager: on their own threads or,
+     * if the local simulation runs on the <code>SimKernel</code>, as timed events.
+     */
+    @Override
+    public void startProtocol() {
+        if (SimStatus.kernel != null) {
+            SimStatus.kernel.schedule(neighborsManager::beaconTick, 0);
+            SimStatus.kernel.schedule(this::timerTick, 1000);
+        } else {
+            SimThreads.start(this);
+        }
+    }
+
+    /**
+     * Timer of the protocol when running on the <code>SimKernel</code>: 
+     * decays the predictabilities and, instead of waiting for a neighbour 
+     * to appear, returns until the next iteration if there is none.
+     * 
+     * @return the time, in milliseconds, until the next iteration, or -1 if
+     * the protocol has ended
+     */
+    @Override
+    public long timerTick() {
+        if (!running) {
+            neighborsManager.endManager();
+            return -1;
+        }
+        /** update predictabilities with decay formula */
+        decayDeliveryPreds();
+        if (!neighbors.isEmpty()) {
+            updateNeighbours();
+        }
+        return 1000;
+    }
+
+    /**
+     * Increases the delivery predictability of the active neighbours and 
+     * resends the summary vector to those in the HELLO state.
+     */
+    void updateNeighbours() {
+        neighborsLock.lock();
+        try {
+            for (Entry<String, PRoPHET_Neighbour> e : neighbors.entrySet()) {
+                /** neighbour id */
+                String key_id = e.getKey();
+                /** neighbor values */
+                PRoPHET_Neighbour value_n = e.getValue(); 
+                Long lastStateUpdate = value_n.lastStateUpdate;
+                Long currTime = SimClock.currentTimeMillis();
+                /** the delivery predictability is increased for the active neighbors nodes */
+                directContactFormula(key_id);
+                /** if elapsed time is smaller than timeoutState value */
+                if ((currTime - lastStateUpdate) < timeoutState) {
+                    /** resends the packet acordingly to state (mandatory for hello) */
+                    if(value_n.state==1){
+                        sendSummaryVector(key_id); 
+                    }
+                } else {
+                    value_n.state = 1;
+                    value_n.lastStateUpdate = SimClock.currentTimeMillis();
+                }
+            }
+        } finally {
+            neighborsLock.unlock();
+        }
+    }
+
     /**
      * Ages all predictablities with decay formula over time.
      * Predictabilities decay <code>gamma</code> to the power of <code>elapsedTimeUnits</code>
@@ -220,7 +269,7 @@ public class PRoPHET extends NetworkProtocol {
         /** lock can block the thread, so cant check time before lock */
         predLock.lock(); 
         try {   
-            long currTime = System.currentTimeMillis();
+            long currTime = SimClock.currentTimeMillis();
             long elapsedTime = currTime - lastDecayTime;
             int elapsedTimeUnits = (int) (elapsedTime/decayTimeUnit);
             /** if the updates were to close in time (less than decayTimeUnit), do nothing */
@@ -237,7 +286,7 @@ public class PRoPHET extends NetworkProtocol {
                 Double pNew = pOld * mult;
                 e.setValue(pNew);
             }
-            lastDecayTime = System.currentTimeMillis()-(elapsedTime%decayTimeUnit);
+            lastDecayTime = SimClock.currentTimeMillis()-(elapsedTime%decayTimeUnit);
             
         } finally {
             predLock.unlock();
@@ -390,7 +439,7 @@ public class PRoPHET extends NetworkProtocol {
                         trySendData(source);
                         /** updates neighbour to state 2 and timeout */
                         neighbour.state = 2;
-                        neighbour.lastStateUpdate = System.currentTimeMillis();
+                        neighbour.lastStateUpdate = SimClock.currentTimeMillis();
                     }
                 } finally {
                     neighborsLock.unlock();
@@ -455,7 +504,7 @@ public class PRoPHET extends NetworkProtocol {
                 bufferTime = bufferTimes.get(i);
                 npdu.updateTTL(bufferTime);
                 bufferTimes.remove(i);
-                bufferTimes.add(i, System.currentTimeMillis());
+                bufferTimes.add(i, SimClock.currentTimeMillis());
                 if (npdu.isValid_ttl()) {
                     String destAddress = npdu.getDestinationAddress();
                     /** if the neighbour is the destination of the message */
@@ -539,14 +588,14 @@ public class PRoPHET extends NetworkProtocol {
         }
         String data = "V" + pv;
 
-        NPDU npdu = new NPDU(nodeID, destAddress, System.currentTimeMillis() + "", "PRoPHET", controlTTL, data);
+        NPDU npdu = new NPDU(nodeID, destAddress, SimClock.currentTimeMillis() + "", "PRoPHET", controlTTL, data);
         linkLayer.sendFrame(npdu, destAddress);
     }
 
     @Override
     public void generatedDataPacket(String destAddress, APDU apdu){
         String data = "D," + apdu.getData();
-        NPDU npdu = new NPDU(nodeID, destAddress, System.currentTimeMillis() + "", "PRoPHET", TTL, data);
+        NPDU npdu = new NPDU(nodeID, destAddress, SimClock.currentTimeMillis() + "", "PRoPHET", TTL, data);
         /** adds the message to the list of active messages to be sent */
         addToBuffer(npdu);
         SimStatus.reportLocal.reportSentMessage(nodeID,3,npdu.getData(),buffer.size());
@@ -564,7 +613,7 @@ public class PRoPHET extends NetworkProtocol {
      */
     private void sendHelloPacket(String destAddress) {
         String data = "H," + nodeID;
-        NPDU npdu = new NPDU(nodeID, destAddress, System.currentTimeMillis() + "", "PRoPHET", this.controlTTL, data);
+        NPDU npdu = new NPDU(nodeID, destAddress, SimClock.currentTimeMillis() + "", "PRoPHET", this.controlTTL, data);
         linkLayer.sendFrame(npdu, destAddress); // destination is unicast
     }
 
@@ -574,8 +623,43 @@ public class PRoPHET extends NetworkProtocol {
      * @param npdu Packet to acknowledge
      */
     private void sendAck(NPDU npdu) {
-        NPDU n = new NPDU(nodeID, npdu.getSourceAddress(), System.currentTimeMillis() + "",
+        NPDU n = new NPDU(nodeID, npdu.getSourceAddress(), SimClock.currentTimeMillis() + "",
                 "PRoPHET", TTL, "C," + npdu.getId() + npdu.getSourceAddress());
         linkLayer.sendFrame(n, n.getDestinationAddress());
     }
+
+    /**
+     * Writes the state of the protocol, with the delivery predictabilities 
+     * and the time of their last decay. The neighbours are not written: they 
+     * are found again by the beacons.
+     */
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        predLock.lock();
+        try {
+            out.writeLong(lastDecayTime);
+            out.writeInt(predictabilities.size());
+            for (Entry<String, Double> e : predictabilities.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeDouble(e.getValue());
+            }
+        } finally {
+            predLock.unlock();
+        }
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        predLock.lock();
+        try {
+            lastDecayTime = in.readLong();
+            for (int n = in.readInt(); n > 0; n--) {
+                predictabilities.put(in.readUTF(), in.readDouble());
+            }
+        } finally {
+            predLock.unlock();
+        }
+    }
 }
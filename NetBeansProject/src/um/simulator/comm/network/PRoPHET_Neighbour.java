@@ -6,6 +6,7 @@
 package um.simulator.comm.network;
 
 import java.util.HashMap;
+import um.simulator.core.SimClock;
 
 /** This Object represents an active Neighbor from <code>PRoPHET</code> protocol.
  * It's used by <code>PRoPHET_NeighboursManager</code>.
@@ -35,7 +36,7 @@ public class PRoPHET_Neighbour {
      * @param address a destination address
      */
     PRoPHET_Neighbour(String address) {
-        long currT = System.currentTimeMillis();
+        long currT = SimClock.currentTimeMillis();
         this.lastStateUpdate = currT;
         this.lastTimeSeen = currT;
         this.address = address;
@@ -12,6 +12,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.comm.link.LinkLayer;
+import um.simulator.core.SimClock;
 
 /** This class manages the neighbours of a node by sending and receiving BEACONS.
  * It updates the neighbours list for the network protocol.
@@ -63,19 +64,34 @@ public class PRoPHET_NeighboursManager extends Thread {
     @Override
     public void run() {
         
-        while (running) {
-            /** checks neigbours timeout */
-            timeoutNeighbors();
-            /** broadcasts BEACON */
-            broadcastBeacon();
+        long delay;
+        while ((delay = beaconTick()) >= 0) {
             try {
-                Thread.sleep(beacon_interval);
+                Thread.sleep(delay);
             } catch (InterruptedException ex) {
                 Logger.getLogger(Epidemic.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
     }
 
+    /**
+     * Checks the neighbours timeout and broadcasts a beacon.
+     * Used by <code>run()</code> and by the <code>SimKernel</code>.
+     *
+     * @return the time, in milliseconds, until the next beacon, or -1 if the
+     * manager has ended
+     */
+    public long beaconTick() {
+        if (!running) {
+            return -1;
+        }
+        /** checks neigbours timeout */
+        timeoutNeighbors();
+        /** broadcasts BEACON */
+        broadcastBeacon();
+        return beacon_interval;
+    }
+
     /**
      * Broadcasts a beacon to radio interface.
      *
@@ -83,7 +99,7 @@ public class PRoPHET_NeighboursManager extends Thread {
      */
     private void broadcastBeacon() {
         String data = "B," + nodeID;
-        long currTime = System.currentTimeMillis();
+        long currTime = SimClock.currentTimeMillis();
         NPDU npdu = new NPDU(nodeID, "Broadcast", currTime+"", "PRoPHET", 2, data);
         linkLayer.sendFrame(npdu, "Broadcast");
     }
@@ -98,7 +114,7 @@ public class PRoPHET_NeighboursManager extends Thread {
             Iterator<String> it = neighbors.keySet().iterator();
             while(it.hasNext()){
                 String key_id = it.next();
-                long curr_time = System.currentTimeMillis();
+                long curr_time = SimClock.currentTimeMillis();
                 long updt_time = neighbors.get(key_id).lastTimeSeen;
                 long diff = curr_time - updt_time;
                 if (diff > timeout_value) {
@@ -133,7 +149,7 @@ public class PRoPHET_NeighboursManager extends Thread {
             } else { 
                 /** if the node is already a neighbour, updates the timeout */
                 ns = neighbors.get(id);
-                ns.lastTimeSeen = System.currentTimeMillis();
+                ns.lastTimeSeen = SimClock.currentTimeMillis();
                 neighbors.put(id, ns);
             }
         } finally {
@@ -5,6 +5,9 @@
 */
 package um.simulator.comm.network;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -12,6 +15,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.comm.application.APDU;
 import um.simulator.comm.link.LinkLayer;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
 
 /** This class represents the Spray and Wait protocol.
@@ -22,6 +26,9 @@ import um.simulator.core.SimStatus;
  * @version 1.0
  */
 public class SprayAndWait extends NetworkProtocol {
+
+    /** counter of timer iterations */
+    int timerCycles = 0;
     
     /** number of confirmations received for each message which origin is this node */
     HashMap<String, Integer> nConfirmations = new HashMap<>(); 
@@ -42,34 +49,31 @@ public class SprayAndWait extends NetworkProtocol {
     }
     
     @Override
-    public void run() {
-        int i = 0;
-        while (running) {
-            synchronized (buffer) {
-                i++; 
-                if (i > 4) {
-                    /** when the counter reaches TTL/4 sends the messages in the cache */
-                    try {
-                        /** sends the messages in the waitLine */
-                        sendDownQueue(); 
-                    } catch (ParseException ex) {
-                        Logger.getLogger(Epidemic.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                    i = 0; 
-                }
+    public long timerTick() {
+        if (!running) {
+            return -1;
+        }
+        synchronized (buffer) {
+            timerCycles++;
+            /** TTL removed from cicle */
+            if (timerCycles > 4) {
+                /** when the counter reaches TTL/4 sends the messages in the cache */
                 try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ex) {
+                    /** sends messages in the waitLine */
+                    sendDownQueue();
+                } catch (ParseException ex) {
                     Logger.getLogger(Epidemic.class.getName()).log(Level.SEVERE, null, ex);
                 }
+                timerCycles = 0;
             }
         }
+        return 1000;
     }
 
     @Override
     public void generatedDataPacket(String destAddress, APDU apdu){
         /** creates the NPDU */
-        NPDU npdu = new NPDU(nodeID, destAddress, System.currentTimeMillis() + "", "SprayAndWait", TTL, apdu.getData());
+        NPDU npdu = new NPDU(nodeID, destAddress, SimClock.currentTimeMillis() + "", "SprayAndWait", TTL, apdu.getData());
         /** it's in the first phase, so it's destination is broadcast */
         linkLayer.sendFrame(npdu, "Broadcast"); 
         /** adds to the confirmation array an entry containing the id of 
@@ -136,7 +140,7 @@ public class SprayAndWait extends NetworkProtocol {
             /** if isn't the final destination, the NPDU is added to the buffer and
             * is sent a message confirming the reception of the message */
             /** confirmation of the reception of NPDU */
-            NPDU aux = new NPDU(nodeID, sourceAdd, System.currentTimeMillis() + "",
+            NPDU aux = new NPDU(nodeID, sourceAdd, SimClock.currentTimeMillis() + "",
                     "SprayAndWait", TTL, "conf:" + npdu.getId() + sourceAdd);
             linkLayer.sendFrame(aux, aux.getDestinationAddress());
             addToBuffer(npdu);
@@ -189,5 +193,28 @@ public class SprayAndWait extends NetworkProtocol {
     public void sendDataPacket(NPDU npdu, String destAddress){
         this.linkLayer.sendFrame(npdu, destAddress);
     }
-    
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        out.writeInt(timerCycles);
+        synchronized (nConfirmations) {
+            out.writeInt(nConfirmations.size());
+            for (String key : nConfirmations.keySet()) {
+                out.writeUTF(key);
+                out.writeInt(nConfirmations.get(key));
+            }
+        }
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        timerCycles = in.readInt();
+        synchronized (nConfirmations) {
+            for (int n = in.readInt(); n > 0; n--) {
+                nConfirmations.put(in.readUTF(), in.readInt());
+            }
+        }
+    }
 }
@@ -4,11 +4,14 @@
  */
 package um.simulator.comm.physical;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import um.simulator.actor.Actor;
-import um.simulator.actor.ActorPositionTimestamp;
 import um.simulator.comm.link.LinkLayer;
 import um.simulator.comm.network.NPDU;
+import um.simulator.core.Inbox;
 import um.simulator.core.SimStatus;
 
 /**
@@ -21,6 +24,10 @@ public class BluetoothProtocol extends PhyProtocol {
     
     static int RANGE = 999999999;
     ArrayList<PPDU> buffer;
+    /** position of the actor in the broadcasts of the local actors */
+    BroadcastLog.Cursor cursor;
+    /** messages sent to the actor */
+    Inbox inbox;
     
     /**
      * Constructor: creates a Bluetooth Protocol.
@@ -31,6 +38,8 @@ public class BluetoothProtocol extends PhyProtocol {
     public BluetoothProtocol(Actor actor, LinkLayer link) {
         super(actor,link);
         buffer = new ArrayList<PPDU>();
+        cursor = SimStatus.broadcasts.open(actor.getActorId());
+        inbox = SimStatus.inboxes.open(actor.getActorId());
     }
     /**
      * Updates Physical Layer.
@@ -38,51 +47,38 @@ public class BluetoothProtocol extends PhyProtocol {
     public void update(){
         ArrayList <PPDU> frames =  new ArrayList <PPDU>();
         
-        synchronized(SimStatus.globalMessages.get(actor.getActorId())){
-            
-            int i = 0;
-            while(i<SimStatus.globalMessages.get(actor.getActorId()).size()){
-                
-                PPDU m = SimStatus.globalMessages.get(actor.getActorId()).get(i);
-                double distance;
-                   
-                    /** remove message if it's already sent or it's broadcast */
-                    if(m.isSent() || m.getDestination_id().equals("Broadcast")){
-                        distance = verifyMessageReception(m);
-                        if(distance==-1){
-                            frames.add(m);
-                            SimStatus.globalMessages.get(actor.getActorId()).remove(i);
-                        }
-                        else{
-                            SimStatus.globalMessages.get(actor.getActorId()).remove(i);
-                        }
-                    }
-                    else {
-                        if(!m.isRead()){
-                            distance = verifyMessageReception(m);
-                            if(distance==-1){
-                                frames.add(m);
-                            }
-                            else{
-                                
-                            }
-                            
-                            m.setRead(true);
-                        }
-                        i++;
-                    }
-                
-                
+        /** the broadcasts, read from the log */
+        ArrayList <PPDU> candidates = new ArrayList <PPDU>();
+        SimStatus.broadcasts.read(cursor, candidates);
+        for(PPDU m : candidates){
+            actor.messageProcessed(m);
+        }
+        
+        /** takes the messages of the inbox */
+        for(PPDU m = inbox.poll(); m != null; m = inbox.poll()){
+            actor.messageProcessed(m);
+            candidates.add(m);
+            /** a message from a local actor, not yet sent to the other nodes, is sent after being read */
+            if(!m.isSent() && !m.getDestination_id().equals("Broadcast")){
+                m.setRead(true);
+                SimStatus.sendToNodes(m);
+            }
+        }
+        
+        /** tests the range of all of them at once; the distance is weighted by 0.85 */
+        boolean[] received = receiveFrames(candidates, RANGE / 0.85, 0);
+        for(int i = 0; i < candidates.size(); i++){
+            if(received[i]){
+                frames.add(candidates.get(i));
             }
-            if (!frames.isEmpty()) {
+        }
+        if (!frames.isEmpty()) {
             ArrayList<NPDU> frames2 = new ArrayList<>();
             for (PPDU p : frames) {
                 frames2.add(new NPDU(p.getData()));
             }
             linkLayer.sendFramesUp(frames2);
         }
-
-        }
         
     }
     
@@ -101,50 +97,22 @@ public class BluetoothProtocol extends PhyProtocol {
             if(m.getDestination_id().equals("Broadcast")){
                 SimStatus.addBroadcastMessage(m);                
             }else{
-                if(!SimStatus.globalMessages.containsKey(m.getDestination_id())){
-                    SimStatus.globalMessages.put(m.getDestination_id(), new ArrayList<PPDU>());
-                }
-                synchronized(SimStatus.globalMessages.get(m.getDestination_id())){  
-                    SimStatus.globalMessages.get(m.getDestination_id()).add(m);
-                }
+                SimStatus.inboxes.open(m.getDestination_id()).add(m);
             }
         }
         buffer.clear();
     }
     
-    /**
-     * Checks if the actor sending the ppdu is in range.
-     * 
-     * @param message the ppdu being sent
-     * @return the distance to the actor
-     */
-    public double verifyMessageReception(PPDU message){
-        
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        writeFrames(out, buffer);
+    }
 
-        ArrayList<ActorPositionTimestamp> position_history = new ArrayList(this.actor.getPositionHistory());
-        ActorPositionTimestamp tempaps = position_history.get(0);
-        
-        for(ActorPositionTimestamp aps : position_history){
-            if(Math.abs(aps.getTime_stamp()-message.getTime_stamp()) <= Math.abs(tempaps.getTime_stamp()-message.getTime_stamp())){
-                
-                tempaps = aps; 
-            }
-            else{
-               
-                double distance = (Math.sqrt(Math.pow( (tempaps.getActor_x()-message.getActor_x()),2) + Math.pow((tempaps.getActor_y()-message.getActor_y()) ,2))) *0.85;
-                if(distance < RANGE ){
-                    return -1;
-  
-                }
-                else{
-                    return distance;
-                }
-            }
-            
-        }        
-        return -1;
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        readFrames(in, buffer);
     }
-     
+    
 
     
 }
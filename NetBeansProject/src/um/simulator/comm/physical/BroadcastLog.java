@@ -0,0 +1,200 @@
+package um.simulator.comm.physical;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * This class keeps the broadcast frames of a LocalCoordinator, each stored
+ * once, in an append-only log ordered by the time they were sent, instead of
+ * a copy in the list of messages of each local actor.
+ *
+ * Each receiver (the physical protocol of a local actor) has a cursor, with
+ * a slot: the receivers of a frame are the set of their slots (a
+ * <code>BitSet</code>), or all the receivers but the sender. A receiver
+ * reads the frames sent to it since its cursor, which moves past them; the
+ * frames are shared, and are not changed by the receivers. The frames that
+ * all the cursors passed are trimmed from the log every
+ * <code>TRIM_INTERVAL</code> frames.
+ *
+ * A new receiver gets the frames sent after it registers, so a slot is
+ * given again once its receiver is closed.
+ *
+ * @version 1.0
+ */
+public class BroadcastLog {
+
+    /** number of frames appended between the trims of the log */
+    static final int TRIM_INTERVAL = 256;
+
+    /** A frame in the log. */
+    static class Entry {
+        final PPDU frame;
+        /** the slots of the receivers; null for all the receivers but the sender */
+        final BitSet receivers;
+
+        Entry(PPDU frame, BitSet receivers) {
+            this.frame = frame;
+            this.receivers = receivers;
+        }
+    }
+
+    /** The position of a receiver in the log. */
+    public static class Cursor {
+        final String id;
+        final int slot;
+        /** position of the next frame to read */
+        long position;
+
+        Cursor(String id, int slot, long position) {
+            this.id = id;
+            this.slot = slot;
+            this.position = position;
+        }
+
+        /**
+         * @return the slot of the receiver, in the sets of receivers of the frames
+         */
+        public int getSlot() {
+            return slot;
+        }
+    }
+
+    final ArrayList<Entry> entries = new ArrayList<>();
+    /** position of the first entry */
+    long base = 0;
+    final HashMap<String, Cursor> cursors = new HashMap<>();
+    /** slots given to the receivers */
+    final BitSet slots = new BitSet();
+    int appended = 0;
+
+    /**
+     * Opens the cursor of a receiver, at the end of the log.
+     *
+     * @param id the id of the actor
+     * @return the cursor
+     */
+    public synchronized Cursor open(String id) {
+        Cursor cursor = cursors.get(id);
+        if (cursor == null) {
+            int slot = slots.nextClearBit(0);
+            slots.set(slot);
+            cursor = new Cursor(id, slot, base + entries.size());
+            cursors.put(id, cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Closes the cursor of a receiver, that died or moved away.
+     *
+     * @param id the id of the actor
+     * @return the frames sent to it that it did not read (empty if it has no cursor)
+     */
+    public synchronized ArrayList<PPDU> close(String id) {
+        ArrayList<PPDU> pending = new ArrayList<>();
+        Cursor cursor = cursors.remove(id);
+        if (cursor != null) {
+            collect(cursor, pending);
+            slots.clear(cursor.slot);
+        }
+        return pending;
+    }
+
+    /**
+     * Appends a broadcast frame to the log.
+     *
+     * @param frame the frame, which must not be changed afterwards
+     * @param receivers the slots of its receivers; null for all the receivers but the sender
+     */
+    public synchronized void append(PPDU frame, BitSet receivers) {
+        entries.add(new Entry(frame, receivers));
+        if (++appended >= TRIM_INTERVAL) {
+            appended = 0;
+            trim();
+        }
+    }
+
+    /**
+     * Appends a broadcast frame to the log, for all the receivers but the 
+     * sender and some others.
+     *
+     * @param frame the frame, which must not be changed afterwards
+     * @param excluded the ids of the actors that do not receive it
+     */
+    public synchronized void appendExcept(PPDU frame, Set<String> excluded) {
+        BitSet receivers = new BitSet();
+        for (Cursor cursor : cursors.values()) {
+            if (!cursor.id.equals(frame.getSource_id()) && !excluded.contains(cursor.id)) {
+                receivers.set(cursor.slot);
+            }
+        }
+        append(frame, receivers);
+    }
+
+    /**
+     * Appends a frame to the log for one receiver only, e.g. a frame
+     * received by an actor before it moved here, which it did not read.
+     *
+     * @param frame the frame, which must not be changed afterwards
+     * @param id the id of the actor that receives it
+     * @return false if the actor has no cursor (the frame is not appended)
+     */
+    public synchronized boolean appendTo(PPDU frame, String id) {
+        Cursor cursor = cursors.get(id);
+        if (cursor == null) {
+            return false;
+        }
+        BitSet receivers = new BitSet();
+        receivers.set(cursor.slot);
+        append(frame, receivers);
+        return true;
+    }
+
+    /**
+     * Reads the frames sent to a receiver since its cursor, which moves past them.
+     *
+     * @param cursor the cursor of the receiver
+     * @param frames the list where the frames are added
+     */
+    public synchronized void read(Cursor cursor, ArrayList<PPDU> frames) {
+        collect(cursor, frames);
+    }
+
+    /**
+     * @return the number of frames in the log
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Adds the frames of a receiver since its cursor, and moves it to the end.
+     */
+    private void collect(Cursor cursor, ArrayList<PPDU> frames) {
+        long end = base + entries.size();
+        for (long p = Math.max(cursor.position, base); p < end; p++) {
+            Entry e = entries.get((int) (p - base));
+            if (e.receivers == null ? !e.frame.getSource_id().equals(cursor.id) : e.receivers.get(cursor.slot)) {
+                frames.add(e.frame);
+            }
+        }
+        cursor.position = end;
+    }
+
+    /**
+     * Removes the frames that all the cursors passed.
+     */
+    private void trim() {
+        long min = base + entries.size();
+        for (Cursor cursor : cursors.values()) {
+            min = Math.min(min, cursor.position);
+        }
+        int passed = (int) (min - base);
+        if (passed > 0) {
+            entries.subList(0, passed).clear();
+            base = min;
+        }
+    }
+}
@@ -5,19 +5,45 @@
  */
 package um.simulator.comm.physical;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 import um.simulator.actor.Actor;
+import um.simulator.actor.ActorPositionTimestamp;
 import um.simulator.comm.link.LinkLayer;
 import um.simulator.comm.network.NPDU;
 
 /**
  * This class represents a generic physical protocol.
  * 
+ * The reception of the frames is evaluated in batches 
+ * (<code>receiveBatch</code>), on primitive arrays: the position of the 
+ * actor at the time of each frame is taken from a copy of its position 
+ * history, made once per batch, and the squared distances and the samples 
+ * of the frame error rate are computed in plain loops, which the JIT can 
+ * vectorize. The arrays are kept between the batches; they are used only by 
+ * the thread updating the protocol.
+ * 
  * @author luisacabs
  * @version 1.0
  */
 public class PhyProtocol {
     public Actor actor;
     public LinkLayer linkLayer;
+    Random random = new Random();
+    /** the frames of a batch: time stamps and positions of the senders */
+    long[] batchTimes = new long[0];
+    double[] batchX = new double[0], batchY = new double[0];
+    boolean[] batchReceived = new boolean[0];
+    /** the position of the actor at the time of each frame, and the samples of the frame error rate */
+    double[] receiverX = new double[0], receiverY = new double[0];
+    float[] samples = new float[0];
+    /** copy of the position history of the actor */
+    long[] historyTimes = new long[0];
+    double[] historyX = new double[0], historyY = new double[0];
     
     /**
      * Constructor: creates a generic physical protocol.
@@ -48,4 +74,151 @@ public class PhyProtocol {
      */
     public void update() {
     }
+    /**
+     * Writes the frames waiting to be sent, to resume the protocol in 
+     * another LocalCoordinator.
+     * 
+     * @param out the stream where the state is written
+     * @throws IOException if an error occurs
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(0);
+    }
+    /**
+     * Reads the state written by <code>writeState</code>.
+     * 
+     * @param in the stream from where the state is read
+     * @throws IOException if an error occurs
+     */
+    public void readState(DataInputStream in) throws IOException {
+        in.readInt();
+    }
+    /**
+     * Evaluates the reception of a batch of frames by the actor: a frame is 
+     * received if the actor was within <code>range</code> of its sender 
+     * when it was sent, and it was not lost.
+     * 
+     * @param times the time stamps of the frames
+     * @param xs the x coordinates of the senders
+     * @param ys the y coordinates of the senders
+     * @param n the number of frames
+     * @param range the largest distance of a frame received
+     * @param fer the frame error rate (0 if no frame is lost)
+     * @param received set to true for the frames received, false for the others
+     */
+    public void receiveBatch(long[] times, double[] xs, double[] ys, int n, double range, double fer, boolean[] received) {
+        if (n == 0) {
+            return;
+        }
+        if (receiverX.length < n) {
+            int size = Math.max(n, 2 * receiverX.length);
+            receiverX = new double[size];
+            receiverY = new double[size];
+            samples = new float[size];
+        }
+        int h = copyHistory();
+        /** the position of the actor closest to the time of each frame (the latest one on ties) */
+        for (int i = 0; i < n; i++) {
+            int best = -1;
+            long bestDif = Long.MAX_VALUE;
+            for (int j = 0; j < h; j++) {
+                long dif = Math.abs(historyTimes[j] - times[i]);
+                if (dif <= bestDif) {
+                    best = j;
+                    bestDif = dif;
+                }
+            }
+            receiverX[i] = best < 0 ? actor.getX() : historyX[best];
+            receiverY[i] = best < 0 ? actor.getY() : historyY[best];
+        }
+        if (fer > 0) {
+            for (int i = 0; i < n; i++) {
+                samples[i] = random.nextFloat();
+            }
+        } else {
+            Arrays.fill(samples, 0, n, 0f);
+        }
+        double range2 = range * range;
+        for (int i = 0; i < n; i++) {
+            double dx = xs[i] - receiverX[i];
+            double dy = ys[i] - receiverY[i];
+            received[i] = dx * dx + dy * dy < range2 & fer <= samples[i];
+        }
+    }
+    /**
+     * Evaluates the reception of a list of frames (see <code>receiveBatch</code>).
+     * 
+     * @param frames the frames
+     * @param range the largest distance of a frame received
+     * @param fer the frame error rate (0 if no frame is lost)
+     * @return true for the frames received, in the order of the list (valid until the next batch)
+     */
+    boolean[] receiveFrames(ArrayList<PPDU> frames, double range, double fer) {
+        int n = frames.size();
+        if (batchTimes.length < n) {
+            int size = Math.max(n, 2 * batchTimes.length);
+            batchTimes = new long[size];
+            batchX = new double[size];
+            batchY = new double[size];
+            batchReceived = new boolean[size];
+        }
+        for (int i = 0; i < n; i++) {
+            PPDU m = frames.get(i);
+            batchTimes[i] = m.getTime_stamp();
+            batchX[i] = m.getActor_x();
+            batchY[i] = m.getActor_y();
+        }
+        receiveBatch(batchTimes, batchX, batchY, n, range, fer, batchReceived);
+        return batchReceived;
+    }
+    /**
+     * Copies the position history of the actor to the history arrays.
+     * 
+     * @return the number of positions
+     */
+    private int copyHistory() {
+        ArrayList<ActorPositionTimestamp> history = actor.getPositionHistory();
+        synchronized (history) {
+            int h = history.size();
+            if (historyTimes.length < h) {
+                historyTimes = new long[h];
+                historyX = new double[h];
+                historyY = new double[h];
+            }
+            for (int j = 0; j < h; j++) {
+                ActorPositionTimestamp apt = history.get(j);
+                historyTimes[j] = apt.getTime_stamp();
+                historyX[j] = apt.getActor_x();
+                historyY[j] = apt.getActor_y();
+            }
+            return h;
+        }
+    }
+    /**
+     * Writes a list of frames waiting to be sent.
+     * 
+     * @param out the stream where the frames are written
+     * @param frames the frames
+     * @throws IOException if an error occurs
+     */
+    static void writeFrames(DataOutputStream out, ArrayList<PPDU> frames) throws IOException {
+        out.writeInt(frames.size());
+        for (PPDU m : frames) {
+            out.writeUTF(m.toStringToPacket());
+        }
+    }
+    /**
+     * Reads a list of frames written by <code>writeFrames</code>.
+     * 
+     * @param in the stream from where the frames are read
+     * @param frames the list where the frames are added
+     * @throws IOException if an error occurs
+     */
+    static void readFrames(DataInputStream in, ArrayList<PPDU> frames) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            PPDU m = new PPDU(in.readUTF());
+            m.setSent(false);
+            frames.add(m);
+        }
+    }
 }
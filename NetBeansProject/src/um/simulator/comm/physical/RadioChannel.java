@@ -0,0 +1,219 @@
+package um.simulator.comm.physical;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import um.simulator.actor.ActorStatus;
+import um.simulator.core.SimClock;
+import um.simulator.core.SimStatus;
+import um.simulator.map.CoordinatesHelper;
+
+/**
+ * This class is the radio channel of the WAVE frames of a LocalCoordinator:
+ * it decides, once per broadcast frame, which local actors receive it, and
+ * delivers it only to them, through the <code>BroadcastLog</code>.
+ *
+ * The receivers of a frame are found in the spatial index of the actors
+ * (<code>SimStatus.getActorsInRange</code>), around the position of the sender
+ * when the frame is transmitted, within the largest range of the local
+ * receivers. Each of them receives the frame if it is within its own range
+ * (<code>PHYTxRange</code>) and the frame is not lost, with its frame error
+ * rate. The frame is appended once to the log with the set of its
+ * receivers, and <code>WAVEProtocol.update</code> passes it up without
+ * testing it again. The frames broadcast by the actors of the other
+ * LocalCoordinators go through the channel when they are received.
+ *
+ * The frames of the local actors take time on the air: each one is
+ * scheduled on the timeline of the channel when it is transmitted, and
+ * delivered when its transmission ends. A frame starts when its sender is
+ * free (after its previous frame) and the channel is free around it: the
+ * channel is divided in square areas as wide as the largest range, and the
+ * frame waits for the transmissions in its area and in the eight around it
+ * to end, which models the contention between nearby transmitters as a
+ * queueing delay. The frames whose transmission ended are delivered by the
+ * next transmission or update of a local actor (<code>deliverDue</code>);
+ * no thread waits for them. The times on the timeline are in microseconds
+ * of the simulation clock.
+ *
+ * The actors moving to this LocalCoordinator (see
+ * <code>SimStatus.registerIncomingActor</code>) get a copy of every frame in
+ * their list of messages instead, and test it when they arrive, until their
+ * receiver is ready (<code>SimStatus.actorArrived</code>).
+ *
+ * @version 1.0
+ */
+public class RadioChannel {
+
+    /** the WAVE protocols of the local actors, by actor id */
+    final ConcurrentHashMap<String, WAVEProtocol> receivers = new ConcurrentHashMap<>();
+    /** largest range of the receivers */
+    volatile double maxRange = 0;
+
+    /** A frame on the air, delivered when its transmission ends. */
+    static class Transmission implements Comparable<Transmission> {
+        final long end;
+        final long order;
+        final PPDU frame;
+
+        Transmission(long end, long order, PPDU frame) {
+            this.end = end;
+            this.order = order;
+            this.frame = frame;
+        }
+
+        @Override
+        public int compareTo(Transmission t) {
+            return end != t.end ? Long.compare(end, t.end) : Long.compare(order, t.order);
+        }
+    }
+
+    /** width of the areas of the channel when there are no receivers, in meters */
+    static final double DEFAULT_AREA = 100;
+    /** number of areas above which the areas that are free are forgotten */
+    static final int MAX_AREAS = 4096;
+
+    /** the frames on the air, by the end of their transmission (guarded by this) */
+    final PriorityQueue<Transmission> onAir = new PriorityQueue<>();
+    /** the time each area of the channel is busy until (guarded by this) */
+    final HashMap<Long, Long> busyUntil = new HashMap<>();
+    long transmissions = 0;
+
+    /**
+     * Registers the WAVE protocol of a local actor as a receiver.
+     *
+     * @param id the id of the actor
+     * @param receiver its WAVE protocol
+     */
+    public void register(String id, WAVEProtocol receiver) {
+        receivers.put(id, receiver);
+        synchronized (this) {
+            maxRange = Math.max(maxRange, receiver.RANGE);
+        }
+        /** the cells of the index searched are as large as the range */
+        SimStatus.registerRange(receiver.RANGE);
+    }
+
+    /**
+     * Removes the receiver of an actor that died or moved away.
+     *
+     * @param id the id of the actor
+     */
+    public void unregister(String id) {
+        receivers.remove(id);
+    }
+
+    /**
+     * Transmits a frame of a local actor: schedules it on the timeline of the
+     * channel, and delivers the frames whose transmission ended. The time
+     * stamp of the frame becomes the end of its transmission.
+     *
+     * @param m the frame, with the position of the sender
+     * @param sender the WAVE protocol of the sender
+     * @param airtime the duration of the transmission, in microseconds
+     */
+    public void transmit(PPDU m, WAVEProtocol sender, long airtime) {
+        long now = SimClock.currentTimeMillis() * 1000;
+        synchronized (this) {
+            double area = maxRange > 0 ? maxRange : DEFAULT_AREA;
+            long col = (long) Math.floor(m.getActor_x() / area);
+            long row = (long) Math.floor(m.getActor_y() / area);
+            /** waits for the sender and for the transmissions around it */
+            long start = Math.max(now, sender.nextFree);
+            for (long c = col - 1; c <= col + 1; c++) {
+                for (long r = row - 1; r <= row + 1; r++) {
+                    Long busy = busyUntil.get(areaKey(c, r));
+                    if (busy != null) {
+                        start = Math.max(start, busy);
+                    }
+                }
+            }
+            long end = start + airtime;
+            if (busyUntil.size() > MAX_AREAS) {
+                busyUntil.values().removeIf(busy -> busy <= now);
+            }
+            busyUntil.put(areaKey(col, row), end);
+            sender.nextFree = end;
+            /** rounds up to the millisecond */
+            m.setTime_stamp((end + 999) / 1000);
+            onAir.add(new Transmission(end, transmissions++, m));
+        }
+        deliverDue();
+    }
+
+    /**
+     * Delivers the frames whose transmission ended, in the order they ended.
+     */
+    public void deliverDue() {
+        /** the clock counts milliseconds: a frame ending within the current one is due */
+        long due = SimClock.currentTimeMillis() * 1000 + 999;
+        ArrayList<PPDU> ended;
+        synchronized (this) {
+            if (onAir.isEmpty() || onAir.peek().end > due) {
+                return;
+            }
+            ended = new ArrayList<>();
+            while (!onAir.isEmpty() && onAir.peek().end <= due) {
+                ended.add(onAir.poll().frame);
+            }
+        }
+        for (PPDU m : ended) {
+            if (m.getDestination_id().equals("Broadcast")) {
+                deliver(m);
+                SimStatus.addBroadcastToNodes(m);
+            } else {
+                SimStatus.inboxes.open(m.getDestination_id()).add(m);
+            }
+        }
+    }
+
+    /**
+     * @return the key of an area of the channel
+     */
+    static long areaKey(long col, long row) {
+        return (col << 32) ^ (row & 0xffffffffL);
+    }
+
+    /**
+     * Delivers a broadcast frame received from another node to the local
+     * actors that receive it.
+     *
+     * @param m the frame, with the position of the sender
+     */
+    public void receive(PPDU m) {
+        deliver(m);
+    }
+
+    /**
+     * Delivers a frame to the receivers in range, and to the incoming actors.
+     */
+    void deliver(PPDU m) {
+        double x = m.getActor_x(), y = m.getActor_y();
+        HashMap<String, ActorStatus> inRange = SimStatus.getActorsInRange(x, y, maxRange);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        /** the incoming actors get a copy, even if their receiver is registered */
+        HashSet<String> incoming = SimStatus.getIncomingActors();
+        /** the actors that moved here, to which the frame was delivered before */
+        HashSet<String> delivered = SimStatus.getDeliveredBefore(m);
+        BitSet slots = new BitSet();
+        for (ActorStatus as : inRange.values()) {
+            WAVEProtocol receiver = receivers.get(as.getActorId());
+            if (receiver == null || as.getActorId().equals(m.getSource_id())
+                    || (incoming != null && incoming.contains(as.getActorId()))
+                    || (delivered != null && delivered.contains(as.getActorId()))) {
+                continue;
+            }
+            double distance = Math.sqrt(CoordinatesHelper.distanceSquare(as.getActor_x(), as.getActor_y(), x, y));
+            if (distance < receiver.RANGE && receiver.FER <= random.nextFloat()) {
+                slots.set(receiver.cursor.getSlot());
+            }
+        }
+        if (!slots.isEmpty()) {
+            SimStatus.broadcasts.append(m, slots);
+        }
+        SimStatus.addToIncomingActors(m, incoming);
+    }
+}
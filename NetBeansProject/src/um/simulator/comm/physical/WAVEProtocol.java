@@ -4,17 +4,17 @@
  */
 package um.simulator.comm.physical;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Random;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import um.simulator.actor.Actor;
-import um.simulator.actor.ActorPositionTimestamp;
 import um.simulator.comm.link.LinkLayer;
 import um.simulator.comm.network.NPDU;
+import um.simulator.core.Inbox;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
-import um.simulator.map.CoordinatesHelper;
 
 /**
  * This class represents an abstraction of the 802.11p protocol from the WAVE standard.
@@ -29,7 +29,12 @@ public class WAVEProtocol extends PhyProtocol {
     ArrayList<PPDU> buffer;
     int RANGE; 
     double FER; 
-    Random random = new Random();
+    /** position of the actor in the broadcasts of the radio channel */
+    BroadcastLog.Cursor cursor;
+    /** messages sent to the actor */
+    Inbox inbox;
+    /** end of the last transmission of the actor on the radio channel, in microseconds (guarded by the channel) */
+    long nextFree = 0;
     
     /**
      * Constructor: creates a 802.11p Protocol.
@@ -52,7 +57,9 @@ public class WAVEProtocol extends PhyProtocol {
         this.transmRateKBps = transmRateKbps/8;
         this.RANGE = PHYTxRange;
         this.FER = FER;
-        
+        cursor = SimStatus.broadcasts.open(actor.getActorId());
+        inbox = SimStatus.inboxes.open(actor.getActorId());
+        SimStatus.radio.register(actor.getActorId(), this);
     }
 
     /**
@@ -63,43 +70,33 @@ public class WAVEProtocol extends PhyProtocol {
      */
     @Override
     public synchronized void sendFrame(NPDU npdu, String destAddres) {
-        PPDU ppdu = new PPDU(System.currentTimeMillis(), actor.getActorId(),
+        PPDU ppdu = new PPDU(SimClock.currentTimeMillis(), actor.getActorId(),
                 destAddres, 'W', actor.getX(), actor.getY(), npdu.getAllFields());
         buffer.add(ppdu);
         SimStatus.reportLocal.reportSentMessage(actor.getActorId(),1,ppdu.getData(),-5);
     }
 
     /**
-     * Places the ppdus into their respective destination buffer.
+     * Transmits the ppdus on the radio channel, which delivers them when 
+     * their transmission ends: the broadcasts only to the actors in range, 
+     * the others to their destination buffer.
      */
     @Override
-    public synchronized void flushFrames() {
-        for (PPDU m : buffer) {
-            byte[] size = m.toString().getBytes();
-            /** time in milliseconds */
-            int transmitionTime = size.length / (transmRateKBps); 
-            if (transmitionTime > 0.5) {
-                try {
-                    Thread.sleep((long) transmitionTime);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(WAVEProtocol.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-            m.setTime_stamp(System.currentTimeMillis());
+    public void flushFrames() {
+        /** takes the pending frames, so that the lock is not held while transmitting */
+        ArrayList<PPDU> frames;
+        synchronized (this) {
+            frames = buffer;
+            buffer = new ArrayList<>();
+        }
+        for (PPDU m : frames) {
+            int size = m.toString().length();
+            /** time in microseconds (transmRateKBps is in bytes per millisecond) */
+            long transmitionTime = transmRateKBps > 0 ? size * 1000L / transmRateKBps : 0;
             m.setActor_x(actor.getX());
             m.setActor_y(actor.getY());
-            if (m.getDestination_id().equals("Broadcast")) {
-                SimStatus.addBroadcastMessage(m);
-            } else {
-                if (!SimStatus.globalMessages.containsKey(m.getDestination_id())) {
-                    SimStatus.globalMessages.put(m.getDestination_id(), new ArrayList<PPDU>());
-                }
-                synchronized (SimStatus.globalMessages.get(m.getDestination_id())) {
-                    SimStatus.globalMessages.get(m.getDestination_id()).add(m);
-                }
-            }
+            SimStatus.radio.transmit(m, this, transmitionTime);
         }
-        buffer.clear();
     }
 
     /** 
@@ -109,43 +106,40 @@ public class WAVEProtocol extends PhyProtocol {
     public void update() {
         
         flushFrames();
+        SimStatus.radio.deliverDue();
         
         ArrayList<PPDU> frames = new ArrayList<>();
-        ArrayList<PPDU> messagesFromActor;
-        synchronized (SimStatus.globalMessages.get(actor.getActorId())) {
-            messagesFromActor = SimStatus.globalMessages.get(actor.getActorId());
-            int i = 0;
-            while (i < messagesFromActor.size()) {
-                PPDU m = messagesFromActor.get(i);
-                if (m.getProtocol() == 'W') {
-                    double distance;
-                    float errorProbability = random.nextFloat();
-                    /** remove message if it's already sent or it's broadcast */
-                    if (m.isSent() || m.getDestination_id().equals("Broadcast")) {
-                        distance = verifyMessageReception(m);
-                        if (distance == -1 && FER <= errorProbability) {
-                            frames.add(m);
-                            //Faz o reporting de mensagem recebida
-                            SimStatus.reportLocal.reportReceivedMessage(actor.getActorId(),1,m.getData(),-5);
-                            messagesFromActor.remove(i);
-                        } else {
-                            messagesFromActor.remove(i);
-                        }
-                    }
-                    else {
-                        if (!m.isRead()) {
-                            distance = verifyMessageReception(m);
-                            if (distance == -1 && FER <= errorProbability) {
-                                frames.add(m);
-                                SimStatus.reportLocal.reportReceivedMessage(actor.getActorId(),1,m.getData(), -5);
-                            }
-                            m.setRead(true);
-                        }
-                        i++;
-                    }
-                } else {
-                    i++;
-                }
+        /** the broadcasts the radio channel delivered to the actor, already tested */
+        ArrayList<PPDU> broadcasts = new ArrayList<>();
+        SimStatus.broadcasts.read(cursor, broadcasts);
+        for (PPDU m : broadcasts) {
+            if (m.getProtocol() == 'W') {
+                actor.messageProcessed(m);
+                frames.add(m);
+                SimStatus.reportLocal.reportReceivedMessage(actor.getActorId(),1,m.getData(),-5);
+            }
+        }
+        /** takes the messages of the inbox; the ones of other protocols are discarded */
+        ArrayList<PPDU> candidates = new ArrayList<>();
+        for (PPDU m = inbox.poll(); m != null; m = inbox.poll()) {
+            if (m.getProtocol() == 'W') {
+                actor.messageProcessed(m);
+                candidates.add(m);
+            }
+        }
+        /** tests the range and the frame error rate of all of them at once */
+        boolean[] received = receiveFrames(candidates, RANGE, FER);
+        for (int i = 0; i < candidates.size(); i++) {
+            PPDU m = candidates.get(i);
+            if (received[i]) {
+                frames.add(m);
+                //Faz o reporting de mensagem recebida
+                SimStatus.reportLocal.reportReceivedMessage(actor.getActorId(),1,m.getData(),-5);
+            }
+            /** a message from a local actor, not yet sent to the other nodes, is sent after being read */
+            if (!m.isSent() && !m.getDestination_id().equals("Broadcast")) {
+                m.setRead(true);
+                SimStatus.sendToNodes(m);
             }
         }
         if (!frames.isEmpty()) {
@@ -157,42 +151,14 @@ public class WAVEProtocol extends PhyProtocol {
         }
     }
 
-    /**
-     * Verifies if the actor sending the ppdu is in range.
-     * 
-     * @param message the ppdu being considered
-     * @return the distance to the actor
-     */
-    private double verifyMessageReception(PPDU message) {
-        double distance = 0;
-        
-        ArrayList<ActorPositionTimestamp> position_h = actor.getPositionHistory();
-        ActorPositionTimestamp actual_apt;
-        long next_dif, actual_dif; // saves the diferences
-        long actual_aptTime, messageTime;
-        messageTime = message.getTime_stamp();
-        synchronized(position_h){
-            actual_apt = position_h.get(0); //oldest apt
-            actual_aptTime = actual_apt.getTime_stamp(); //get time
-            //Search for the closest time to the message
-            for (ActorPositionTimestamp next_apt : position_h) {
-                next_dif = Math.abs(next_apt.getTime_stamp() - messageTime);
-                actual_dif = Math.abs(actual_aptTime - messageTime);
-                // compare time diferences and save the closest
-                if (next_dif <= actual_dif) {
-                    actual_apt = next_apt;
-                    actual_aptTime = actual_apt.getTime_stamp(); //get the actual time
-                }
-            }
-        }
-        
-        Math.sqrt(CoordinatesHelper.distanceSquare(actual_apt.getActor_x(), actual_apt.getActor_y(),
-                message.getActor_x(), message.getActor_y()));
-        if (distance < RANGE) {
-            return -1;
-        } else { 
-            return distance;
-        }
+    @Override
+    public synchronized void writeState(DataOutputStream out) throws IOException {
+        writeFrames(out, buffer);
+    }
+
+    @Override
+    public synchronized void readState(DataInputStream in) throws IOException {
+        readFrames(in, buffer);
     }
 
 }
@@ -0,0 +1,201 @@
+package um.simulator.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import um.simulator.actor.ActorStatus;
+import um.simulator.core.communications.TCPMessage;
+import um.simulator.core.communications.TCPServer;
+import um.simulator.core.communications.TCPServerThread;
+
+/**
+ * This class moves the actors that drive into the region of another
+ * LocalCoordinator (see <code>RegionPartitioner</code>) to it, so that the
+ * neighbours keep running on the same machine and the load follows the
+ * traffic.
+ *
+ * An actor is moved when it is found out of the region of its
+ * LocalCoordinator in two consecutive checks, up to
+ * <code>MAX_MIGRATIONS</code> actors per check. The migration is driven by
+ * the GlobalCoordinator, with the messages:
+ * <ol>
+ * <li>"11" to the source: the source records the messages processed by the
+ * actor from now on, and answers "11";</li>
+ * <li>"12" to the destination: the destination keeps the messages sent to
+ * the actor from now on, and answers "12";</li>
+ * <li>"13" to the source: the actor stops at its next cycle, and the source
+ * answers "13" with its description and its state: position, speed, lane,
+ * position history, network protocol and application, with the messages it
+ * has not read yet and the ones it processed since "11";</li>
+ * <li>"14" to the destination, with the state: the destination discards
+ * the messages it kept that the actor brought or processed, and resumes the
+ * actor.</li>
+ * </ol>
+ * As the destination starts keeping the messages before the source stops
+ * delivering them, and discards the ones delivered by the source, no
+ * message is lost or delivered twice. A migration is cancelled ("13" and
+ * "14" without state) if the actor dies before it stops, and abandoned if
+ * one of the LocalCoordinators leaves the simulation.
+ *
+ * The migration is used when <code>GlobalCoordinator.Migration</code> is
+ * true, with <code>GlobalCoordinator.Placement=region</code>.
+ *
+ * @version 1.0
+ */
+public class ActorMigrator {
+
+    /** largest number of migrations started in each check */
+    static final int MAX_MIGRATIONS = 16;
+
+    /** A migration in progress. */
+    static class Migration {
+        final String source, destination;
+
+        Migration(String source, String destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+
+    /** LocalCoordinator running each actor, by id */
+    final ConcurrentHashMap<String, String> hosts = new ConcurrentHashMap<>();
+    /** migrations in progress, by actor id */
+    final HashMap<String, Migration> migrations = new HashMap<>();
+    /** actors found out of their region in the last check */
+    HashSet<String> outside = new HashSet<>();
+    /** actors seen in the last check */
+    HashSet<String> seen = new HashSet<>();
+    /** number of actors moved */
+    int migrated = 0;
+
+    /**
+     * Records the LocalCoordinator where a new actor is created.
+     *
+     * @param id The id of the actor.
+     * @param host The IP address of the LocalCoordinator.
+     */
+    public void actorCreated(String id, String host) {
+        hosts.put(id, host);
+    }
+
+    /**
+     * Starts the migration of the actors out of the region of their
+     * LocalCoordinator for two checks in a row.
+     *
+     * @param regions The regions of the LocalCoordinators.
+     */
+    public synchronized void check(RegionPartitioner regions) {
+        ArrayList<ActorStatus> actors;
+        synchronized (SimStatus.globalActors) {
+            actors = new ArrayList<>(SimStatus.globalActors.values());
+        }
+        HashSet<String> nowOutside = new HashSet<>();
+        HashSet<String> nowSeen = new HashSet<>();
+        int started = 0;
+        for (ActorStatus as : actors) {
+            String id = as.getActorId();
+            nowSeen.add(id);
+            /** the traffic lights do not move */
+            if (id.startsWith("Traf") || as.actorDyingQ() || migrations.containsKey(id)) {
+                continue;
+            }
+            String host = hosts.get(id);
+            String owner = regions.getOwner(as.getActor_x(), as.getActor_y());
+            if (host == null || owner == null || owner.equals(host)) {
+                continue;
+            }
+            nowOutside.add(id);
+            if (outside.contains(id) && started < MAX_MIGRATIONS && start(id, host, owner)) {
+                started++;
+            }
+        }
+        /** forgets the actors that died */
+        for (String id : seen) {
+            if (!nowSeen.contains(id) && !migrations.containsKey(id)) {
+                hosts.remove(id);
+            }
+        }
+        outside = nowOutside;
+        seen = nowSeen;
+    }
+
+    /**
+     * Starts the migration of an actor: asks the source to prepare it ("11").
+     *
+     * @return false if a LocalCoordinator is not connected
+     */
+    boolean start(String id, String source, String destination) {
+        TCPServerThread sourceThread = TCPServer.localCoordinators.get(source);
+        if (sourceThread == null || !TCPServer.localCoordinators.containsKey(destination)) {
+            return false;
+        }
+        migrations.put(id, new Migration(source, destination));
+        send(sourceThread, "11", id);
+        return true;
+    }
+
+    /**
+     * Handles the answers of the LocalCoordinators during a migration
+     * ("11", "12" and "13"), sending the next message of the migration.
+     *
+     * @param message The answer.
+     */
+    public void receiveMessage(TCPMessage message) {
+        String id = message.messageStr.split(":", 2)[0];
+        Migration migration;
+        synchronized (this) {
+            migration = migrations.get(id);
+            if (migration == null) {
+                System.out.println("Unexpected migration message " + message.messageType + " for actor " + id);
+                return;
+            }
+            if (message.messageType.equals("13")) {
+                migrations.remove(id);
+                if (message.file != null) {
+                    hosts.put(id, migration.destination);
+                    migrated++;
+                }
+            }
+        }
+        TCPServerThread source = TCPServer.localCoordinators.get(migration.source);
+        TCPServerThread destination = TCPServer.localCoordinators.get(migration.destination);
+        if (message.messageType.equals("11") && destination != null) {
+            send(destination, "12", id);
+        } else if (message.messageType.equals("12") && source != null) {
+            send(source, "13", id);
+        } else if (message.messageType.equals("13")) {
+            if (destination != null) {
+                /** forwards the description and the state, streamed from the temporary file */
+                TCPMessage msgToSend = new TCPMessage("14");
+                msgToSend.messageStr = message.messageStr;
+                msgToSend.file = message.file;
+                destination.sendMsg(msgToSend);
+            }
+            if (message.file != null) {
+                message.file.delete();
+            }
+        } else {
+            /** a LocalCoordinator left: the migration is abandoned */
+            synchronized (this) {
+                migrations.remove(id);
+            }
+        }
+    }
+
+    /**
+     * @return The number of actors moved.
+     */
+    public synchronized int getMigrated() {
+        return migrated;
+    }
+
+    /**
+     * Sends a message of a migration to a LocalCoordinator.
+     */
+    static void send(TCPServerThread thread, String type, String id) {
+        TCPMessage msgToSend = new TCPMessage(type);
+        msgToSend.messageStr = id;
+        thread.sendMsg(msgToSend);
+    }
+}
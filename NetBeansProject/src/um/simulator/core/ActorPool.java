@@ -0,0 +1,130 @@
+package um.simulator.core;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class keeps a pool of started, idle threads (shells) that run the
+ * threads of the local simulation: actors, CommStacks and network protocols.
+ *
+ * Starting a platform thread is the most expensive part of creating an actor,
+ * and a burst of new actors (and their CommStacks) makes the LocalCoordinator
+ * stall. With the pool, <code>SimThreads.start</code> hands the
+ * <code>Thread</code> object to an idle shell, which calls its
+ * <code>run</code> method; the actor itself is a plain object. A shell is
+ * busy for the whole life of its actor, so the pool grows as needed: when no
+ * shell is idle, a new one is started for the actor, and a refiller thread
+ * starts new shells in the background whenever fewer than half of
+ * <code>size</code> are idle. When an actor dies its shell becomes idle
+ * again; the shells beyond <code>size</code> that stay idle for
+ * <code>KEEP_ALIVE</code> seconds end.
+ *
+ * The pool is used when <code>LocalCoordinator.ActorPool</code> is greater
+ * than 0, with <code>LocalCoordinator.Execution=threads</code>.
+ *
+ * @version 1.0
+ */
+public class ActorPool {
+
+    /** time (seconds) the extra idle shells wait for a new thread to run */
+    static final int KEEP_ALIVE = 60;
+
+    /** number of idle shells kept */
+    final int size;
+    /** hands the threads to the idle shells */
+    final SynchronousQueue<Runnable> handoff = new SynchronousQueue<>();
+    final AtomicInteger idle = new AtomicInteger();
+    final AtomicInteger shells = new AtomicInteger();
+    final Thread refiller;
+
+    /**
+     * Constructor: creates the pool and starts its shells.
+     *
+     * @param size number of idle shells kept
+     */
+    public ActorPool(int size) {
+        this.size = size;
+        for (int i = 0; i < size; i++) {
+            startShell(null);
+        }
+        refiller = new Thread(() -> {
+            while (true) {
+                synchronized (this) {
+                    try {
+                        while (idle.get() >= size / 2) {
+                            wait();
+                        }
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                while (idle.get() < size) {
+                    startShell(null);
+                }
+            }
+        }, "ActorPool refiller");
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    /**
+     * Runs a task (the <code>run</code> method of a thread of the simulation)
+     * on an idle shell, or on a new one if none is idle.
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        if (!handoff.offer(task)) {
+            startShell(task);
+        }
+        if (idle.get() < size / 2) {
+            synchronized (this) {
+                notify();
+            }
+        }
+    }
+
+    /**
+     * @return the number of shells, busy or idle
+     */
+    public int getShells() {
+        return shells.get();
+    }
+
+    /**
+     * Starts a shell.
+     *
+     * @param first the first task of the shell; null to start it idle
+     */
+    void startShell(final Runnable first) {
+        if (first == null) {
+            idle.incrementAndGet();
+        }
+        Thread shell = new Thread(() -> {
+            Runnable task = first;
+            try {
+                while (true) {
+                    if (task != null) {
+                        task.run();
+                        idle.incrementAndGet();
+                    }
+                    task = handoff.poll(KEEP_ALIVE, TimeUnit.SECONDS);
+                    if (task != null) {
+                        idle.decrementAndGet();
+                    } else if (idle.get() > size) {
+                        /** an extra shell, idle for too long */
+                        idle.decrementAndGet();
+                        break;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                idle.decrementAndGet();
+            }
+            shells.decrementAndGet();
+        }, "ActorPool shell");
+        shell.setDaemon(true);
+        shells.incrementAndGet();
+        shell.start();
+    }
+}
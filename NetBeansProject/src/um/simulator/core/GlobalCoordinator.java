@@ -13,6 +13,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Properties;
 import java.util.Scanner;
@@ -20,7 +21,9 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.core.communications.TCPMessage;
 import um.simulator.map.GlobalMap;
+import um.simulator.map.MapCache;
 import um.simulator.core.communications.MulticastStatusReceiver;
+import um.simulator.core.communications.StatusTiles;
 import um.simulator.core.communications.TCPServer;
 import um.simulator.core.communications.TCPServerThread;
 import um.simulator.reporting.ReportGlobal;
@@ -76,6 +79,11 @@ public class GlobalCoordinator {
 	int multicastPort = Integer.parseInt(prop.getProperty("Multicast.port","7171"));
         reportGlobalQ = Integer.parseInt(prop.getProperty("ReportGlobal.logQ"));
         simulationTime = Integer.parseInt(prop.getProperty("Global.Time"));
+        /** in the "as fast as possible" mode, the time follows the LocalCoordinators */
+        if (prop.getProperty("Global.Clock", "wall").trim().equalsIgnoreCase("afap")) {
+            SimClock.useSimulatedTime(true);
+            System.out.println("\tSimulation time: as fast as possible");
+        }
         
        
         /** B - Creates the TCPServer */
@@ -83,6 +91,11 @@ public class GlobalCoordinator {
         
         /** C - Creates the MulticastReceiver */
         multicastReceiver = new MulticastStatusReceiver(multicastAddress, multicastPort);
+        /** with area of interest filtering, receives all the tiles */
+        StatusTiles tiles = StatusTiles.fromProperties(prop);
+        if (tiles != null) {
+            multicastReceiver.setTiles(tiles, true);
+        }
         
     } 
     
@@ -202,6 +215,22 @@ public class GlobalCoordinator {
         
         /** 8 - Creates and starts the Generators */
         System.out.println("\n  8. Loading and starting the Generators...");
+        /** placement of the new actors: by the least loaded LocalCoordinator (load) or by the owner of the region where they start (region) */
+        if (prop.getProperty("GlobalCoordinator.Placement", "load").trim().equalsIgnoreCase("region")) {
+            long rebalancePeriod = Long.parseLong(prop.getProperty("GlobalCoordinator.RebalancePeriod", "10").trim()) * 1000;
+            double rebalanceThreshold = Double.parseDouble(prop.getProperty("GlobalCoordinator.RebalanceThreshold", "1.25").trim());
+            SimStatus.regions = new RegionPartitioner(rebalancePeriod, rebalanceThreshold);
+            SimStatus.regions.setMaps();
+            /** moves the actors that enter the region of another LocalCoordinator */
+            if (Boolean.parseBoolean(prop.getProperty("GlobalCoordinator.Migration", "false").trim())) {
+                SimStatus.migrator = new ActorMigrator();
+            }
+            SimStatus.regions.start();
+            System.out.println("\tActors placed by region, rebalanced every " + rebalancePeriod / 1000 + " s above " + rebalanceThreshold + " times the mean load");
+            if (SimStatus.migrator != null) {
+                System.out.println("\tActors migrated to the LocalCoordinator of their region");
+            }
+        }
         globalCoordinator.startGenerators();
         
         /** 9 - Creates and starts the ReportingWriter */
@@ -224,7 +253,7 @@ public class GlobalCoordinator {
             @Override
             public void run() {
                 try {
-                    Thread.sleep(simulationTime*1000);
+                    SimClock.sleep(simulationTime*1000L);
                     System.out.println("\n\tTIMEOUT");
                     SimStatus.running = false;
                     stopSimulation();
@@ -334,13 +363,34 @@ public class GlobalCoordinator {
         if(receivedMsg.messageType.equals("03")) {
             TCPMessage msgToSend = new TCPMessage ("04");
             msgToSend.messageStr = receivedMsg.messageStr;
-            msgToSend.map = new GlobalMap(SimStatus.maps.get(receivedMsg.messageStr));
+            GlobalMap map = SimStatus.maps.get(receivedMsg.messageStr);
+            if (map.cacheKey == null) {
+                /** encoded as it is sent (e.g. merged maps, which are not cached) */
+                msgToSend.map = map;
+            } else {
+                /** sends the key first: the LocalCoordinator may have the map in its cache */
+                msgToSend.mapKey = map.cacheKey;
+                if (receivedMsg.mapKey != null) {
+                    /** streams the cache file, if there is one */
+                    msgToSend.file = MapCache.getFile(map.cacheKey);
+                    if (msgToSend.file == null) {
+                        msgToSend.map = map;
+                    }
+                }
+            }
             thread.sendMsg(msgToSend);   
         }else if(receivedMsg.messageType.equals("06")){
             /** adds statistcs from this Local Coordinator to Statistics Report */
             statistics.addReportLocal(receivedMsg.messageStr);
             try {
-                stream.write(receivedMsg.fileContent);
+                /** the report was received into a temporary file; the reports 
+                 * of the LocalCoordinators are copied one at a time */
+                if (receivedMsg.file != null) {
+                    synchronized (stream) {
+                        Files.copy(receivedMsg.file.toPath(), stream);
+                    }
+                    receivedMsg.file.delete();
+                }
             } catch (IOException ex) {
                 Logger.getLogger(GlobalCoordinator.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -361,6 +411,10 @@ public class GlobalCoordinator {
             } catch (InterruptedException ex) {
                 Logger.getLogger(GlobalCoordinator.class.getName()).log(Level.SEVERE, null, ex);
             }
+        }else if(SimStatus.migrator != null && (receivedMsg.messageType.equals("11") 
+                || receivedMsg.messageType.equals("12") || receivedMsg.messageType.equals("13"))){
+            /** an answer of a LocalCoordinator during the migration of an actor */
+            SimStatus.migrator.receiveMessage(receivedMsg);
         }
         else
             System.out.println("Unexpected packet type received: "+ receivedMsg.messageType);
@@ -0,0 +1,142 @@
+package um.simulator.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import um.simulator.comm.physical.PPDU;
+
+/**
+ * This class is the list of the messages (<code>PPDU</code>s) waiting for an
+ * actor: a lock-free queue, where the local senders, the multicast receiver
+ * and the migrations add messages while its consumer takes them, in the
+ * order they were added.
+ *
+ * The consumer is the physical protocol of the actor, if it is local; the
+ * <code>MulticastMessageSender</code>, which sends the messages to the other
+ * nodes, if it is not; or nobody, while it is moving to this
+ * LocalCoordinator. The inboxes are kept in an
+ * <code>InboxRegistry</code>, by id and by index.
+ *
+ * The inbox of an actor that moved here remembers, for
+ * <code>DELIVERED_PERIOD</code>, the messages delivered to it before it
+ * moved, so that the late copies received from the other nodes (e.g.
+ * retransmitted) are not delivered again.
+ *
+ * @version 1.0
+ */
+public class Inbox {
+
+    /** time the messages delivered before a migration are remembered, in milliseconds */
+    static final long DELIVERED_PERIOD = 30000;
+
+    final String id;
+    final int index;
+    final ConcurrentLinkedQueue<PPDU> queue = new ConcurrentLinkedQueue<>();
+    /** the messages (<code>PPDU.toStringToPacket</code>) delivered before the 
+     * actor moved here; null if none */
+    volatile Set<String> delivered = null;
+    volatile long deliveredUntil = 0;
+
+    /**
+     * Constructor: creates an empty inbox.
+     *
+     * @param id the id of the actor
+     * @param index the index of the inbox in its registry
+     */
+    Inbox(String id, int index) {
+        this.id = id;
+        this.index = index;
+    }
+
+    /**
+     * Adds a message at the end of the inbox.
+     *
+     * @param m the message
+     */
+    public void add(PPDU m) {
+        queue.offer(m);
+    }
+
+    /**
+     * Takes the first message of the inbox.
+     *
+     * @return the message, or null if the inbox is empty
+     */
+    public PPDU poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Takes all the messages of the inbox.
+     *
+     * @param messages the collection where the messages are added, in order
+     */
+    public void drainTo(Collection<PPDU> messages) {
+        for (PPDU m = queue.poll(); m != null; m = queue.poll()) {
+            messages.add(m);
+        }
+    }
+
+    /**
+     * @return a copy of the messages in the inbox, which are not taken
+     */
+    public ArrayList<PPDU> peekAll() {
+        return new ArrayList<>(queue);
+    }
+
+    /**
+     * Remembers the messages delivered to the actor before it moved here, 
+     * for <code>DELIVERED_PERIOD</code>.
+     *
+     * @param packets the messages (<code>PPDU.toStringToPacket</code>)
+     */
+    public void setDelivered(Set<String> packets) {
+        deliveredUntil = System.currentTimeMillis() + DELIVERED_PERIOD;
+        delivered = packets;
+    }
+
+    /**
+     * @param m a message received from another node
+     * @return true if the message was delivered to the actor before it moved here
+     */
+    public boolean wasDelivered(PPDU m) {
+        Set<String> packets = delivered;
+        if (packets == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() > deliveredUntil) {
+            delivered = null;
+            return false;
+        }
+        return packets.contains(m.toStringToPacket());
+    }
+
+    /**
+     * @return true if the inbox remembers messages delivered before a migration
+     */
+    public boolean remembersDelivered() {
+        return delivered != null && System.currentTimeMillis() <= deliveredUntil;
+    }
+
+    /**
+     * @return true if the inbox has no messages
+     */
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * @return the id of the actor
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the index of the inbox in its registry
+     */
+    public int getIndex() {
+        return index;
+    }
+}
@@ -0,0 +1,99 @@
+package um.simulator.core;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class keeps the inboxes of the actors (see <code>Inbox</code>): of
+ * the local actors, of the actors moving to this LocalCoordinator and of the
+ * remote actors that the local ones sent messages to, plus the inbox
+ * <code>"Broadcast"</code>, with the messages sent to all the nodes.
+ *
+ * Each inbox gets an index when it is opened, given again once it is
+ * removed; the inboxes are found by the id of their actor, or traversed by
+ * their index, without locks. Only opening and removing an inbox take the
+ * lock of the registry.
+ *
+ * @version 1.0
+ */
+public class InboxRegistry {
+
+    final ConcurrentHashMap<String, Inbox> byId = new ConcurrentHashMap<>();
+    /** the inboxes by index; null where the index is free */
+    volatile AtomicReferenceArray<Inbox> byIndex = new AtomicReferenceArray<>(64);
+    /** indexes in use (guarded by this) */
+    final BitSet used = new BitSet();
+
+    /**
+     * Gets the inbox of an actor.
+     *
+     * @param id the id of the actor
+     * @return the inbox, or null if it has none
+     */
+    public Inbox get(String id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Gets an inbox by its index.
+     *
+     * @param index the index, from 0 to <code>capacity() - 1</code>
+     * @return the inbox, or null if the index is free
+     */
+    public Inbox get(int index) {
+        return byIndex.get(index);
+    }
+
+    /**
+     * @return an upper bound of the indexes of the inboxes
+     */
+    public int capacity() {
+        return byIndex.length();
+    }
+
+    /**
+     * Gets the inbox of an actor, opening it if it has none.
+     *
+     * @param id the id of the actor
+     * @return the inbox
+     */
+    public Inbox open(String id) {
+        Inbox inbox = byId.get(id);
+        if (inbox != null) {
+            return inbox;
+        }
+        synchronized (this) {
+            inbox = byId.get(id);
+            if (inbox == null) {
+                int index = used.nextClearBit(0);
+                used.set(index);
+                AtomicReferenceArray<Inbox> array = byIndex;
+                if (index >= array.length()) {
+                    AtomicReferenceArray<Inbox> larger = new AtomicReferenceArray<>(array.length() * 2);
+                    for (int i = 0; i < array.length(); i++) {
+                        larger.set(i, array.get(i));
+                    }
+                    byIndex = array = larger;
+                }
+                inbox = new Inbox(id, index);
+                array.set(index, inbox);
+                byId.put(id, inbox);
+            }
+        }
+        return inbox;
+    }
+
+    /**
+     * Removes the inbox of an actor that died, with its messages.
+     *
+     * @param id the id of the actor
+     */
+    public synchronized void remove(String id) {
+        Inbox inbox = byId.remove(id);
+        if (inbox != null) {
+            byIndex.set(inbox.index, null);
+            used.clear(inbox.index);
+        }
+    }
+}
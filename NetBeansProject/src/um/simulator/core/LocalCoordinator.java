@@ -2,17 +2,20 @@ package um.simulator.core;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import um.simulator.core.communications.MulticastStatusReceiver;
-import um.simulator.core.communications.MulticastStatusSender;
+import um.simulator.core.communications.MulticastEventLoop;
+import um.simulator.core.communications.StatusTiles;
 import um.simulator.core.communications.TCPClient;
 import um.simulator.actor.*;
+import um.simulator.comm.physical.PPDU;
 import um.simulator.core.communications.TCPMessage;
 import um.simulator.map.GlobalMap;
-import um.simulator.core.communications.MulticastMessageReceiver; 
-import um.simulator.core.communications.MulticastMessageSender; 
+import um.simulator.map.MapCache;
 import um.simulator.reporting.ReportLocal;
 
 /**
@@ -29,11 +32,10 @@ import um.simulator.reporting.ReportLocal;
 public class LocalCoordinator {
 
     static TCPClient tcpLink;
-    static MulticastStatusReceiver multicastReceiver;
-    static MulticastStatusSender multicastSender;
-    
-    static MulticastMessageReceiver multicastMessageReceiver; 
-    static MulticastMessageSender multicastMessageSender; 
+    /** the local actors, by id */
+    static final ConcurrentHashMap<String, Actor> localActors = new ConcurrentHashMap<>();
+    /** sends and receives the actors' status and the messages */
+    static MulticastEventLoop multicastLoop;
     
     public static ReportLocal report;
 
@@ -62,30 +64,79 @@ public class LocalCoordinator {
         
         String multicastAddress = prop.getProperty("Multicast.IP");        
 	int multicastPort = Integer.parseInt(prop.getProperty("Multicast.port","7070"));
+        /** dead reckoning of the actors' status: error threshold (m; 0 disables it) and keyframe interval (rounds) */
+        double drThreshold = Double.parseDouble(prop.getProperty("Multicast.drThreshold", "0").trim());
+        int drKeyframe = Integer.parseInt(prop.getProperty("Multicast.drKeyframe", "10").trim());
+        /** area of interest filtering of the actors' status; null if disabled */
+        StatusTiles tiles = StatusTiles.fromProperties(prop);
         
         String multicastMessageAddress = prop.getProperty("MulticastMessage.IP");
 	int multicastMessagePort = Integer.parseInt(prop.getProperty("MulticastMessage.port","7171"));
+        /** number of message packets kept to send them again when other LocalCoordinators miss them (0 disables the repair) */
+        int messageRepair = Integer.parseInt(prop.getProperty("MulticastMessage.Repair", "0").trim());
+        /** interface of the multicast groups; if empty, the first one that is up, is not a loopback and supports multicast */
+        String multicastInterface = prop.getProperty("Multicast.Interface", "");
+        
+        /** Execution mode of the local actors: one thread per actor (threads), one virtual thread per actor (virtual), the SimKernel (kernel) or the SimKernel with a TickEngine (phased) */
+        String execution = prop.getProperty("LocalCoordinator.Execution", "threads").trim();
+        /** directory of the compiled maps */
+        MapCache.setDirectory(prop.getProperty("Map.CacheDir", "cache"));
+        /** Simulation time: the wall clock (wall) or as fast as possible (afap), which requires the SimKernel */
+        if (prop.getProperty("Global.Clock", "wall").trim().equalsIgnoreCase("afap")) {
+            if (execution.equalsIgnoreCase("kernel") || execution.equalsIgnoreCase("phased")) {
+                SimClock.useSimulatedTime(false);
+                System.out.println("     - Simulation time: as fast as possible");
+            } else {
+                System.out.println("     - Simulation time as fast as possible requires LocalCoordinator.Execution=kernel or phased: using the wall clock");
+            }
+        }
+        if (execution.equalsIgnoreCase("kernel") || execution.equalsIgnoreCase("phased")) {
+            int kernelThreads = Integer.parseInt(prop.getProperty("LocalCoordinator.KernelThreads", "0").trim());
+            SimStatus.kernel = new SimKernel(kernelThreads);
+            if (execution.equalsIgnoreCase("phased")) {
+                int tickPace = Integer.parseInt(prop.getProperty("LocalCoordinator.TickPace", "100").trim());
+                SimStatus.kernel.enableTickEngine(tickPace);
+            }
+            SimStatus.kernel.start();
+            System.out.println("     - Actors running on the SimKernel (" + execution + "), with " + SimStatus.kernel.getWorkers() + " workers");
+        } else if (execution.equalsIgnoreCase("virtual")) {
+            if (SimThreads.enableVirtualThreads()) {
+                System.out.println("     - Actors running on virtual threads");
+            } else {
+                System.out.println("     - Virtual threads are not supported by this JVM: using platform threads");
+            }
+        } else {
+            /** number of threads started in advance to run the new actors (0 starts a thread per actor) */
+            int actorPool = Integer.parseInt(prop.getProperty("LocalCoordinator.ActorPool", "0").trim());
+            if (actorPool > 0) {
+                SimThreads.enablePool(actorPool);
+                System.out.println("     - Actors running on a pool of threads, with " + actorPool + " idle threads");
+            }
+        }
         
 	/** B - Creates the TCP Client */
 	tcpLink = new TCPClient(coordIP, coordPort, this, "localCoordinator");
 
-	/** C - Creates the Multicast Receiver */
-	multicastReceiver = new MulticastStatusReceiver(multicastAddress, multicastPort);
-
-	/** D - Creates the Multicast Sender */
-        multicastSender = new MulticastStatusSender(multicastAddress, multicastPort);
-        int port = multicastSender.getLocalPort();
-        multicastReceiver.setMSPort(port);
-        
-        /** E - Creates the Multicast Message Receiver */
-	multicastMessageReceiver = new MulticastMessageReceiver(multicastMessageAddress, multicastMessagePort);
-
-	/** F - Creates the Multicast Message Sender */
-        multicastMessageSender = new MulticastMessageSender(multicastMessageAddress, multicastMessagePort);
-        port = multicastMessageSender.getLocalPort();
-        multicastMessageReceiver.setMSPort(port);
-        
-        
+	/** C - Creates the Multicast event loop, with the status and messages receivers and senders */
+        try {
+            multicastLoop = new MulticastEventLoop(multicastAddress, multicastPort, multicastMessageAddress, multicastMessagePort, multicastInterface);
+        } catch (IOException ex) {
+            System.out.println("Error creating the multicast channels:\n" + ex);
+            System.exit(0);
+        }
+        if (tiles != null) {
+            multicastLoop.getStatusSender().setTiles(tiles);
+            multicastLoop.getStatusReceiver().setTiles(tiles, false);
+            System.out.println("     - Area of interest: " + tiles.size() + " tile groups, from " + tiles.getGroup(0).getHostAddress());
+        }
+        if (drThreshold > 0) {
+            multicastLoop.getStatusSender().setDeadReckoning(drThreshold, drKeyframe);
+            System.out.println("     - Dead reckoning of the actors' status: threshold " + drThreshold + " m, keyframes every " + drKeyframe + " rounds");
+        }
+        if (messageRepair > 0) {
+            multicastLoop.setMessageRepair(messageRepair);
+            System.out.println("     - Repair of the lost message packets, keeping the last " + messageRepair + " packets");
+        }
     }
 
     /** 
@@ -108,9 +159,9 @@ public class LocalCoordinator {
         /** 3 - Waits for the connection with the Global Coordinator to be ready */
         System.out.println("  3. Waiting for Global Coordinator...");
         
-        /** 4 - Starts the MulticastReceiver */
-        System.out.println("  4. Starting the MulticastReceiver...");
-        multicastReceiver.start();
+        /** 4 - Starts the Multicast event loop (receiving only) */
+        System.out.println("  4. Starting the MulticastEventLoop...");
+        multicastLoop.start();
         
         try {
             /** 5 - Starts the ReportLocal */
@@ -140,17 +191,9 @@ public class LocalCoordinator {
         }
         
         if(SimStatus.running){
-            /** 6 - Starts the Multicast Sender */
-            System.out.println("  7. Received first actor: starting the Multicast Sender...");
-            multicastSender.start();
-
-            /** 7 - Starts the Multicast Message Receiver */
-            System.out.println("  8. Starting the MulticastMessageReceiver...");
-            multicastMessageReceiver.start();
-
-            /** 8 - Starts the Multicast Message Sender */
-            System.out.println("  9. Starting the MulticastMessageSender...");
-            multicastMessageSender.start();
+            /** 7 - Starts sending the actors' status and the messages */
+            System.out.println("  7. Received first actor: starting the Multicast senders...");
+            multicastLoop.startSending();
         }
 	
         try {
@@ -171,6 +214,34 @@ public class LocalCoordinator {
         /** this is an order to create a new actor */
         if(message.messageType.equals("02")) {
             createNewActor(message.messageStr);
+        /** this is an order to create several new actors, one per line */
+        }else if(message.messageType.equals("10")){
+            for (String newActorDescription : message.messageStr.split("\n")) {
+                createNewActor(newActorDescription);
+            }
+        /** an actor is going to move to another LocalCoordinator: records the messages it processes */
+        }else if(message.messageType.equals("11")){
+            Actor actor = localActors.get(message.messageStr);
+            if (actor != null) {
+                actor.prepareMigration();
+            }
+            tcpLink.sendMsg(message);
+        /** an actor is going to move to this LocalCoordinator: keeps its messages */
+        }else if(message.messageType.equals("12")){
+            SimStatus.registerIncomingActor(message.messageStr);
+            tcpLink.sendMsg(message);
+        /** stops an actor, which sends its state when it stops (see <code>actorEnded</code>) */
+        }else if(message.messageType.equals("13")){
+            Actor actor = localActors.get(message.messageStr);
+            if (actor != null && !actor.dying) {
+                actor.migrate();
+            } else {
+                /** the actor is gone: the migration is cancelled */
+                tcpLink.sendMsg(message);
+            }
+        /** an actor moved to this LocalCoordinator */
+        }else if(message.messageType.equals("14")){
+            receiveActor(message);
         /** if message received is "05", starts dying process */    
         }else if(message.messageType.equals("05")){
             SimStatus.running = false;
@@ -189,43 +260,66 @@ public class LocalCoordinator {
                 }
             }
             System.out.println("\tAll local actors are dead!");
+            if (SimStatus.kernel != null) {
+                SimStatus.kernel.stopKernel();
+            }
           
              
             SimStatus.reportLocal.closeReporting(); 
             String counters = SimStatus.reportLocal.getCounters();
             File reportFile = SimStatus.reportLocal.getReport();
-            try {
-                byte[] fileContent = Files.readAllBytes(reportFile.toPath());
-                TCPMessage msgToSend = new TCPMessage("06");
-                msgToSend.messageStr = counters;
-                msgToSend.fileContent = fileContent;
-            
-            
-         
-                multicastReceiver.stopMulticastReceiver();
-                multicastReceiver.join();
-                multicastSender.stopMulticastSender();
-                multicastSender.join();
-                multicastMessageReceiver.stopMulticast();
-                multicastMessageReceiver.join();
-                multicastMessageSender.stopMulticast();
-                multicastMessageSender.join();
-                System.out.println("\tMulticast Communications are over!");
-                tcpLink.sendMsg(msgToSend);
-                tcpLink.disconnect();
-            } catch (IOException ex) {
-                Logger.getLogger(LocalCoordinator.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            /** the report is streamed from its file */
+            TCPMessage msgToSend = new TCPMessage("06");
+            msgToSend.messageStr = counters;
+            msgToSend.file = reportFile;
+
+            multicastLoop.stopLoop();
+            multicastLoop.join();
+            multicastLoop.writeStats(new File("reports/MulticastStats.txt"));
+            System.out.println("\tMulticast Communications are over!");
+            tcpLink.sendMsg(msgToSend);
+            tcpLink.disconnect();
             
             
             
         } else {   
             /** this messages contains a map */
             if (message.messageType.equals("04")) {
-                GlobalMap gm = new GlobalMap(message.map);
                 String mapName = message.messageStr;
-                if (gm != null) {
-                    SimStatus.addMap(mapName, gm);
+                if (message.file != null) {
+                    /** the encoded map, received into a temporary file: moves it 
+                     * into the cache for the next simulations, if it has a key */
+                    GlobalMap gm = new GlobalMap();
+                    File mapFile = message.file;
+                    if (message.mapKey != null && MapCache.isEnabled()) {
+                        try {
+                            MapCache.save(message.mapKey, mapFile);
+                            mapFile = MapCache.getFile(message.mapKey);
+                        } catch (IOException ex) {
+                            Logger.getLogger(LocalCoordinator.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                    if (MapCache.load(mapFile, gm)) {
+                        gm.cacheKey = message.mapKey;
+                        SimStatus.addMap(mapName, gm);
+                    } else {
+                        System.out.println("Invalid map received: " + mapName);
+                    }
+                    if (mapFile == message.file) {
+                        mapFile.delete();
+                    }
+                } else {
+                    /** the key of the map: loads it from the cache or asks for the whole map */
+                    GlobalMap gm = new GlobalMap();
+                    if (MapCache.load(message.mapKey, gm)) {
+                        gm.cacheKey = message.mapKey;
+                        SimStatus.addMap(mapName, gm);
+                    } else {
+                        TCPMessage msgToSend = new TCPMessage("03");
+                        msgToSend.messageStr = mapName;
+                        msgToSend.mapKey = message.mapKey;
+                        tcpLink.sendMsg(msgToSend);
+                    }
                 }
             }
             else     
@@ -264,43 +358,217 @@ public class LocalCoordinator {
      * @param newActorDescription   A set of parameters to configure new actors.
      */
     public void createNewActor(String newActorDescription) {
+        Actor actor = buildActor(newActorDescription);
+        if (actor != null) {
+            startActor(actor);
+        }
+    }
+    
+    /**
+     * Builds an actor of the type given by the prefix of its id.
+     * 
+     * @param newActorDescription   A set of parameters to configure new actors.
+     * @return the actor, not started; null if the type is invalid or the 
+     * traffic light already exists
+     */
+    static Actor buildActor(String newActorDescription) {
         String[] actorParams = newActorDescription.split(":");
         String newActorID = actorParams[0];
         if(newActorID.startsWith("Gen")) {
             Actor actor = new Actor(newActorDescription);
             SimStatus.registerLocalActor(newActorID);
-            actor.start();
+            return actor;
         }
         else if(newActorID.startsWith("Ran")) {
-            ActorRandom actor = new ActorRandom(newActorDescription);
-            actor.start();
+            return new ActorRandom(newActorDescription);
         }
         else if(newActorID.startsWith("Tram")){
-            ActorTram actor = new ActorTram(newActorDescription);
-            actor.start();
+            return new ActorTram(newActorDescription);
         }
         else if(newActorID.startsWith("Ped")){
-            ActorPedestrian actor = new ActorPedestrian(newActorDescription);
-            actor.start();
+            return new ActorPedestrian(newActorDescription);
         }
         else if(newActorID.startsWith("Car")){
-            ActorCar actor = new ActorCar(newActorDescription);
-            actor.start();
+            return new ActorCar(newActorDescription);
         }
          else if(newActorID.startsWith("Bus")){
-            ActorBus actor = new ActorBus(newActorDescription);
-            actor.start();
+            return new ActorBus(newActorDescription);
         }
          else if(newActorID.startsWith("Traf")){
             if(!SimStatus.localActorsList.contains(newActorID)){
-                ActorTrafficLight tf = new ActorTrafficLight(newActorDescription);
-                tf.start();
+                return new ActorTrafficLight(newActorDescription);
             }
-            
+            return null;
         }
         else {
             System.out.println("WARNING: invalid type of actor: " + newActorID + ". Not created!");
+            return null;
+        }
+    }
+    
+    /**
+     * Completes the life of a local actor, once it and its Communication Stack 
+     * stopped: removes it or, if it is moving to another LocalCoordinator, 
+     * sends its state ("13"), with the messages it has not read yet (apart, 
+     * the WAVE frames the radio channel already delivered to it) and the 
+     * ones it processed since the migration was prepared. The messages it 
+     * read, waiting to be sent to the other LocalCoordinators, are still 
+     * sent: the new LocalCoordinator discards them, as they were processed.
+     * 
+     * @param actor the actor
+     */
+    public static void actorEnded(Actor actor) {
+        String id = actor.getActorId();
+        localActors.remove(id);
+        if (!actor.isMigrating()) {
+            SimStatus.removeActor(id);
+            return;
+        }
+        TCPMessage msgToSend = new TCPMessage("13");
+        if (actor.dying || !SimStatus.running) {
+            /** the actor died while stopping: the migration is cancelled */
+            SimStatus.removeActor(id);
+            msgToSend.messageStr = id;
+            tcpLink.sendMsg(msgToSend);
+            return;
+        }
+        SimStatus.unregisterLocalActor(id);
+        ArrayList<PPDU> unread = new ArrayList<>();
+        Inbox inbox = SimStatus.inboxes.get(id);
+        if (inbox != null) {
+            inbox.drainTo(unread);
+        }
+        /** the broadcasts it did not read: the radio channel already tested the WAVE frames */
+        ArrayList<PPDU> received = new ArrayList<>();
+        for (PPDU m : SimStatus.broadcasts.close(id)) {
+            if (m.getProtocol() == 'W') {
+                received.add(m);
+            } else {
+                unread.add(m);
+            }
+        }
+        HashSet<String> processed = actor.getProcessedMessages();
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(state)) {
+            out.writeInt(unread.size());
+            for (PPDU m : unread) {
+                out.writeUTF(m.toStringToPacket());
+            }
+            out.writeInt(received.size());
+            for (PPDU m : received) {
+                out.writeUTF(m.toStringToPacket());
+            }
+            if (processed == null) {
+                out.writeInt(0);
+            } else {
+                synchronized (processed) {
+                    out.writeInt(processed.size());
+                    for (String key : processed) {
+                        out.writeUTF(key);
+                    }
+                }
+            }
+            actor.writeState(out);
+            actor.getCommStack().writeState(out);
+        } catch (IOException ex) {
+            Logger.getLogger(LocalCoordinator.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        msgToSend.messageStr = actor.getDescription();
+        msgToSend.fileContent = state.toByteArray();
+        tcpLink.sendMsg(msgToSend);
+    }
+    
+    /**
+     * Resumes an actor that moved from another LocalCoordinator ("14"). Its 
+     * messages kept here since it was announced ("12") are merged with the 
+     * ones it brought: the ones it brought, or processed before moving, are 
+     * discarded, so that each message is delivered once. Their copies 
+     * received later from the other nodes are discarded too (see 
+     * <code>SimStatus.registerArrivedActor</code>). The actor stays incoming 
+     * until its physical protocol is ready to read the broadcasts, when it 
+     * starts (see <code>SimStatus.actorArrived</code>).
+     * 
+     * @param message the description of the actor, with its state in the payload; 
+     * without payload if the migration was cancelled
+     */
+    void receiveActor(TCPMessage message) {
+        String id = message.messageStr.split(":", 2)[0];
+        if (message.file == null || !SimStatus.running) {
+            SimStatus.unregisterIncomingActor(id);
+            if (message.file != null) {
+                message.file.delete();
+            }
+            return;
+        }
+        byte[] state;
+        try {
+            state = Files.readAllBytes(message.file.toPath());
+        } catch (IOException ex) {
+            System.out.println("Error in LocalCoordinator.receiveActor():\n" + ex);
+            SimStatus.unregisterIncomingActor(id);
+            return;
+        } finally {
+            message.file.delete();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        try {
+            ArrayList<PPDU> brought = new ArrayList<>();
+            HashSet<String> known = new HashSet<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                String packet = in.readUTF();
+                known.add(packet);
+                brought.add(new PPDU(packet));
+            }
+            /** the frames already received, which are not tested again */
+            ArrayList<PPDU> received = new ArrayList<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                String packet = in.readUTF();
+                known.add(packet);
+                received.add(new PPDU(packet));
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                known.add(in.readUTF());
+            }
+            Actor actor = buildActor(message.messageStr);
+            if (actor == null) {
+                SimStatus.unregisterIncomingActor(id);
+                return;
+            }
+            /** the late copies of the messages it processed are discarded from now on */
+            SimStatus.registerArrivedActor(id, known);
+            Inbox inbox = SimStatus.inboxes.open(id);
+            ArrayList<PPDU> kept = new ArrayList<>();
+            inbox.drainTo(kept);
+            kept.removeIf(m -> known.contains(m.toStringToPacket()));
+            /** the messages brought are not sent to the other nodes again */
+            for (PPDU m : brought) {
+                inbox.add(m);
+            }
+            for (PPDU m : kept) {
+                inbox.add(m);
+            }
+            /** the actor is local before it stops being incoming, so that no message is dropped */
+            SimStatus.registerLocalActor(id);
+            actor.setMigratedState(in, received);
+            startActor(actor);
+        } catch (IOException ex) {
+            System.out.println("Error in LocalCoordinator.receiveActor(): invalid state of actor " + id + ":\n" + ex);
+            SimStatus.unregisterIncomingActor(id);
+        }
+    }
+    
+    /**
+     * Starts an actor: on its own (platform or virtual) thread or, if the local simulation
+     * runs on the <code>SimKernel</code>, as a set of timed events.
+     * 
+     * @param actor the actor to start
+     */
+    static void startActor(Actor actor) {
+        localActors.put(actor.getActorId(), actor);
+        if (SimStatus.kernel != null) {
+            SimStatus.kernel.startActor(actor);
+        } else {
+            SimThreads.start(actor);
         }
     }
 }
-
@@ -0,0 +1,274 @@
+package um.simulator.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import um.simulator.actor.ActorStatus;
+import um.simulator.core.communications.TCPServer;
+import um.simulator.map.GlobalMap;
+
+/**
+ * This class splits the simulation area in regions, one per LocalCoordinator,
+ * so that each new actor is created by the LocalCoordinator that owns the
+ * region where it starts, and neighbours tend to run on the same machine.
+ *
+ * The regions are built by recursive coordinate bisection: the area is cut
+ * across its longest side so that each side gets a share of the expected
+ * density proportional to the number of regions it will hold, and each side
+ * is cut again until there is one region per LocalCoordinator. The expected
+ * density is the road graph of the base maps, each point weighing
+ * <code>ROAD_WEIGHT</code> per road segment it joins, plus the actors
+ * already known by the GlobalCoordinator, weighing 1 each. The regions are
+ * given to the LocalCoordinators in the order of their IP addresses.
+ *
+ * The regions are built again when LocalCoordinators connect or disconnect
+ * and, every <code>period</code> milliseconds, when the load reported by a
+ * LocalCoordinator is above <code>threshold</code> times the mean load.
+ * After each check, the actors that moved into the region of another
+ * LocalCoordinator are migrated to it (see <code>ActorMigrator</code>).
+ *
+ * The partitioner is used when <code>GlobalCoordinator.Placement</code> is
+ * set to <code>region</code>; otherwise each new actor is created by the
+ * least loaded LocalCoordinator (<code>SimStatus.getBestMachine</code>).
+ *
+ * @version 1.0
+ */
+public class RegionPartitioner extends Thread {
+
+    /** weight of a map point, per road segment, relative to an actor */
+    static final double ROAD_WEIGHT = 0.05;
+
+    /** time between the checks of the loads, in milliseconds */
+    final long period;
+    /** largest ratio between the load of a LocalCoordinator and the mean load */
+    final double threshold;
+    /** the points of the base maps and their weights */
+    double[] roadX = new double[0], roadY = new double[0], roadW = new double[0];
+    /** the LocalCoordinators owning the regions, in the order of the regions */
+    ArrayList<String> owners = new ArrayList<>();
+    /** the tree of the cuts: for each node, the axis (0 for x, 1 for y) and
+     * the coordinate of the cut, and its children; a child is a node if it
+     * is not negative, otherwise the region -1 - child */
+    int[] axis = new int[0];
+    double[] cut = new double[0];
+    int[] below = new int[0], above = new int[0];
+    int nodes = 0;
+
+    /**
+     * Constructor: creates a partitioner.
+     *
+     * @param period time between the checks of the loads, in milliseconds (0 disables the checks)
+     * @param threshold largest ratio between the load of a LocalCoordinator and the mean load
+     */
+    public RegionPartitioner(long period, double threshold) {
+        this.period = period;
+        this.threshold = threshold;
+        setName("RegionPartitioner");
+        setDaemon(true);
+    }
+
+    /**
+     * Reads the road graph of the base maps, which gives the expected density
+     * of actors.
+     */
+    public synchronized void setMaps() {
+        int n = 0;
+        for (GlobalMap map : SimStatus.maps.values()) {
+            if (map.baseMap) {
+                n += map.pointsX.length;
+            }
+        }
+        roadX = new double[n];
+        roadY = new double[n];
+        roadW = new double[n];
+        int i = 0;
+        for (GlobalMap map : SimStatus.maps.values()) {
+            if (map.baseMap) {
+                for (int p = 0; p < map.pointsX.length; p++, i++) {
+                    roadX[i] = map.pointsX[p];
+                    roadY[i] = map.pointsY[p];
+                    roadW[i] = ROAD_WEIGHT * (map.neighboursOffsets[p + 1] - map.neighboursOffsets[p]);
+                }
+            }
+        }
+        owners.clear();
+    }
+
+    /**
+     * Gets the LocalCoordinator that owns the region of a point, building the
+     * regions again if the LocalCoordinators changed.
+     *
+     * @param x The x coordinate of the point.
+     * @param y The y coordinate of the point.
+     * @return The IP address of the LocalCoordinator, or null if there is none.
+     */
+    public synchronized String getOwner(double x, double y) {
+        if (ownersChanged()) {
+            build();
+        }
+        if (owners.isEmpty()) {
+            return null;
+        }
+        return owners.get(getRegion(x, y));
+    }
+
+    /**
+     * @param x The x coordinate of a point.
+     * @param y The y coordinate of a point.
+     * @return The region of the point.
+     */
+    synchronized int getRegion(double x, double y) {
+        if (nodes == 0) {
+            return 0;
+        }
+        int node = 0;
+        while (true) {
+            int next = (axis[node] == 0 ? x : y) < cut[node] ? below[node] : above[node];
+            if (next < 0) {
+                return -1 - next;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * Checks the loads of the LocalCoordinators every <code>period</code>
+     * milliseconds, builds the regions again if they are unbalanced, and
+     * migrates the actors out of their regions.
+     */
+    @Override
+    public void run() {
+        if (period <= 0) {
+            return;
+        }
+        while (SimStatus.running) {
+            try {
+                SimClock.sleep(period);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            synchronized (this) {
+                if (ownersChanged() || unbalanced()) {
+                    build();
+                    System.out.println("\tRegions rebalanced among " + owners.size() + " LocalCoordinators");
+                }
+            }
+            if (SimStatus.migrator != null) {
+                SimStatus.migrator.check(this);
+            }
+        }
+    }
+
+    /**
+     * @return true if the connected LocalCoordinators are not the owners of the regions
+     */
+    boolean ownersChanged() {
+        Map<String, ?> connected = TCPServer.localCoordinators;
+        return connected.size() != owners.size() || !connected.keySet().containsAll(owners);
+    }
+
+    /**
+     * @return true if the load of an owner is above <code>threshold</code> times the mean load
+     */
+    boolean unbalanced() {
+        if (owners.size() < 2) {
+            return false;
+        }
+        double total = 0, max = 0;
+        for (String ip : owners) {
+            Double load = SimStatus.machineLoadMap.get(ip);
+            double l = load == null ? 0 : load;
+            total += l;
+            max = Math.max(max, l);
+        }
+        /** ignores the differences of one or two actors */
+        return max > 2 && max > threshold * total / owners.size();
+    }
+
+    /**
+     * Builds the regions, one per connected LocalCoordinator.
+     */
+    void build() {
+        owners = new ArrayList<>(TCPServer.localCoordinators.keySet());
+        Collections.sort(owners);
+        int k = owners.size();
+        nodes = 0;
+        axis = new int[Math.max(k - 1, 0)];
+        cut = new double[axis.length];
+        below = new int[axis.length];
+        above = new int[axis.length];
+        if (k < 2) {
+            return;
+        }
+        /** the points: the roads and the actors */
+        ArrayList<double[]> actors = new ArrayList<>();
+        synchronized (SimStatus.globalActors) {
+            for (ActorStatus as : SimStatus.globalActors.values()) {
+                actors.add(new double[]{as.getActor_x(), as.getActor_y()});
+            }
+        }
+        int n = roadX.length + actors.size();
+        double[] xs = Arrays.copyOf(roadX, n);
+        double[] ys = Arrays.copyOf(roadY, n);
+        double[] ws = Arrays.copyOf(roadW, n);
+        for (int i = roadX.length; i < n; i++) {
+            double[] xy = actors.get(i - roadX.length);
+            xs[i] = xy[0];
+            ys[i] = xy[1];
+            ws[i] = 1;
+        }
+        Integer[] items = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            items[i] = i;
+        }
+        split(items, 0, n, k, 0, xs, ys, ws);
+    }
+
+    /**
+     * Splits the points from <code>from</code> to <code>to</code> in
+     * <code>k</code> regions.
+     *
+     * @return The node of the cut, or -1 - region if <code>k</code> is 1.
+     */
+    private int split(Integer[] items, int from, int to, int k, int firstRegion, final double[] xs, final double[] ys, double[] ws) {
+        if (k == 1) {
+            return -1 - firstRegion;
+        }
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        double total = 0;
+        for (int i = from; i < to; i++) {
+            int p = items[i];
+            minX = Math.min(minX, xs[p]);
+            maxX = Math.max(maxX, xs[p]);
+            minY = Math.min(minY, ys[p]);
+            maxY = Math.max(maxY, ys[p]);
+            total += ws[p];
+        }
+        final int a = (maxX - minX) >= (maxY - minY) ? 0 : 1;
+        final double[] cs = a == 0 ? xs : ys;
+        Arrays.sort(items, from, to, (p, q) -> Double.compare(cs[p], cs[q]));
+        /** the cut leaves k / 2 regions' share of the weight below it */
+        int kBelow = k / 2;
+        double target = total * kBelow / k;
+        double sum = 0;
+        int m = from;
+        while (m < to && sum + ws[items[m]] <= target) {
+            sum += ws[items[m]];
+            m++;
+        }
+        double value;
+        if (m == from || m == to) {
+            /** no points, or all the weight in one point: cuts the middle */
+            value = to > from ? (cs[items[from]] + cs[items[to - 1]]) / 2 : 0;
+        } else {
+            value = (cs[items[m - 1]] + cs[items[m]]) / 2;
+        }
+        int node = nodes++;
+        axis[node] = a;
+        cut[node] = value;
+        below[node] = split(items, from, m, kBelow, firstRegion, xs, ys, ws);
+        above[node] = split(items, m, to, k - kBelow, firstRegion + kBelow, xs, ys, ws);
+        return node;
+    }
+}
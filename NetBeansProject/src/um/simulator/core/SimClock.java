@@ -0,0 +1,151 @@
+package um.simulator.core;
+
+/**
+ * This class represents the clock of the simulation.
+ *
+ * All the timestamps, timeouts and periodic activities of the simulation read
+ * the time from <code>SimClock.currentTimeMillis()</code> instead of
+ * <code>System.currentTimeMillis()</code>, so that the clock can be replaced.
+ *
+ * The default clock is the wall clock. In the "as fast as possible" mode
+ * (<code>Global.Clock=afap</code>) a <code>Simulated</code> clock is used:
+ * in the LocalCoordinators the <code>SimKernel</code> advances it to the next
+ * event as soon as all the events due at the current time are finished; in
+ * the GlobalCoordinator it follows the time reported by the LocalCoordinators.
+ *
+ * @version 1.0
+ */
+public class SimClock {
+
+    /** the clock in use */
+    static SimClock clock = new SimClock();
+
+    /**
+     * @return the current time of the simulation, in milliseconds
+     */
+    public static long currentTimeMillis() {
+        return clock.now();
+    }
+
+    /**
+     * Waits until some time of the simulation has elapsed.
+     *
+     * @param millis time to wait, in milliseconds
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public static void sleep(long millis) throws InterruptedException {
+        clock.sleepFor(millis);
+    }
+
+    /**
+     * @return true if the simulation time is not the wall clock time
+     */
+    public static boolean isSimulated() {
+        return clock instanceof Simulated;
+    }
+
+    /**
+     * Replaces the wall clock by a simulated clock, starting at the current
+     * wall clock time.
+     *
+     * @param follower true if the clock follows the time reported by other
+     * coordinators (and never runs slower than the wall clock), false if it
+     * is advanced by the <code>SimKernel</code>
+     */
+    public static void useSimulatedTime(boolean follower) {
+        clock = new Simulated(System.currentTimeMillis(), follower);
+    }
+
+    /**
+     * Advances a simulated clock. Has no effect on the wall clock.
+     *
+     * @param time the new time of the simulation, in milliseconds
+     */
+    public static void advanceTo(long time) {
+        if (clock instanceof Simulated) {
+            ((Simulated) clock).advance(time);
+        }
+    }
+
+    /**
+     * Advances a follower clock to the time reported by another coordinator.
+     *
+     * @param time the time reported, in milliseconds
+     */
+    public static void follow(long time) {
+        if (clock instanceof Simulated && ((Simulated) clock).follower) {
+            ((Simulated) clock).advance(time);
+        }
+    }
+
+    /**
+     * Computes the time to wait until the next iteration of a periodic
+     * activity. With the wall clock, the time spent executing the iteration
+     * is discounted; with a simulated clock, the execution takes no time.
+     *
+     * @param period the period of the activity, in milliseconds
+     * @param elapsed the time spent executing the iteration, in milliseconds
+     * @return the time to wait, in milliseconds
+     */
+    public static long remainingTime(long period, long elapsed) {
+        if (isSimulated()) {
+            return period;
+        }
+        return Math.max(0, period - elapsed);
+    }
+
+    /**
+     * @return the current time of this clock, in milliseconds
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Waits until some time of this clock has elapsed.
+     *
+     * @param millis time to wait, in milliseconds
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    void sleepFor(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    /** A clock whose time only moves when it is advanced. */
+    static class Simulated extends SimClock {
+
+        volatile long time;
+        /** true if the clock follows other coordinators and the wall clock */
+        boolean follower;
+
+        Simulated(long start, boolean follower) {
+            this.time = start;
+            this.follower = follower;
+        }
+
+        @Override
+        long now() {
+            if (follower) {
+                return Math.max(time, System.currentTimeMillis());
+            }
+            return time;
+        }
+
+        synchronized void advance(long newTime) {
+            if (newTime > time) {
+                time = newTime;
+                notifyAll();
+            }
+        }
+
+        @Override
+        synchronized void sleepFor(long millis) throws InterruptedException {
+            long target = now() + millis;
+            long remaining;
+            while ((remaining = target - now()) > 0) {
+                /** a follower also wakes up with the wall clock */
+                wait(follower ? Math.min(remaining, 100) : 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package um.simulator.core;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import um.simulator.actor.Actor;
+import um.simulator.comm.CommStack;
+
+/**
+ * This class implements a discrete-event kernel for the local simulation.
+ *
+ * When it is used, actors, communication stacks and network protocols do not
+ * run on threads of their own. Instead, each of their periodic activities
+ * (the mobility update of an actor, the update of its <code>CommStack</code>,
+ * the timers of the network protocols and the phase changes of the traffic
+ * lights) is a timed event in a single event queue. The kernel thread takes
+ * the events from the queue when they are due and hands them to a small pool
+ * of worker threads. When an event finishes, the task is scheduled again
+ * with the delay it returned.
+ *
+ * The kernel is optional: it is used when the <code>LocalCoordinator.Execution</code>
+ * property is set to <code>kernel</code> or <code>phased</code>. In the latter, 
+ * the actors are moved together, in fixed steps, by a <code>TickEngine</code>.
+ *
+ * With a simulated <code>SimClock</code> (<code>Global.Clock=afap</code>), the
+ * kernel does not wait for the next event: as soon as no event is being
+ * executed, it advances the clock to the time of the next event.
+ *
+ * @version 1.0
+ */
+public class SimKernel extends Thread {
+
+    /** A periodic activity executed by the kernel. */
+    public interface SimTask {
+        /**
+         * Executes one iteration of the activity.
+         *
+         * @return the time, in milliseconds, until the next iteration, or a
+         * negative value if the activity is over
+         */
+        long execute();
+    }
+
+    /** An entry of the event queue. */
+    static class SimEvent implements Comparable<SimEvent> {
+        /** time (in milliseconds) at which the event is due */
+        long time;
+        /** insertion order, to keep events with the same time in FIFO order */
+        long seq;
+        SimTask task;
+
+        SimEvent(long time, long seq, SimTask task) {
+            this.time = time;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(SimEvent e) {
+            if (time != e.time) {
+                return time < e.time ? -1 : 1;
+            }
+            return Long.compare(seq, e.seq);
+        }
+    }
+
+    /** the event queue, ordered by due time */
+    final PriorityQueue<SimEvent> queue = new PriorityQueue<>();
+    long sequence = 0;
+    /** pool of worker threads that execute the events */
+    ExecutorService workers;
+    int nWorkers;
+    volatile boolean running = true;
+    /** number of events dispatched to the workers and not finished yet */
+    final AtomicInteger inFlight = new AtomicInteger();
+    /** engine moving the actors in fixed steps; null if each actor has its own events */
+    TickEngine tickEngine = null;
+
+    /**
+     * Constructor: creates the kernel and its pool of workers.
+     *
+     * @param nWorkers number of worker threads; if less than 1, the number of
+     * available processors is used
+     */
+    public SimKernel(int nWorkers) {
+        if (nWorkers < 1) {
+            nWorkers = Runtime.getRuntime().availableProcessors();
+        }
+        this.nWorkers = nWorkers;
+        this.workers = Executors.newFixedThreadPool(nWorkers);
+        setName("SimKernel");
+    }
+
+    /**
+     * Adds a task to the event queue.
+     *
+     * @param task the task to execute
+     * @param delay time, in milliseconds, until the task is due
+     */
+    public void schedule(SimTask task, long delay) {
+        synchronized (queue) {
+            queue.add(new SimEvent(SimClock.currentTimeMillis() + delay, sequence++, task));
+            queue.notify();
+        }
+    }
+
+    /**
+     * Dispatches the events of the queue to the workers as soon as they are due.
+     */
+    @Override
+    public void run() {
+        SimEvent event;
+        while (running) {
+            synchronized (queue) {
+                try {
+                    while (running) {
+                        event = queue.peek();
+                        if (event == null) {
+                            queue.wait();
+                        } else {
+                            long wait = event.time - SimClock.currentTimeMillis();
+                            if (wait <= 0) {
+                                break;
+                            }
+                            if (!SimClock.isSimulated()) {
+                                queue.wait(wait);
+                            } else if (inFlight.get() == 0) {
+                                /** nothing else can happen before the next event: jumps to it */
+                                SimClock.advanceTo(event.time);
+                            } else {
+                                /** the running events may still schedule earlier ones */
+                                queue.wait();
+                            }
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(SimKernel.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                if (!running) {
+                    break;
+                }
+                event = queue.poll();
+            }
+            dispatch(event);
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Executes an event in one of the workers and reschedules its task.
+     *
+     * @param event the event to execute
+     */
+    void dispatch(final SimEvent event) {
+        inFlight.incrementAndGet();
+        workers.execute(() -> {
+            long delay;
+            try {
+                delay = event.task.execute();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(SimKernel.class.getName()).log(Level.SEVERE, null, ex);
+                delay = -1;
+            }
+            if (delay >= 0) {
+                schedule(event.task, delay);
+            }
+            if (inFlight.decrementAndGet() == 0) {
+                synchronized (queue) {
+                    queue.notify();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts an actor in the kernel.
+     * The first event initializes the actor and its <code>CommStack</code>;
+     * the following ones update its position every <code>time_pace</code> milliseconds.
+     *
+     * @param actor the actor to start
+     */
+    public void startActor(final Actor actor) {
+        if (tickEngine != null) {
+            schedule(() -> {
+                actor.initActor();
+                startCommStack(actor);
+                tickEngine.addActor(actor);
+                return -1;
+            }, 0);
+            return;
+        }
+        schedule(new SimTask() {
+            boolean started = false;
+
+            @Override
+            public long execute() {
+                if (!started) {
+                    started = true;
+                    actor.initActor();
+                    startCommStack(actor);
+                }
+                long delay = actor.step();
+                if (delay < 0) {
+                    /** completes the dying process; the actor is removed when its CommStack ends */
+                    actor.alive = false;
+                }
+                return delay;
+            }
+        }, 0);
+    }
+
+    /**
+     * Schedules the updates of the <code>CommStack</code> of an actor.
+     * When the actor dies, the stack is turned off and the actor is removed
+     * (or, if it is migrating, sent to another LocalCoordinator).
+     *
+     * @param actor the owner of the CommStack
+     */
+    void startCommStack(final Actor actor) {
+        final CommStack cs = actor.getCommStack();
+        schedule(() -> {
+            long delay = cs.step();
+            if (delay < 0) {
+                cs.turnOff();
+                actor.end();
+            }
+            return delay;
+        }, 1000);
+    }
+
+    /**
+     * Moves the actors in fixed steps, with a <code>TickEngine</code>, instead
+     * of one event per actor. The status updates become double-buffered.
+     * Must be called before the first actor is started.
+     *
+     * @param time_pace duration of a tick, in milliseconds
+     */
+    public void enableTickEngine(int time_pace) {
+        tickEngine = new TickEngine(time_pace, nWorkers);
+        SimStatus.doubleBuffered = true;
+        schedule(tickEngine, 0);
+    }
+
+    /**
+     * Stops the kernel. Pending events are discarded.
+     */
+    public void stopKernel() {
+        if (tickEngine != null) {
+            tickEngine.stopEngine();
+        }
+        synchronized (queue) {
+            running = false;
+            queue.clear();
+            queue.notify();
+        }
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getWorkers() {
+        return nWorkers;
+    }
+}
@@ -1,7 +1,10 @@
 package um.simulator.core;
 
+import um.simulator.comm.physical.BroadcastLog;
 import um.simulator.comm.physical.PPDU;
+import um.simulator.comm.physical.RadioChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import um.simulator.actor.ActorStatus;
 import um.simulator.map.*;
 import um.simulator.reporting.ReportLocal;
@@ -22,9 +25,11 @@ public class SimStatus {
     public static HashMap<String, GlobalMap> maps = new HashMap<>();
     public static Map<String, ActorStatus> globalActors = Collections.synchronizedMap(new HashMap<String, ActorStatus>());
     public static ArrayList<String> localActorsList = new ArrayList<>();
+    /** actors being moved to this LocalCoordinator, whose messages are kept until they arrive (guarded by <code>localActorsList</code>) */
+    public static HashSet<String> incomingActors = new HashSet<>();
     public static HashMap<String, Double> machineLoadMap = new HashMap<>();
-    /** stand by messages */
-    public static HashMap<String,ArrayList<PPDU>> globalMessages = new HashMap<String, ArrayList<PPDU>>(); 
+    /** stand by messages, in the inbox of each actor (the messages to all the nodes in <code>"Broadcast"</code>) */
+    public static final InboxRegistry inboxes = new InboxRegistry();
     public static HashMap<String,String> appList = new HashMap<String,String>();
     /** false if Global Coordinator is shutting down */
     public static boolean running = true;
@@ -34,6 +39,33 @@ public class SimStatus {
     public static boolean physical = false;
     public static boolean network = false;
     public static boolean application = false;
+    /** event kernel running the local actors; null if each actor runs on its own threads */
+    public static SimKernel kernel = null;
+    /** regions of the LocalCoordinators, where the new actors are created; null if they are created by the least loaded one */
+    public static RegionPartitioner regions = null;
+    /** moves the actors to the LocalCoordinator of their region; null if they stay where they were created */
+    public static ActorMigrator migrator = null;
+    /** delivers the WAVE broadcasts to the local actors in range */
+    public static final RadioChannel radio = new RadioChannel();
+    /** the broadcast messages of the local actors, stored once */
+    public static final BroadcastLog broadcasts = new BroadcastLog();
+    /** the inboxes of the actors that moved here, while they remember the messages delivered before */
+    static final ConcurrentHashMap<String, Inbox> arrivedActors = new ConcurrentHashMap<>();
+    /** true if the status updates are double-buffered and published at the end of each tick (see <code>TickEngine</code>) */
+    public static volatile boolean doubleBuffered = false;
+    /** status updates written during the current tick, to be published at its end */
+    static final ConcurrentHashMap<String, ActorStatus> nextActors = new ConcurrentHashMap<>();
+    /** marks, in <code>nextActors</code>, an actor to be removed */
+    static final ActorStatus REMOVED_ACTOR = new ActorStatus("", 0, 0, "");
+    /** the status of the actors published at the end of the last tick, read 
+     * without locks; only the entries changed in the tick are updated */
+    static final ConcurrentHashMap<String, ActorStatus> publishedActors = new ConcurrentHashMap<>();
+    /** spatial index of <code>globalActors</code>, used to search the neighbours of the actors */
+    static final SpatialGrid actorsGrid = new SpatialGrid(SpatialGrid.DEFAULT_CELL_SIZE);
+    /** spatial index of <code>globalActors</code> with cells as large as the 
+     * ranges of the radios, used to search the actors in range; null until a 
+     * range larger than the cells of <code>actorsGrid</code> is registered */
+    static volatile SpatialGrid rangeGrid = null;
     
     
     /**
@@ -42,6 +74,11 @@ public class SimStatus {
      */
     public static void clear() {
         globalActors.clear();
+        publishedActors.clear();
+        actorsGrid.clear();
+        if (rangeGrid != null) {
+            rangeGrid.clear();
+        }
         machineLoadMap.clear();
     }
 
@@ -100,6 +137,12 @@ public class SimStatus {
     public synchronized static void registerNewActor(String id, double x, double y, String label) {
         ActorStatus as = new ActorStatus(id, x, y, label);
         globalActors.put(as.getActorId(), as);
+        if (doubleBuffered) {
+            /** indexed at the end of the tick */
+            nextActors.put(id, as);
+        } else {
+            indexActor(as);
+        }
         registerLocalActor(id);
         registerActorforMessages(id); 
     }
@@ -112,9 +155,9 @@ public class SimStatus {
      * @param y     Current y axis position.
      * @param label The actor's current label.
      */
-    public synchronized static void setActorStatus(String id, double x, double y, String label) {
+    public static void setActorStatus(String id, double x, double y, String label) {
         ActorStatus as = new ActorStatus(id, x, y, label);
-        globalActors.put(as.getActorId(), as);
+        putActorStatus(as);
     }
 
     /**
@@ -127,9 +170,9 @@ public class SimStatus {
      * @param vy    Current y axis speed.
      * @param label The actor's current label.
      */
-    public synchronized static void setActorStatus(String id, double x, double y, double vx, double vy, String label) {
+    public static void setActorStatus(String id, double x, double y, double vx, double vy, String label) {
         ActorStatus as = new ActorStatus(id, x, y, vx, vy, label);
-        globalActors.put(as.getActorId(), as);
+        putActorStatus(as);
     }
 
     /**
@@ -143,11 +186,11 @@ public class SimStatus {
      * @param label The actor's current label.
      * @param dying dying flag
      */
-    public synchronized static void setActorStatus(String id, double x, double y, double vx, double vy, String label, boolean dying) {
+    public static void setActorStatus(String id, double x, double y, double vx, double vy, String label, boolean dying) {
         ActorStatus as = new ActorStatus(id, x, y, vx, vy, label);
         /** start dying process */
         as.setDying(dying);
-        globalActors.put(as.getActorId(), as);
+        putActorStatus(as);
     }
 
     
@@ -155,11 +198,87 @@ public class SimStatus {
      * Sets, updates or removes the status of an actor from <code>ActorStatus</code>. 
      * @param as new actor status
      */
-    public synchronized static void setActorStatus(ActorStatus as) {
-        if (as.actorDyingQ()) {
-            globalActors.remove(as.getActorId());
+    public static void setActorStatus(ActorStatus as) {
+        if (doubleBuffered) {
+            nextActors.put(as.getActorId(), as.actorDyingQ() ? REMOVED_ACTOR : as);
+            return;
+        }
+        synchronized (SimStatus.class) {
+            if (as.actorDyingQ()) {
+                globalActors.remove(as.getActorId());
+                unindexActor(as.getActorId());
+            } else {
+                globalActors.put(as.getActorId(), as);
+                indexActor(as);
+            }
+        }
+    }
+    
+    /**
+     * Stores the status of an actor: directly in <code>globalActors</code> or, 
+     * if the updates are double-buffered, in the buffer of the next tick.
+     * 
+     * @param as new actor status
+     */
+    static void putActorStatus(ActorStatus as) {
+        if (doubleBuffered) {
+            nextActors.put(as.getActorId(), as);
         } else {
-            globalActors.put(as.getActorId(), as);
+            synchronized (SimStatus.class) {
+                globalActors.put(as.getActorId(), as);
+                indexActor(as);
+            }
+        }
+    }
+    
+    /**
+     * Adds an actor to the spatial indexes, or updates it (holding the 
+     * <code>SimStatus</code> lock).
+     * 
+     * @param as new actor status
+     */
+    static void indexActor(ActorStatus as) {
+        actorsGrid.update(as);
+        if (rangeGrid != null) {
+            rangeGrid.update(as);
+        }
+    }
+    
+    /**
+     * Removes an actor from the spatial indexes (holding the 
+     * <code>SimStatus</code> lock).
+     * 
+     * @param id the actor's id
+     */
+    static void unindexActor(String id) {
+        actorsGrid.remove(id);
+        if (rangeGrid != null) {
+            rangeGrid.remove(id);
+        }
+    }
+    
+    /**
+     * Publishes the status updates buffered during the current tick: applies 
+     * them to <code>globalActors</code> and to the status read by the actors 
+     * during the next tick.
+     */
+    public synchronized static void publishActorStatus() {
+        for (String id : nextActors.keySet()) {
+            ActorStatus as = nextActors.remove(id);
+            if (as == REMOVED_ACTOR) {
+                globalActors.remove(id);
+                publishedActors.remove(id);
+                unindexActor(id);
+            } else if (as != null) {
+                /** the dying flag set by the LocalCoordinator is not overwritten */
+                ActorStatus old = globalActors.get(id);
+                if (old != null && old.actorDyingQ() && localActorsList.contains(id)) {
+                    as.setDying(true);
+                }
+                globalActors.put(id, as);
+                publishedActors.put(id, as);
+                indexActor(as);
+            }
         }
     }
 
@@ -170,6 +289,17 @@ public class SimStatus {
      */
     public synchronized static void removeActor(String id) {
         
+        radio.unregister(id);
+        broadcasts.close(id);
+        inboxes.remove(id);
+        arrivedActors.remove(id);
+        if (doubleBuffered) {
+            /** removed from the indexes at the end of the tick */
+            nextActors.put(id, REMOVED_ACTOR);
+        } else {
+            nextActors.remove(id);
+            unindexActor(id);
+        }
         if (localActorsList.remove(id)) {
             if (globalActors.remove(id) == null) {
                 System.out.println("WARNING: SimStatus.removeActor(): actor with id " + id + " could not be removed from the globalActors list!");
@@ -192,17 +322,94 @@ public class SimStatus {
      * @param id    The actor's id.
      */
     public static void registerActorforMessages(String id) {
-        synchronized (globalMessages) {
-            if (!globalMessages.containsKey(id)) {
-                globalMessages.put(id, new ArrayList<PPDU>());
-            }
+        inboxes.open(id);
+    }
 
-            if (!globalMessages.containsKey("Broadcast")) {
-                globalMessages.put("Broadcast", new ArrayList<PPDU>());
+    /**
+     * Removes an <code>Actor</code> that moved to another LocalCoordinator from 
+     * the local actors. Its status is kept, to be updated by the new one, and 
+     * its cursor in the <code>BroadcastLog</code> is closed by the 
+     * <code>LocalCoordinator</code>, which sends the broadcasts it did not read.
+     * 
+     * @param id    The actor's id.
+     */
+    public synchronized static void unregisterLocalActor(String id) {
+        nextActors.remove(id);
+        radio.unregister(id);
+        synchronized (localActorsList) {
+            localActorsList.remove(id);
+            /** notifies <code>LocalCoordinator</code> that all actors were removed */
+            if (localActorsList.isEmpty()) {
+                localActorsList.notify();
             }
         }
     }
-
+    
+    /**
+     * Sets an <code>Actor</code> that is moving to this LocalCoordinator as 
+     * ready to receive new messages: they are kept until it arrives.
+     * 
+     * @param id    The actor's id.
+     */
+    public static void registerIncomingActor(String id) {
+        registerActorforMessages(id);
+        synchronized (localActorsList) {
+            incomingActors.add(id);
+        }
+    }
+    
+    /**
+     * Ends the reception of the messages of an incoming actor: it arrived, 
+     * and its physical protocol reads the broadcasts (see 
+     * <code>actorArrived</code>), or it did not move.
+     * 
+     * @param id    The actor's id.
+     */
+    public static void unregisterIncomingActor(String id) {
+        synchronized (localActorsList) {
+            incomingActors.remove(id);
+        }
+    }
+    
+    /**
+     * Completes the arrival of an actor that moved to this LocalCoordinator, 
+     * once its physical protocol opened its cursor in the 
+     * <code>BroadcastLog</code> and registered in the <code>RadioChannel</code>. 
+     * The frames the radio channel delivered to it before it moved, which 
+     * it did not read, are passed to it through its cursor, as received, so 
+     * that they are not tested again; then it stops getting copies of the 
+     * broadcasts, which are delivered to it through its cursor from now on.
+     * The copies it got until then stay in its inbox.
+     * 
+     * @param id    The actor's id.
+     * @param received  The frames received before moving.
+     */
+    public static void actorArrived(String id, ArrayList<PPDU> received) {
+        for (PPDU m : received) {
+            if (!broadcasts.appendTo(m, id)) {
+                inboxes.open(id).add(m);
+            }
+        }
+        unregisterIncomingActor(id);
+    }
+    
+    /**
+     * Takes the actors moving to this LocalCoordinator: the broadcasts sent 
+     * from now on are not delivered to them, even if their physical protocol 
+     * is ready, but copied to their inboxes (see <code>addToIncomingActors</code>), 
+     * so that each one is delivered once.
+     * 
+     * @return  The ids of the actors, or null if there are none.
+     */
+    public static HashSet<String> getIncomingActors() {
+        if (incomingActors.isEmpty()) {
+            return null;
+        }
+        synchronized (localActorsList) {
+            return incomingActors.isEmpty() ? null : new HashSet<>(incomingActors);
+        }
+    }
+    
     /**
      * Adds new <code>Actor</code> to the local actors.
      * 
@@ -225,11 +432,24 @@ public class SimStatus {
     public synchronized static void setListActorStatus(HashMap<String, ActorStatus> globalActorList) {
         for (ActorStatus actor : globalActorList.values()) {
             if (!localActorsList.contains(actor.getActorId())) {
-                globalActors.put(actor.getActorId(), actor);
+                putActorStatus(actor);
             }
         }
     }
 
+    /**
+     * Returns the state of a traffic light: 0 (green), 1 (yellow) or 2 (red).
+     * A traffic light whose status is not known here (e.g. out of the tiles 
+     * received by this LocalCoordinator) is taken as green.
+     *
+     * @param id The id of the traffic light's map point.
+     * @return The state of the traffic light.
+     */
+    public static int getTrafficLightState(int id) {
+        ActorStatus as = getActorStatus("TrafficLight." + id);
+        return as == null ? 0 : as.getTlState();
+    }
+
     /**
      * Returns the status of an actor given its id.
      *
@@ -237,12 +457,21 @@ public class SimStatus {
      * @return The status of the actor.
      */
     public static ActorStatus getActorStatus(String a_id) {
+        if (doubleBuffered) {
+            ActorStatus as = publishedActors.get(a_id);
+            if (as != null) {
+                return as;
+            }
+        }
         return globalActors.get(a_id);
     }
 
     /**
-     * This method traverses all the actors to search for the neighbours of a
-     * given point within a given radius. 
+     * This method searches for the neighbours of a given point within a given
+     * radius, in the spatial index of the actors: only the actors in the cells
+     * near the point are traversed. 
+     * With double-buffered updates, the index holds the status published at 
+     * the end of the previous tick.
      *
      * @param a_id  The actor's id.
      * @param x     Position in the x axis.
@@ -250,28 +479,69 @@ public class SimStatus {
      * @param radius    Distance from the given point and the neighbours to return.
      * @return  A list of neighbours.
      */
-    public synchronized static HashMap<String, ActorStatus> getNeighbours(String a_id, double x, double y, double radius) {
-        double distance2;
-        double r2=radius;
-        
-        HashMap<String, ActorStatus> neighbours = new HashMap<>();
-
-        for (ActorStatus as : globalActors.values()) {
-            distance2 = Math.sqrt(CoordinatesHelper.distanceSquare(x, y, as.getActor_x(), as.getActor_y()));
-            if (!as.getActorId().contains(a_id) && distance2 <= r2) {
-                neighbours.put(as.getActorId(), as);
+    public static HashMap<String, ActorStatus> getNeighbours(String a_id, double x, double y, double radius) {
+        return actorsGrid.query(a_id, x, y, radius);
+    }
+    
+    /**
+     * Searches all the actors within a given radius of a point, in the 
+     * spatial index of the actors.
+     *
+     * @param x     Position in the x axis.
+     * @param y     Position in the y axis.
+     * @param radius    Distance from the given point and the actors to return.
+     * @return  A list of actors.
+     */
+    public static HashMap<String, ActorStatus> getActorsInRange(double x, double y, double radius) {
+        if (rangeGrid == null) {
+            if (radius <= actorsGrid.getCellSize()) {
+                return actorsGrid.query(null, x, y, radius);
             }
+            registerRange(radius);
+        }
+        return rangeGrid.query(null, x, y, radius);
+    }
+    
+    /**
+     * Registers the range of a radio: the actors in range are then searched 
+     * in an index with cells at least as large as the range, built from 
+     * <code>actorsGrid</code> the first time.
+     * 
+     * @param range the range, in meters
+     */
+    public synchronized static void registerRange(double range) {
+        if (rangeGrid != null) {
+            rangeGrid.fitRadius(range);
+        } else if (range > actorsGrid.getCellSize()) {
+            SpatialGrid grid = new SpatialGrid(range);
+            for (ActorStatus as : actorsGrid.values()) {
+                grid.update(as);
+            }
+            rangeGrid = grid;
         }
-        return neighbours;
     }
 
     /**
      * Sets or updates the load of a machine.
-     * @param loadAndIP     Machine load and given IP addres separated with ':'.
+     * @param loadAndIP     Machine load, IP address and, optionally, simulation time, separated with '/'.
      */
     public static void setMachineLoad(String loadAndIP) {
         String[] parts = loadAndIP.split("/");
         machineLoadMap.put(parts[1], Double.parseDouble(parts[0]));
+        if (parts.length > 2) {
+            SimClock.follow(Long.parseLong(parts[2]));
+        }
+    }
+
+    /**
+     * Sets or updates the load of a machine, as received in the status packets.
+     * @param ip        IP address of the machine.
+     * @param load      Machine load.
+     * @param simTime   Simulation time of the machine.
+     */
+    public static void setMachineLoad(String ip, double load, long simTime) {
+        machineLoadMap.put(ip, load);
+        SimClock.follow(simTime);
     }
 
     /**
@@ -297,45 +567,118 @@ public class SimStatus {
     }
 
     /**
-     * Adds a new <code>PPDU</code> packet to <code>globalMessages</code>.
+     * Adds a new <code>PPDU</code> packet, received from another node, to 
+     * the inbox of its destination, if it is a local or incoming actor.
      * 
      * @param m     A <code>PPDU</code> packet to add.
      */
     public static void addMessage(PPDU m) {
 
-        if (localActorsList.contains(m.getDestination_id())) {
-            synchronized (globalMessages.get(m.getDestination_id())) {
-                globalMessages.get(m.getDestination_id()).add(m);
+        if (localActorsList.contains(m.getDestination_id()) || incomingActors.contains(m.getDestination_id())) {
+            Inbox inbox = inboxes.open(m.getDestination_id());
+            if (!inbox.wasDelivered(m)) {
+                inbox.add(m);
             }
         }
     }
-
+    
     /**
-     * Adds a new <code>PPDU</code> packet to all local actors (broadcast).
+     * Registers an actor that moved to this LocalCoordinator: the messages 
+     * delivered to it before it moved are not delivered again, if they are 
+     * received later from the other nodes.
      * 
-     * @param m     A <code>PPDU</code> packet to add.
+     * @param id    The actor's id.
+     * @param delivered The messages (<code>PPDU.toStringToPacket</code>) delivered to it.
      */
-    public static void addBroadcastMessage(PPDU m) {
-        ArrayList<String> localActorsListCopy = new ArrayList<String>();
-        synchronized (localActorsList) {
-            localActorsListCopy.addAll(SimStatus.localActorsList);
+    public static void registerArrivedActor(String id, Set<String> delivered) {
+        Inbox inbox = inboxes.open(id);
+        inbox.setDelivered(delivered);
+        arrivedActors.put(id, inbox);
+    }
+    
+    /**
+     * Finds the actors that moved here to which a broadcast packet, received 
+     * from another node, was delivered before they moved.
+     * 
+     * @param m     The received <code>PPDU</code> packet.
+     * @return  The ids of the actors, or null if there are none.
+     */
+    public static HashSet<String> getDeliveredBefore(PPDU m) {
+        if (arrivedActors.isEmpty()) {
+            return null;
         }
-        /** adds the broadcast message to all local actors */
-        for (String actor_id : localActorsListCopy) {
-
-            /** If destiny != source */
-            if (!actor_id.equals(m.getSource_id())) {
-                synchronized (globalMessages.get(actor_id)) {
-                    globalMessages.get(actor_id).add(new PPDU(m));
+        HashSet<String> ids = null;
+        for (Inbox inbox : arrivedActors.values()) {
+            if (!inbox.remembersDelivered()) {
+                arrivedActors.remove(inbox.getId(), inbox);
+            } else if (inbox.wasDelivered(m)) {
+                if (ids == null) {
+                    ids = new HashSet<>();
                 }
+                ids.add(inbox.getId());
             }
         }
+        return ids;
+    }
 
-        /** adds to broadcast list */
-        synchronized (globalMessages.get("Broadcast")) {
-            globalMessages.get("Broadcast").add(new PPDU(m));
+    /**
+     * Adds a new <code>PPDU</code> packet to all local actors (broadcast): 
+     * it is stored once, in the <code>BroadcastLog</code>.
+     * 
+     * @param m     A <code>PPDU</code> packet to add, not changed afterwards.
+     */
+    public static void addBroadcastMessage(PPDU m) {
+        HashSet<String> incoming = getIncomingActors();
+        if (incoming == null) {
+            broadcasts.append(m, null);
+        } else {
+            broadcasts.appendExcept(m, incoming);
+        }
+        addToIncomingActors(m, incoming);
+        addBroadcastToNodes(m);
+    }
+    
+    /**
+     * Adds a copy of a broadcast <code>PPDU</code> packet to the messages of 
+     * the actors moving to this LocalCoordinator, which do not read the 
+     * <code>BroadcastLog</code> yet, but the ones it was delivered to before 
+     * they moved.
+     * 
+     * @param m     A <code>PPDU</code> packet to add.
+     * @param incoming  The incoming actors, taken (<code>getIncomingActors</code>) 
+     * before the packet was delivered to the other actors; null if none.
+     */
+    public static void addToIncomingActors(PPDU m, Set<String> incoming) {
+        if (incoming == null) {
+            return;
+        }
+        for (String actor_id : incoming) {
+            Inbox inbox = inboxes.open(actor_id);
+            if (!actor_id.equals(m.getSource_id()) && !inbox.wasDelivered(m)) {
+                inbox.add(new PPDU(m));
+            }
         }
     }
+    
+    /**
+     * Adds a broadcast <code>PPDU</code> packet to the list of the messages 
+     * sent to the other nodes.
+     * 
+     * @param m     A <code>PPDU</code> packet to add.
+     */
+    public static void addBroadcastToNodes(PPDU m) {
+        sendToNodes(new PPDU(m));
+    }
+    
+    /**
+     * Adds a <code>PPDU</code> packet to the list of the messages sent to the 
+     * other nodes; it is marked as sent when it is sent.
+     * 
+     * @param m     A <code>PPDU</code> packet to add, not used afterwards.
+     */
+    public static void sendToNodes(PPDU m) {
+        inboxes.open("Broadcast").add(m);
+    }
 
     /**
      * Registers the recepetion of a broadcast message.
@@ -343,21 +686,25 @@ public class SimStatus {
      * @param m     The received <code>PPDU</code> packet.
      */
     public static void addBroadcastMessageReceived(PPDU m) {
-        ArrayList<String> localActorsListCopy = new ArrayList<String>();
-        synchronized (localActorsList) {
-            localActorsListCopy.addAll(SimStatus.localActorsList);
+        /** the WAVE frames are delivered only to the actors in range */
+        if (m.getProtocol() == 'W') {
+            radio.receive(m);
+            return;
         }
-
-        /** adds the broadcast message to all local actors */
-        for (String actor_id : localActorsListCopy) {
-
-            /** If destiny != source */
-            if (!actor_id.equals(m.getSource_id())) {
-                synchronized (globalMessages.get(actor_id)) {
-                    globalMessages.get(actor_id).add(new PPDU(m));
-                }
+        HashSet<String> incoming = getIncomingActors();
+        HashSet<String> excluded = getDeliveredBefore(m);
+        if (incoming != null) {
+            if (excluded == null) {
+                excluded = incoming;
+            } else {
+                excluded.addAll(incoming);
             }
         }
-
+        if (excluded == null) {
+            broadcasts.append(m, null);
+        } else {
+            broadcasts.appendExcept(m, excluded);
+        }
+        addToIncomingActors(m, incoming);
     }
 }
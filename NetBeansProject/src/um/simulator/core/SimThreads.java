@@ -0,0 +1,146 @@
+package um.simulator.core;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class starts and joins the threads of the local simulation: actors,
+ * CommStacks, network protocols and PRoPHET neighbours managers.
+ *
+ * By default each of them runs on its own platform thread. When virtual threads
+ * are enabled (<code>LocalCoordinator.Execution=virtual</code>) and the JVM
+ * supports them (Java 21 or later), each <code>Thread</code> object is executed
+ * as the task of a virtual thread instead, so that its blocking loop
+ * (<code>Thread.sleep</code>, <code>Condition.await</code>) parks cheaply instead
+ * of holding a platform thread.
+ *
+ * The project is compiled for Java 8, so virtual threads are created through
+ * reflection; on older JVMs platform threads are used.
+ *
+ * With platform threads, an <code>ActorPool</code> may be used
+ * (<code>LocalCoordinator.ActorPool</code>), so that the <code>Thread</code>
+ * objects are run by threads started in advance instead of being started.
+ *
+ * @version 1.0
+ */
+public class SimThreads {
+
+    /** true if the threads are started as virtual threads */
+    static boolean virtual = false;
+    static Method ofVirtual;
+    static Method unstarted;
+    /** virtual threads running each of the started <code>Thread</code> objects */
+    static final Map<Thread, Thread> virtualThreads = new ConcurrentHashMap<>();
+    /** pool of started threads running the <code>Thread</code> objects; null if not used */
+    static ActorPool pool = null;
+    /** latches released when each <code>Thread</code> object run by the pool ends */
+    static final Map<Thread, CountDownLatch> pooled = new ConcurrentHashMap<>();
+
+    /**
+     * Enables the use of virtual threads, if the JVM supports them.
+     *
+     * @return true if virtual threads are enabled
+     */
+    public static boolean enableVirtualThreads() {
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            virtual = true;
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            virtual = false;
+        }
+        return virtual;
+    }
+
+    /**
+     * Goes back to starting the threads as platform threads.
+     */
+    public static void disableVirtualThreads() {
+        virtual = false;
+    }
+
+    /**
+     * Runs the threads on a pool of threads started in advance, instead of 
+     * starting them (unless virtual threads are enabled).
+     *
+     * @param size number of idle threads kept in the pool
+     */
+    public static void enablePool(int size) {
+        pool = new ActorPool(size);
+    }
+
+    /**
+     * @return the pool running the threads, or null if it is not used
+     */
+    public static ActorPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return true if the threads are started as virtual threads
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Starts a thread of the simulation.
+     *
+     * @param thread the thread to start
+     */
+    public static void start(final Thread thread) {
+        if (virtual) {
+            try {
+                Thread virtualThread = (Thread) unstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> {
+                    try {
+                        thread.run();
+                    } finally {
+                        virtualThreads.remove(thread);
+                    }
+                });
+                virtualThreads.put(thread, virtualThread);
+                virtualThread.start();
+                return;
+            } catch (ReflectiveOperationException ex) {
+                Logger.getLogger(SimThreads.class.getName()).log(Level.SEVERE, null, ex);
+                virtual = false;
+            }
+        }
+        if (pool != null) {
+            final CountDownLatch done = new CountDownLatch(1);
+            pooled.put(thread, done);
+            pool.execute(() -> {
+                try {
+                    thread.run();
+                } finally {
+                    pooled.remove(thread);
+                    done.countDown();
+                }
+            });
+            return;
+        }
+        thread.start();
+    }
+
+    /**
+     * Waits for a thread of the simulation to die.
+     *
+     * @param thread the thread to join
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public static void join(Thread thread) throws InterruptedException {
+        Thread virtualThread = virtualThreads.get(thread);
+        CountDownLatch done = pooled.get(thread);
+        if (virtualThread != null) {
+            virtualThread.join();
+        } else if (done != null) {
+            done.await();
+        } else {
+            thread.join();
+        }
+    }
+}
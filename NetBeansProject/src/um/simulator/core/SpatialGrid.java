@@ -0,0 +1,232 @@
+package um.simulator.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import um.simulator.actor.ActorStatus;
+
+/**
+ * This class implements a uniform grid (spatial hash) of the actors' status,
+ * used to find the neighbours of a point without traversing all the actors.
+ *
+ * The plane is divided in square cells of <code>cellSize</code> meters; each
+ * actor is stored in the cell containing its position. The grid is updated
+ * incrementally, every time the status of an actor changes, and a radius
+ * query only visits the cells that intersect the square around the point.
+ * The cells are as large as the largest radius of the queries, so a query
+ * visits at most 3x3 cells: a query with a larger radius, or a larger radius
+ * given to <code>fitRadius</code>, rebuilds the grid with larger cells.
+ *
+ * The cells are concurrent maps, replaced at once when the grid is rebuilt,
+ * so that queries do not block the updates. The updates and the rebuilds
+ * are synchronized.
+ *
+ * @version 1.0
+ */
+public class SpatialGrid {
+
+    /**
+     * Default size of the cells, in meters: the largest neighbourhood radius of
+     * the vehicles (25 m plus 30 times the speed, in km/s).
+     */
+    public static final double DEFAULT_CELL_SIZE = 32;
+
+    /** The cells of the grid, for a size of the cells. */
+    static class Cells {
+        /** size of the cells, in meters */
+        final double cellSize;
+        /** actors in each cell, by cell key */
+        final ConcurrentHashMap<Long, ConcurrentHashMap<String, ActorStatus>> cells = new ConcurrentHashMap<>();
+        /** cell key of each actor */
+        final ConcurrentHashMap<String, Long> actorCells = new ConcurrentHashMap<>();
+
+        Cells(double cellSize) {
+            this.cellSize = cellSize;
+        }
+
+        /**
+         * @param coordinate a coordinate, in meters
+         * @return the column (or row) of the cells containing the coordinate
+         */
+        long cellIndex(double coordinate) {
+            return (long) Math.floor(coordinate / cellSize);
+        }
+    }
+
+    /** the current cells */
+    volatile Cells grid;
+
+    /**
+     * Constructor: creates an empty grid.
+     *
+     * @param cellSize initial size of the cells, in meters
+     */
+    public SpatialGrid(double cellSize) {
+        grid = new Cells(cellSize);
+    }
+
+    /**
+     * @return the size of the cells, in meters
+     */
+    public double getCellSize() {
+        return grid.cellSize;
+    }
+
+    /**
+     * Makes the cells at least as large as a query radius, rebuilding the
+     * grid if they are smaller.
+     *
+     * @param radius the radius of a query, in meters
+     */
+    public synchronized void fitRadius(double radius) {
+        if (radius <= grid.cellSize) {
+            return;
+        }
+        Cells old = grid;
+        Cells larger = new Cells(radius);
+        for (Map<String, ActorStatus> cell : old.cells.values()) {
+            for (ActorStatus as : cell.values()) {
+                add(larger, as);
+            }
+        }
+        grid = larger;
+    }
+
+    /**
+     * Computes the key of the cell with the given column and row.
+     *
+     * @param col column of the cell
+     * @param row row of the cell
+     * @return the key of the cell
+     */
+    static long cellKey(long col, long row) {
+        return (col << 32) | (row & 0xffffffffL);
+    }
+
+    /**
+     * Adds an actor to the grid or updates its status, moving it to another
+     * cell if needed.
+     *
+     * @param as the new status of the actor
+     */
+    public synchronized void update(ActorStatus as) {
+        add(grid, as);
+    }
+
+    /**
+     * Adds an actor to some cells or updates its status.
+     */
+    static void add(Cells grid, final ActorStatus as) {
+        final String id = as.getActorId();
+        Long key = cellKey(grid.cellIndex(as.getActor_x()), grid.cellIndex(as.getActor_y()));
+        Long old = grid.actorCells.put(id, key);
+        if (key.equals(old)) {
+            /** same cell: it is not empty, since it holds the actor */
+            ConcurrentHashMap<String, ActorStatus> cell = grid.cells.get(key);
+            if (cell != null) {
+                cell.put(id, as);
+                return;
+            }
+        }
+        grid.cells.compute(key, (k, cell) -> {
+            if (cell == null) {
+                cell = new ConcurrentHashMap<>();
+            }
+            cell.put(id, as);
+            return cell;
+        });
+        if (old != null && !old.equals(key)) {
+            removeFromCell(grid, old, id);
+        }
+    }
+
+    /**
+     * Removes an actor from the grid.
+     *
+     * @param id the actor's id
+     */
+    public synchronized void remove(String id) {
+        Long old = grid.actorCells.remove(id);
+        if (old != null) {
+            removeFromCell(grid, old, id);
+        }
+    }
+
+    /**
+     * Removes an actor from a cell, discarding the cell if it becomes empty.
+     *
+     * @param grid the cells
+     * @param key the key of the cell
+     * @param id the actor's id
+     */
+    static void removeFromCell(Cells grid, Long key, final String id) {
+        grid.cells.computeIfPresent(key, (k, cell) -> {
+            cell.remove(id);
+            return cell.isEmpty() ? null : cell;
+        });
+    }
+
+    /**
+     * Removes all the actors from the grid.
+     */
+    public synchronized void clear() {
+        grid = new Cells(grid.cellSize);
+    }
+
+    /**
+     * Searches the neighbours of a given point within a given radius.
+     * The actor with the given id is excluded.
+     *
+     * @param a_id  The actor's id; null to exclude none.
+     * @param x     Position in the x axis.
+     * @param y     Position in the y axis.
+     * @param radius    Distance from the given point and the neighbours to return.
+     * @return  A list of neighbours.
+     */
+    public HashMap<String, ActorStatus> query(String a_id, double x, double y, double radius) {
+        if (radius > grid.cellSize) {
+            fitRadius(radius);
+        }
+        Cells grid = this.grid;
+        HashMap<String, ActorStatus> neighbours = new HashMap<>();
+        double r2 = radius * radius;
+        long colMax = grid.cellIndex(x + radius);
+        long rowMin = grid.cellIndex(y - radius);
+        long rowMax = grid.cellIndex(y + radius);
+        for (long col = grid.cellIndex(x - radius); col <= colMax; col++) {
+            for (long row = rowMin; row <= rowMax; row++) {
+                Map<String, ActorStatus> cell = grid.cells.get(cellKey(col, row));
+                if (cell == null) {
+                    continue;
+                }
+                for (ActorStatus as : cell.values()) {
+                    double dx = x - as.getActor_x();
+                    double dy = y - as.getActor_y();
+                    if (dx * dx + dy * dy <= r2 && (a_id == null || !as.getActorId().contains(a_id))) {
+                        neighbours.put(as.getActorId(), as);
+                    }
+                }
+            }
+        }
+        return neighbours;
+    }
+
+    /**
+     * @return the status of all the actors in the grid
+     */
+    public ArrayList<ActorStatus> values() {
+        ArrayList<ActorStatus> actors = new ArrayList<>();
+        for (Map<String, ActorStatus> cell : grid.cells.values()) {
+            actors.addAll(cell.values());
+        }
+        return actors;
+    }
+
+    /**
+     * @return the number of actors in the grid
+     */
+    public int size() {
+        return grid.actorCells.size();
+    }
+}
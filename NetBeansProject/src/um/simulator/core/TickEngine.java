@@ -0,0 +1,140 @@
+package um.simulator.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import um.simulator.actor.Actor;
+
+/**
+ * This class implements a fixed-step engine that moves all the local actors
+ * of the <code>SimKernel</code> in phases.
+ *
+ * Every <code>time_pace</code> milliseconds, a tick:
+ * 1 - lets the actors read their neighbours from the actors' status
+ * published at the end of the previous tick, which does not change during
+ * the tick (no locks);
+ * 2 - computes the new positions of all the actors in parallel, in a
+ * fork-join pool; the new status of each actor is written to the buffer of
+ * the next tick;
+ * 3 - publishes the buffered status, once all the actors moved: only the
+ * actors whose status changed are updated.
+ *
+ * The CommStacks and protocols of the actors keep running as events of the
+ * kernel. The engine is used when the <code>LocalCoordinator.Execution</code>
+ * property is set to <code>phased</code>.
+ *
+ * @version 1.0
+ */
+public class TickEngine implements SimKernel.SimTask {
+
+    /** An actor moved by the engine. */
+    static class Entry {
+        Actor actor;
+        /** time at which the actor is due to be updated again */
+        long due = 0;
+        boolean done = false;
+
+        Entry(Actor actor) {
+            this.actor = actor;
+        }
+    }
+
+    /** Updates a range of actors, splitting it among the workers of the pool. */
+    static class StepAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        /** number of actors updated by each task */
+        static final int THRESHOLD = 32;
+        Entry[] entries;
+        int from, to;
+        long now;
+
+        StepAction(Entry[] entries, int from, int to, long now) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.now = now;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    Entry e = entries[i];
+                    if (e.due <= now) {
+                        long delay = e.actor.step();
+                        if (delay < 0) {
+                            /** completes the dying process; the actor is removed when its CommStack ends */
+                            e.actor.alive = false;
+                            e.done = true;
+                        } else {
+                            e.due = now + delay;
+                        }
+                    }
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new StepAction(entries, from, middle, now),
+                        new StepAction(entries, middle, to, now));
+            }
+        }
+    }
+
+    /** duration of a tick, in milliseconds */
+    int time_pace;
+    ForkJoinPool pool;
+    final ArrayList<Entry> entries = new ArrayList<>();
+
+    /**
+     * Constructor: creates the engine.
+     *
+     * @param time_pace duration of a tick, in milliseconds
+     * @param parallelism number of workers of the fork-join pool
+     */
+    public TickEngine(int time_pace, int parallelism) {
+        this.time_pace = time_pace;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Adds an actor to the engine. It is moved from the next tick on.
+     *
+     * @param actor an initialized actor
+     */
+    public void addActor(Actor actor) {
+        synchronized (entries) {
+            entries.add(new Entry(actor));
+        }
+    }
+
+    /**
+     * Executes one tick.
+     *
+     * @return the time, in milliseconds, until the next tick
+     */
+    @Override
+    public long execute() {
+        long now = SimClock.currentTimeMillis();
+        long start = System.nanoTime();
+        Entry[] current;
+        synchronized (entries) {
+            entries.removeIf(e -> e.done);
+            current = entries.toArray(new Entry[entries.size()]);
+        }
+        /** phase 1 and 2: the actors read the published status and compute their new positions in parallel */
+        if (current.length > 0) {
+            pool.invoke(new StepAction(current, 0, current.length, now));
+        }
+        /** phase 3: publishes the next state */
+        SimStatus.publishActorStatus();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        if (elapsed > time_pace) {
+            System.err.println("WARNING - tick with " + current.length + " actors took " + elapsed + " ms");
+        }
+        return SimClock.remainingTime(time_pace, elapsed);
+    }
+
+    /** Stops the workers of the engine. */
+    public void stopEngine() {
+        pool.shutdown();
+    }
+}
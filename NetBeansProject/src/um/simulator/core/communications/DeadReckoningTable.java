@@ -0,0 +1,105 @@
+package um.simulator.core.communications;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import um.simulator.actor.ActorStatus;
+
+/**
+ * This class keeps the last status received from the remote actors, and
+ * extrapolates the position of those whose senders use dead reckoning between
+ * two status (see <code>StatusPacketCodec</code>).
+ *
+ * The position is extrapolated from the last position and velocity received
+ * (the velocity is in meters per millisecond). An actor that is not heard of
+ * for <code>EXPIRY_KEYFRAMES</code> keyframe intervals (its sender stopped,
+ * the packet with its dying flag was lost, or it moved to a tile group that
+ * is not joined) is removed. Without dead reckoning, the keyframe interval
+ * is taken as <code>StatusPacketCodec.NAMES_PERIOD</code>.
+ *
+ * @version 1.0
+ */
+class DeadReckoningTable {
+
+    /** period of a round of the senders, in milliseconds */
+    static final int ROUND_PERIOD = 100;
+    /** keyframe intervals after which a silent actor is removed */
+    static final int EXPIRY_KEYFRAMES = 3;
+
+    /** The last status received from an actor. */
+    static class Track {
+        ActorStatus status;
+        /** time at which the status was received */
+        long time;
+        /** time after which the actor is removed */
+        long expiry;
+        /** keyframe interval of the sender; 0 if it does not use dead reckoning */
+        int keyframe;
+    }
+
+    final HashMap<String, Track> tracks = new HashMap<>();
+
+    /**
+     * Stores the status received from an actor.
+     *
+     * @param as    The status.
+     * @param now   The current time, in milliseconds.
+     * @param keyframe  The keyframe interval of the sender, in rounds; 0 if
+     * it does not use dead reckoning.
+     */
+    void update(ActorStatus as, long now, int keyframe) {
+        if (as.actorDyingQ()) {
+            tracks.remove(as.getActorId());
+            return;
+        }
+        Track t = tracks.get(as.getActorId());
+        if (t == null) {
+            t = new Track();
+            tracks.put(as.getActorId(), t);
+        }
+        t.status = as;
+        t.time = now;
+        t.keyframe = keyframe;
+        t.expiry = now + (long) EXPIRY_KEYFRAMES * (keyframe > 0 ? keyframe : StatusPacketCodec.NAMES_PERIOD) * ROUND_PERIOD;
+    }
+
+    /**
+     * Extrapolates the status of the moving actors to the current time, and
+     * removes the expired ones.
+     *
+     * @param now   The current time, in milliseconds.
+     * @param statuses  List where the extrapolated status are added; the
+     * expired actors are added with the dying flag set.
+     */
+    void extrapolate(long now, ArrayList<ActorStatus> statuses) {
+        Iterator<Track> itr = tracks.values().iterator();
+        while (itr.hasNext()) {
+            Track t = itr.next();
+            ActorStatus last = t.status;
+            if (now > t.expiry) {
+                itr.remove();
+                ActorStatus as = copy(last, last.getActor_x(), last.getActor_y());
+                as.setDying(true);
+                statuses.add(as);
+            } else if (t.keyframe > 0 && now > t.time && (last.getActor_vx() != 0 || last.getActor_vy() != 0)) {
+                long dt = now - t.time;
+                statuses.add(copy(last, last.getActor_x() + last.getActor_vx() * dt, last.getActor_y() + last.getActor_vy() * dt));
+            }
+        }
+    }
+
+    /**
+     * Removes all the actors.
+     */
+    void clear() {
+        tracks.clear();
+    }
+
+    static ActorStatus copy(ActorStatus last, double x, double y) {
+        ActorStatus as = new ActorStatus(last.getActorId(), x, y, last.getActor_vx(), last.getActor_vy(), last.getLabel());
+        as.setActor_speed(last.getActor_speed());
+        as.setTlState(last.getTlState());
+        as.setLane(last.getLane());
+        return as;
+    }
+}
@@ -0,0 +1,110 @@
+package um.simulator.core.communications;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import um.simulator.comm.physical.PPDU;
+
+/**
+ * This class packs the messages of the <code>MulticastMessageSender</code>
+ * in datagrams of up to <code>MAX_PACKET</code> bytes (the payload of an
+ * Ethernet frame).
+ *
+ * Each message is encoded once, in UTF-8, and appended to the current packet
+ * as a frame: its length (unsigned short) followed by its bytes. When a frame
+ * does not fit, the current packet is sent at once and a new one started. The
+ * packets are direct buffers taken from a pool, with room for the header,
+ * which is written by the sender; the sender gives them back when it no
+ * longer needs them.
+ *
+ * @version 1.0
+ */
+class MessagePacketAssembler {
+
+    /** largest datagram */
+    static final int MAX_PACKET = 1472;
+    /** largest number of free packets kept */
+    static final int POOL_SIZE = 32;
+
+    final MulticastMessageSender sender;
+    final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+    final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    /** the message being added, encoded */
+    final ByteBuffer frame = ByteBuffer.allocate(MAX_PACKET);
+    /** the packet being filled; null if none */
+    ByteBuffer current;
+
+    /**
+     * Constructor: creates an assembler.
+     *
+     * @param sender The sender of the packets.
+     */
+    MessagePacketAssembler(MulticastMessageSender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Adds a message to the current packet. If it does not fit, sends the
+     * current packet and adds the message to a new one.
+     *
+     * @param msg The message.
+     * @return false if the message is too large for a packet (it is discarded)
+     */
+    boolean add(PPDU msg) {
+        frame.clear();
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(msg.toStringToPacket()), frame, true);
+        if (result.isOverflow() || frame.position() > MAX_PACKET - MulticastMessageSender.HEADER_SIZE - 2) {
+            return false;
+        }
+        frame.flip();
+        if (current != null && current.remaining() < 2 + frame.remaining()) {
+            flush();
+        }
+        if (current == null) {
+            current = acquire();
+            current.position(MulticastMessageSender.HEADER_SIZE);
+        }
+        current.putShort((short) frame.remaining());
+        current.put(frame);
+        return true;
+    }
+
+    /**
+     * Sends the current packet, if it has any message.
+     */
+    void flush() {
+        if (current != null && current.position() > MulticastMessageSender.HEADER_SIZE) {
+            ByteBuffer packet = current;
+            current = null;
+            packet.flip();
+            sender.sendPacket(packet);
+        }
+    }
+
+    /**
+     * @return A free packet, cleared.
+     */
+    synchronized ByteBuffer acquire() {
+        ByteBuffer packet = pool.poll();
+        if (packet == null) {
+            packet = ByteBuffer.allocateDirect(MAX_PACKET);
+        }
+        packet.clear();
+        return packet;
+    }
+
+    /**
+     * Gives back a packet that is no longer needed.
+     *
+     * @param packet The packet.
+     */
+    synchronized void release(ByteBuffer packet) {
+        if (pool.size() < POOL_SIZE) {
+            pool.add(packet);
+        }
+    }
+}
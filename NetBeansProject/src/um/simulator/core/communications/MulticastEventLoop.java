@@ -0,0 +1,404 @@
+package um.simulator.core.communications;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class runs the multicast communications of a LocalCoordinator in a
+ * single NIO event loop: the actors' status and the messages are received on
+ * two non-blocking <code>DatagramChannel</code>s, served by one
+ * <code>Selector</code>, and sent through a third channel shared by the
+ * <code>MulticastStatusSender</code> (every 100 ms) and the
+ * <code>MulticastMessageSender</code> (its full packets every 100 ms, and all
+ * the messages every second).
+ *
+ * The datagrams are received into a pool of direct buffers, up to
+ * <code>BATCH</code> per channel each time the selector wakes up, and handed
+ * to a worker thread that decodes them (<code>MulticastStatusReceiver</code>
+ * and <code>MulticastMessageReceiver</code>). The loop only copies the
+ * datagrams out of the socket, so the kernel receive buffers are drained
+ * quickly even when the decoding falls behind; when the pool is exhausted
+ * the datagrams are discarded and counted as dropped.
+ *
+ * The groups are joined on the interface given by <code>Multicast.Interface</code>
+ * or, if not set, on the first interface that is up, is not a loopback and
+ * supports multicast.
+ *
+ * @version 1.0
+ */
+public class MulticastEventLoop extends Thread {
+
+    /** number of buffers of the pool */
+    static final int POOL_SIZE = 256;
+    /** largest number of datagrams received from a channel each time the selector wakes up */
+    static final int BATCH = 64;
+    /** requested size of the kernel receive buffers, in bytes */
+    static final int RECEIVE_BUFFER = 1 << 20;
+    /** period of the messages sender (all the messages), in milliseconds */
+    static final int MESSAGES_PERIOD = 1000;
+
+    /** A datagram received, waiting to be decoded. */
+    static class Packet {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(StatusPacketCodec.MAX_PACKET);
+        InetAddress source;
+        /** true for the status channel, false for the messages channel */
+        boolean status;
+    }
+
+    Selector selector;
+    DatagramChannel statusChannel;
+    DatagramChannel messageChannel;
+    /** channel used by both senders */
+    DatagramChannel sendChannel;
+    NetworkInterface networkInterface;
+    MulticastStatusReceiver statusReceiver;
+    MulticastStatusSender statusSender;
+    MulticastMessageReceiver messageReceiver;
+    MulticastMessageSender messageSender;
+
+    /** free packets */
+    final ArrayBlockingQueue<Packet> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+    /** packets waiting to be decoded */
+    final ArrayBlockingQueue<Packet> pending = new ArrayBlockingQueue<>(POOL_SIZE);
+    /** receives the datagrams discarded when the pool is exhausted */
+    final ByteBuffer scratch = ByteBuffer.allocateDirect(StatusPacketCodec.MAX_PACKET);
+    /** addresses of this host and port of the send channel, to discard the own datagrams */
+    final HashSet<InetAddress> localAddresses = new HashSet<>();
+    int sendPort;
+
+    /** True if the loop is running; set to false to stop it */
+    volatile boolean runningQ = true;
+    /** True after the first local actor arrived */
+    volatile boolean sendingQ = false;
+    /** counters, written by the loop only */
+    volatile long packetsReceived = 0;
+    volatile long bytesReceived = 0;
+    volatile long packetsDropped = 0;
+
+    Thread worker;
+
+    /**
+     * Constructor: opens the channels and joins the status and messages groups.
+     *
+     * @param statusAddress The multicast IP address of the actors' status.
+     * @param statusPort The port of the actors' status.
+     * @param messageAddress The multicast IP address of the messages.
+     * @param messagePort The port of the messages.
+     * @param interfaceName The name of the interface where the groups are joined; null or empty to choose one.
+     * @throws IOException if the channels can not be opened
+     */
+    public MulticastEventLoop(String statusAddress, int statusPort, String messageAddress, int messagePort, String interfaceName) throws IOException {
+        super("MulticastEventLoop");
+        networkInterface = chooseInterface(interfaceName);
+        System.out.println("\tMulticast interface: " + networkInterface.getName());
+        for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            localAddresses.addAll(Collections.list(ni.getInetAddresses()));
+        }
+
+        selector = Selector.open();
+        statusChannel = openReceiver(statusAddress, statusPort);
+        statusChannel.register(selector, SelectionKey.OP_READ, Boolean.TRUE);
+        messageChannel = openReceiver(messageAddress, messagePort);
+        messageChannel.register(selector, SelectionKey.OP_READ, Boolean.FALSE);
+
+        sendChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        sendChannel.bind(null);
+        sendPort = ((InetSocketAddress) sendChannel.getLocalAddress()).getPort();
+
+        statusReceiver = new MulticastStatusReceiver(statusChannel, networkInterface);
+        statusSender = new MulticastStatusSender(sendChannel, statusAddress, statusPort);
+        messageReceiver = new MulticastMessageReceiver();
+        messageSender = new MulticastMessageSender(sendChannel, messageAddress, messagePort);
+
+        for (int i = 0; i < POOL_SIZE; i++) {
+            pool.add(new Packet());
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decode();
+            }
+        }, "MulticastDecoder");
+    }
+
+    /**
+     * Chooses the interface where the groups are joined.
+     *
+     * @param name The name of the interface; null or empty to choose one.
+     * @return The interface.
+     * @throws IOException if there is no suitable interface
+     */
+    static NetworkInterface chooseInterface(String name) throws IOException {
+        if (name != null && !name.trim().isEmpty()) {
+            NetworkInterface ni = NetworkInterface.getByName(name.trim());
+            if (ni != null) {
+                return ni;
+            }
+            System.out.println("Multicast interface " + name + " not found: choosing one");
+        }
+        for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (ni.isUp() && !ni.isLoopback() && ni.supportsMulticast()) {
+                for (InetAddress a : Collections.list(ni.getInetAddresses())) {
+                    if (a instanceof Inet4Address) {
+                        return ni;
+                    }
+                }
+            }
+        }
+        NetworkInterface ni = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+        if (ni == null) {
+            throw new IOException("no multicast interface");
+        }
+        return ni;
+    }
+
+    /**
+     * Opens a non-blocking channel bound to a port and joined to a group.
+     *
+     * @param address The multicast IP address of the group.
+     * @param port The port.
+     * @return The channel.
+     * @throws IOException if the channel can not be opened
+     */
+    DatagramChannel openReceiver(String address, int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        channel.bind(new InetSocketAddress(port));
+        channel.join(InetAddress.getByName(address), networkInterface);
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * @return The receiver of the actors' status, to configure it before starting the loop.
+     */
+    public MulticastStatusReceiver getStatusReceiver() {
+        return statusReceiver;
+    }
+
+    /**
+     * @return The sender of the actors' status, to configure it before starting the loop.
+     */
+    public MulticastStatusSender getStatusSender() {
+        return statusSender;
+    }
+
+    /**
+     * Enables the repair of the lost message packets (see <code>MulticastMessageSender</code>).
+     * 
+     * @param packets Number of packets kept by the sender to answer the requests.
+     */
+    public void setMessageRepair(int packets) {
+        messageSender.setRepair(packets);
+        messageReceiver.setRepair(messageSender);
+    }
+
+    /**
+     * Starts sending the actors' status and the messages (when the first local actor arrives).
+     */
+    public void startSending() {
+        sendingQ = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for the datagrams and the sending deadlines.
+     */
+    @Override
+    public void run() {
+        worker.start();
+        long nextRound = 0;
+        long nextMessages = 0;
+        try {
+            while (runningQ) {
+                long now = System.currentTimeMillis();
+                if (sendingQ) {
+                    if (now >= nextRound) {
+                        statusSender.sendRound();
+                        nextRound = Math.max(nextRound + DeadReckoningTable.ROUND_PERIOD, now + 1);
+                        if (now < nextMessages) {
+                            messageSender.drainMessages();
+                        }
+                    }
+                    if (now >= nextMessages) {
+                        messageSender.sendMessages();
+                        nextMessages = Math.max(nextMessages + MESSAGES_PERIOD, now + 1);
+                    }
+                    selector.select(Math.max(1, Math.min(nextRound, nextMessages) - now));
+                } else {
+                    selector.select();
+                }
+                Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+                while (itr.hasNext()) {
+                    SelectionKey key = itr.next();
+                    itr.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drain((DatagramChannel) key.channel(), (Boolean) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            if (runningQ) {
+                System.out.println("Error in MulticastEventLoop.run():\n" + ex);
+            }
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException ex) {
+            Logger.getLogger(MulticastEventLoop.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        close();
+        System.out.println("\tMulticast: " + packetsReceived + " packets (" + bytesReceived + " bytes) received, "
+                + packetsDropped + " dropped, " + getLostPackets() + " status and " + messageReceiver.getStats().getLost() + " message packets lost");
+    }
+
+    /**
+     * Receives the datagrams waiting in a channel, up to <code>BATCH</code>,
+     * and queues them to be decoded.
+     *
+     * @param channel The channel.
+     * @param status True for the status channel, false for the messages channel.
+     * @throws IOException if an error occurs
+     */
+    void drain(DatagramChannel channel, boolean status) throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            Packet p = pool.poll();
+            ByteBuffer buffer = p != null ? p.buffer : scratch;
+            buffer.clear();
+            SocketAddress source = channel.receive(buffer);
+            if (source == null) {
+                if (p != null) {
+                    pool.offer(p);
+                }
+                return;
+            }
+            InetSocketAddress from = (InetSocketAddress) source;
+            /** discards the datagrams sent by this LocalCoordinator */
+            if (from.getPort() == sendPort && localAddresses.contains(from.getAddress())) {
+                if (p != null) {
+                    pool.offer(p);
+                }
+                continue;
+            }
+            packetsReceived++;
+            bytesReceived += buffer.position();
+            if (p == null) {
+                packetsDropped++;
+                continue;
+            }
+            buffer.flip();
+            p.source = from.getAddress();
+            p.status = status;
+            pending.offer(p);
+        }
+    }
+
+    /**
+     * Decodes the datagrams received (runs in the worker thread), and does the
+     * periodic work of the status receiver.
+     */
+    void decode() {
+        try {
+            while (runningQ) {
+                Packet p = pending.poll(DeadReckoningTable.ROUND_PERIOD, TimeUnit.MILLISECONDS);
+                if (p != null) {
+                    if (p.status) {
+                        statusReceiver.handlePacket(p.buffer, p.source);
+                    } else {
+                        messageReceiver.handlePacket(p.buffer, p.source);
+                    }
+                    pool.offer(p);
+                }
+                statusReceiver.housekeeping();
+            }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(MulticastEventLoop.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * @return The number of datagrams received from other coordinators.
+     */
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    /**
+     * @return The number of bytes received from other coordinators.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return The number of datagrams discarded because the decoding fell behind.
+     */
+    public long getDroppedPackets() {
+        return packetsDropped;
+    }
+
+    /**
+     * @return The number of status packets lost in the network or in the
+     * kernel receive buffers, detected by gaps in the sequence numbers of the senders.
+     */
+    public long getLostPackets() {
+        return statusReceiver.getLostPackets();
+    }
+
+    /**
+     * Writes the packets received, lost, reordered and duplicated from each 
+     * sender of the status and of the messages (see <code>SequenceStats</code>).
+     * 
+     * @param file The file.
+     */
+    public void writeStats(File file) {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            SequenceStats.writeHeader(out);
+            statusReceiver.getStats().write(out);
+            messageReceiver.getStats().write(out);
+        } catch (IOException ex) {
+            Logger.getLogger(MulticastEventLoop.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Stops the loop for good; <code>join</code> waits until it is over.
+     */
+    public void stopLoop() {
+        runningQ = false;
+        selector.wakeup();
+    }
+
+    void close() {
+        try {
+            selector.close();
+            statusChannel.close();
+            messageChannel.close();
+            sendChannel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(MulticastEventLoop.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -9,13 +9,22 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashSet;
 import um.simulator.comm.physical.PPDU;
 import um.simulator.core.SimStatus;
 
 /**
  * This class listens to the multicast packets exchanged between nodes
  * and updates the <code>SimStatus</code> accordingly.
+ * It either runs as a thread, on its own socket, or handles the packets 
+ * received by a <code>MulticastEventLoop</code>.
+ * The sequence numbers of the packets of each sender are tracked (see 
+ * <code>SequenceStats</code>) to discard the duplicates and, with the repair 
+ * enabled, to ask for the packets missing (see <code>MulticastMessageSender</code>).
  * 
  * @author lmnd
  * @version 1.0
@@ -23,9 +32,6 @@ import um.simulator.core.SimStatus;
 public class MulticastMessageReceiver extends Thread {
     
     
-    /** 4 digits. maximum message length =(1472-4) =1468 */
-    static int MAXIMUMMSGLEN = 4;
-    
     InetAddress multicastGroup;
     int multicastPort;
     int multicastSenderPort = -1;
@@ -34,6 +40,14 @@ public class MulticastMessageReceiver extends Thread {
     static boolean offMulti;
     
     ArrayList<String> localActorsList = new ArrayList<String>();
+    /** the local actors and the actors moving to this node, whose messages are delivered here */
+    HashSet<String> receivingActors = new HashSet<String>();
+    /** the frame being decoded */
+    byte[] frame = new byte[MessagePacketAssembler.MAX_PACKET];
+    /** packets received, lost, reordered and duplicated, by sender */
+    SequenceStats stats = new SequenceStats("messages");
+    /** sender of this node, which answers the NACKs and sends the own ones; null if the repair is disabled */
+    MulticastMessageSender repairSender;
 
     
     /** Constructor: Creates a multicast message receiver with a given IP address 
@@ -60,6 +74,31 @@ public class MulticastMessageReceiver extends Thread {
         }
     }
     
+    /** Constructor: creates a multicast message receiver that handles the 
+     * packets received by a <code>MulticastEventLoop</code>, which discards the 
+     * packets sent by this host.
+     */
+    public MulticastMessageReceiver() {
+        offMulti = true;
+    }
+    
+    /**
+     * Enables the repair of the lost packets: asks the other nodes for the 
+     * packets missing, and answers their requests.
+     * 
+     * @param sender The sender of this node, with the repair enabled.
+     */
+    public void setRepair(MulticastMessageSender sender) {
+        repairSender = sender;
+    }
+    
+    /**
+     * @return The packets received, lost, reordered and duplicated, by sender.
+     */
+    public SequenceStats getStats() {
+        return stats;
+    }
+    
     /**
      * Changes the multicast port.
      * 
@@ -74,7 +113,6 @@ public class MulticastMessageReceiver extends Thread {
     public void run() {
         
         DatagramPacket dp = new DatagramPacket(new byte[1472],1472);
-        String packet;
         try {
             /** waits for the arrival of multicast packets and process them */
             while(offMulti) {
@@ -82,37 +120,12 @@ public class MulticastMessageReceiver extends Thread {
                 /** waits for the arrival of a new packet */
                 s.receive(dp);
                 
-                /** takes a picture of the current list of local actors */
-                synchronized(SimStatus.localActorsList){
-                    localActorsList.addAll(SimStatus.localActorsList);
-                }
-                
                 /** checks if the packet is arriving from this same host, 
                  * and discards it if it is */
                 if( (!dp.getAddress().getHostAddress().equalsIgnoreCase(localIP)) ||
                     (dp.getAddress().getHostAddress().equalsIgnoreCase(localIP) && 
                     (dp.getPort() != multicastSenderPort))) {
-                    packet = new String(dp.getData(), "UTF-8");
-                    int messagenum = Integer.valueOf(packet.substring(0, 2));
-                    int stringposition = 2;
-                    for(int i = 0; i<messagenum;i++){
-                        int msglen=0;
-                        msglen = Integer.valueOf(packet.substring(stringposition,stringposition+MAXIMUMMSGLEN));
-                        String msg = packet.substring(stringposition+MAXIMUMMSGLEN,stringposition+MAXIMUMMSGLEN+msglen);
-                        PPDU message = new PPDU(msg);
-                        /** checks if it's a broadcast message and if it is
-                         * from a node managed by a different <code>LocalCoordinator</code> */
-                        if(message.getDestination_id().equals("Broadcast") && !localActorsList.contains(message.getSource_id())){
-                            SimStatus.addBroadcastMessageReceived(new PPDU(msg));
-                            
-                        }
-                        /** checks if destination is a local actor and 
-                         * source it is a remote actor - another <code>LocalCoordinator</code> */
-                        else if(localActorsList.contains(message.getDestination_id()) && !localActorsList.contains(message.getSource_id())){
-                            SimStatus.addMessage(new PPDU(msg));
-                        }
-                        stringposition=stringposition+MAXIMUMMSGLEN+msglen;
-                    }
+                    handlePacket(ByteBuffer.wrap(dp.getData(), 0, dp.getLength()), dp.getAddress());
                 } 
             } 
 
@@ -124,10 +137,77 @@ public class MulticastMessageReceiver extends Thread {
         }
     }
     
+    /** Handles a packet sent by another node.
+     * 
+     * @param data  The contents of the packet.
+     * @param source The source address of the packet.
+     */
+    public void handlePacket(ByteBuffer data, InetAddress source) {
+        if(data.remaining() < MulticastMessageSender.HEADER_SIZE || data.getShort() != MulticastMessageSender.MAGIC 
+                || data.get() != MulticastMessageSender.VERSION) {
+            System.out.println("MulticastMessageReceiver.handlePacket(): received unknown packet type.");
+            return;
+        }
+        int type = data.get();
+        int flags = data.get();
+        int senderId = data.getInt();
+        int sequence = data.getInt();
+        /** a request to send again some packets: answers it if they were sent by this node */
+        if(type == MulticastMessageSender.NACK) {
+            if(repairSender != null && data.remaining() >= 10 && data.getInt() == repairSender.getSenderId()) {
+                int first = data.getInt();
+                repairSender.retransmit(first, data.getShort() & 0xffff);
+            }
+            return;
+        }
+        SequenceStats.Peer peer = stats.getPeer(source.getHostAddress() + "/" + Integer.toHexString(senderId));
+        if(peer.accept(sequence, (flags & MulticastMessageSender.FLAG_RETRANSMISSION) != 0) == SequenceStats.DUPLICATE) {
+            return;
+        }
+        /** asks for the packets skipped */
+        if(repairSender != null && peer.getLastGap() > 0) {
+            int gap = Math.min(peer.getLastGap(), SequenceStats.WINDOW);
+            repairSender.sendNack(senderId, sequence - gap, gap);
+        }
+        
+        /** takes a picture of the current list of local actors */
+        localActorsList.clear();
+        receivingActors.clear();
+        synchronized(SimStatus.localActorsList){
+            localActorsList.addAll(SimStatus.localActorsList);
+            receivingActors.addAll(SimStatus.localActorsList);
+            receivingActors.addAll(SimStatus.incomingActors);
+        }
+        try {
+            /** one message per frame: length and message */
+            while(data.remaining() >= 2){
+                int msglen = data.getShort() & 0xffff;
+                data.get(frame, 0, msglen);
+                PPDU message = new PPDU(new String(frame, 0, msglen, StandardCharsets.UTF_8));
+                /** checks if it's a broadcast message and if it is
+                 * from a node managed by a different <code>LocalCoordinator</code> */
+                if(message.getDestination_id().equals("Broadcast") && !localActorsList.contains(message.getSource_id())){
+                    SimStatus.addBroadcastMessageReceived(message);
+                
+                }
+                /** checks if destination is a local (or incoming) actor and 
+                 * source it is a remote actor - another <code>LocalCoordinator</code> */
+                else if(receivingActors.contains(message.getDestination_id()) && !localActorsList.contains(message.getSource_id())){
+                    SimStatus.addMessage(message);
+                }
+            }
+        }
+        catch (NumberFormatException | IndexOutOfBoundsException | BufferUnderflowException ex){
+            System.out.println("Error in MulticastMessageReceiver.handlePacket(): invalid packet:\n" + ex);
+        }
+    }
+    
     /** Shuts down multicast message receiver. */
     public void stopMulticast(){
         offMulti=false;
-        s.close();
+        if (s != null) {
+            s.close();
+        }
     }
     
     
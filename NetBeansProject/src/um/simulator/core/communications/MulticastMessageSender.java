@@ -5,22 +5,40 @@
 package um.simulator.core.communications;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashSet;
+import java.util.Random;
 import um.simulator.comm.physical.PPDU;
+import um.simulator.core.Inbox;
 import um.simulator.core.NetworkLogging;
 import um.simulator.core.SimStatus;
 
 /**
  * This class sends the multicast packets to other nodes
  * and updates the <code>SimStatus</code> accordingly.
+ * It either runs as a thread, on its own socket, or sends the messages when 
+ * called by a <code>MulticastEventLoop</code>.
+ * 
+ * Each packet starts with a header (13 bytes, big endian): magic (short), 
+ * version (byte), type (byte, <code>DATA</code> or <code>NACK</code>), flags 
+ * (byte, <code>FLAG_RETRANSMISSION</code>), sender id (int, random) and sequence 
+ * number (int, consecutive for the data packets of a sender). A data packet 
+ * carries the messages, in frames: length (unsigned short) and the message in 
+ * UTF-8 (see <code>MessagePacketAssembler</code>); a NACK asks the sender with the given id (int) to send 
+ * again a range of packets: first sequence number (int) and count (short). 
+ * With the repair enabled, the sender keeps its last packets to answer the NACKs.
+ * 
+ * The messages of the broadcast inbox (including the messages between local 
+ * actors, once they are read) and of the remote actors' inboxes are taken 
+ * every <code>TIMEDRAINMESSAGES</code> and a packet is sent as soon as it is 
+ * full; every <code>TIMESENDMESSAGESSLEEP</code>, the packet being filled is 
+ * also sent.
  * 
  * @author lmnd
  * @version 1.0
@@ -28,17 +46,38 @@ import um.simulator.core.SimStatus;
 public class MulticastMessageSender extends Thread {
     
     static int TIMESENDMESSAGESSLEEP = 1000;
+    /** period of the collection of the messages sent only once, in milliseconds */
+    static int TIMEDRAINMESSAGES = 100;
+    
+    /** "BM" */
+    static final short MAGIC = 0x424D;
+    static final byte VERSION = 2;
+    /** types of packets */
+    static final byte DATA = 0;
+    static final byte NACK = 1;
+    /** flag of the data packets sent again on request */
+    static final byte FLAG_RETRANSMISSION = 1;
+    static final int HEADER_SIZE = 13;
     
-    /** 4 digits. maximum message length =(1472-4) =1468 */
-    static int MAXIMUMMSGLEN = 4;
+    final int senderId = new Random().nextInt();
+    /** sequence number of the next data packet */
+    int sequence = 0;
+    /** last packets sent, by sequence number modulo the length; null if the repair is disabled */
+    ByteBuffer[] repairPackets;
+    int[] repairSequences;
+    final MessagePacketAssembler assembler = new MessagePacketAssembler(this);
     
     static boolean offMulti;
     
     
-    ArrayList<String> localActorsList = new ArrayList<String>();
+    HashSet<String> localActorsList = new HashSet<String>();
+    HashSet<String> incomingActors = new HashSet<String>();
     InetAddress multicastGroup;
     int multicastPort;
     MulticastSocket s;
+    /** channel of the <code>MulticastEventLoop</code>; null when running on its own socket */
+    DatagramChannel channel;
+    InetSocketAddress target;
     String localIP;
     
     /** Constructor: creates a multicast message sender with the given IP address and port.
@@ -47,6 +86,7 @@ public class MulticastMessageSender extends Thread {
      * @param multicastPort A port number to where the datagrams should be sent
      */
     public MulticastMessageSender (String multicastAddress, int multicastPort) {
+        offMulti = true;
         this.multicastPort = multicastPort;
         try {
             multicastGroup = InetAddress.getByName(multicastAddress);
@@ -62,6 +102,26 @@ public class MulticastMessageSender extends Thread {
         }
     }
     
+    /** Constructor: creates a multicast message sender that sends through the given channel.
+     * 
+     * @param channel The channel of the <code>MulticastEventLoop</code>.
+     * @param multicastAddress A multicast IP address
+     * @param multicastPort A port number to where the datagrams should be sent
+     */
+    public MulticastMessageSender (DatagramChannel channel, String multicastAddress, int multicastPort) {
+        offMulti = true;
+        this.multicastPort = multicastPort;
+        this.channel = channel;
+        try {
+            multicastGroup = InetAddress.getByName(multicastAddress);
+            target = new InetSocketAddress(multicastGroup, multicastPort);
+            localIP = InetAddress.getLocalHost().getHostAddress();
+        }
+        catch (UnknownHostException ex) {
+            System.out.println("Error creating MulticastMessageSender:\n" + ex);
+        }
+    }
+    
     /**
      * Returns the local port being used.
      * 
@@ -73,156 +133,17 @@ public class MulticastMessageSender extends Thread {
     
     @Override
     public void run() {
-        String packet = "";
-
-        int msgcount = 0;
-        
         try {           
             /** periodically broadcasts all messages */
+            long nextSend = 0;
             while(offMulti) {
-                
-                msgcount = 0;
-                
-                /** takes a picture of the current list of local actors */
-                localActorsList.clear();
-                synchronized(SimStatus.localActorsList){
-                    localActorsList.addAll(SimStatus.localActorsList);
-                }
-                Object keys [] = SimStatus.globalMessages.keySet().toArray();
-                /** for all message entries */
-                for(Object actor_id_a: keys){
-                    String actor_id = (String) actor_id_a;
-                    /** if message is sent in broadcast */
-                    if(actor_id.equals("Broadcast")){    
-                        synchronized(SimStatus.globalMessages.get(actor_id)){                       
-                            for(PPDU msg: SimStatus.globalMessages.get(actor_id)){
-                                /** sets message as sent */
-                                msg.setSent(true);
-                                
-                                if((packet.length() + msg.toStringToPacket().length()) + MAXIMUMMSGLEN+2 < 1472){ 
-                                    packet += String.format("%04d",msg.toStringToPacket().length());
-                                    packet += msg.toStringToPacket();
-                                    msgcount++;
-                                }  
-                                else { 
-                                    /** the current packet is almost full, so lets send it */
-                                    packet = String.format("%02d", msgcount) + packet;
-                                    sendPacket(packet);
-                                    packet = new String();
-                                    packet = String.format("%04d",msg.toStringToPacket().length());
-                                    packet += msg.toStringToPacket();
-                                    msgcount = 1;
-                                }
-                            }
-                            /** clears all messages after sent */
-                            SimStatus.globalMessages.get(actor_id).clear();
-                        }
-
-                    }
-                    /** if it is a local actor */
-                    else if(localActorsList.contains(actor_id)){
-                       
-                        synchronized(SimStatus.globalMessages.get(actor_id)){
-                            
-                            PPDU msg;
-                            Iterator<PPDU> i = SimStatus.globalMessages.get(actor_id).iterator();
-                            
-                            while(i.hasNext()){
-                                msg = i.next();
-                                /** if it's not a broadcast message */    
-                                if(!msg.getDestination_id().equals("Broadcast")){
-                                    /** if message was read already */
-                                    if(msg.isRead()){
-                                        /** sets message as sent */
-                                        msg.setSent(true);
-                                        
-                                        if((packet.length() + msg.toStringToPacket().length()) + MAXIMUMMSGLEN+2 < 1472){ 
-                                            packet += String.format("%04d",msg.toStringToPacket().length());
-                                            packet += msg.toStringToPacket();
-                                            msgcount++;
-                                            
-                                        }  
-                                        else { 
-                                            /** the current packet is almost full, so lets send it */
-                                            packet = String.format("%02d", msgcount) + packet;
-                                            sendPacket(packet);
-                                            packet = new String();
-                                            packet = String.format("%04d",msg.toStringToPacket().length());
-                                            packet += msg.toStringToPacket();
-                                            msgcount = 1;
-                                        }
-
-                                        /** deletes message because it was already read and sent */
-                                        i.remove();
-
-
-                                    }
-                                    /** if message was not read already */
-                                    else{
-
-                                        /** sets message as sent */
-                                        msg.setSent(true);
-                                        
-                                        if((packet.length() + msg.toStringToPacket().length()) + MAXIMUMMSGLEN+2 < 1472){ 
-                                            packet += String.format("%04d",msg.toStringToPacket().length());
-                                            packet += msg.toStringToPacket();
-                                            msgcount++;
-                                        }  
-                                        else { 
-                                            /** the current packet is almost full, so lets send it */
-                                            packet = String.format("%02d", msgcount) + packet;
-                                            sendPacket(packet);
-                                            packet = new String();
-                                            packet = String.format("%04d",msg.toStringToPacket().length());
-                                            packet += msg.toStringToPacket();
-                                            msgcount = 1;
-                                        }
-                                    }
-                                } 
-                            }
-                        }
-                        
-                        
-                    }
-                    /** it's a remote actor and there are messages */
-                    else{
-                        synchronized(SimStatus.globalMessages.get(actor_id)){
-                            for(PPDU msg: SimStatus.globalMessages.get(actor_id)){
-
-                                /** sets message as sent */
-                                msg.setSent(true);
-                                
-                                if((packet.length() + msg.toStringToPacket().length()) + MAXIMUMMSGLEN+2 < 1472){ 
-                                    packet += String.format("%04d",msg.toStringToPacket().length());
-                                    packet += msg.toStringToPacket();
-                                    msgcount++;
-                                }  
-                                else { 
-                                    /** the current packet is almost full, so lets send it */
-                                    packet = String.format("%02d", msgcount) + packet;
-                                    sendPacket(packet);
-                                    packet = new String();
-                                    packet = String.format("%04d",msg.toStringToPacket().length());
-                                    packet += msg.toStringToPacket();
-                                    msgcount = 1;
-                                }
-
-                            }
-                            /** deletes all messages */
-                            SimStatus.globalMessages.get(actor_id).clear();
-                        }    
-                        
-                    }
-                    
+                if(System.currentTimeMillis() >= nextSend) {
+                    sendMessages();
+                    nextSend = System.currentTimeMillis() + TIMESENDMESSAGESSLEEP;
+                } else {
+                    drainMessages();
                 }
-                
-                if(msgcount!=0){
-                    packet = String.format("%02d", msgcount) + packet;
-                    sendPacket(packet);
-                    packet = new String();
-                }
-                
-                Thread.sleep(TIMESENDMESSAGESSLEEP);
+                Thread.sleep(TIMEDRAINMESSAGES);
             } 
         } 
         catch (InterruptedException ex) {
@@ -231,20 +152,146 @@ public class MulticastMessageSender extends Thread {
         }
     }
 
-    /** Sends packet to other nodes.
+    /** Sends all the pending messages once, including the packet being filled. */
+    public void sendMessages() {
+        collect();
+        assembler.flush();
+    }
+    
+    /** Collects the pending messages, sending only the packets that are full. */
+    public void drainMessages() {
+        collect();
+    }
+    
+    /** Adds the pending messages to the packets. */
+    private void collect() {
+        /** takes a picture of the current list of local actors */
+        localActorsList.clear();
+        incomingActors.clear();
+        synchronized(SimStatus.localActorsList){
+            localActorsList.addAll(SimStatus.localActorsList);
+            incomingActors.addAll(SimStatus.incomingActors);
+        }
+        /** for all the inboxes */
+        int capacity = SimStatus.inboxes.capacity();
+        for(int index = 0; index < capacity; index++){
+            Inbox inbox = SimStatus.inboxes.get(index);
+            /** the messages of a local actor are taken by it, and the ones 
+             * of an actor moving to this node wait for it */
+            if(inbox == null || inbox.isEmpty() || localActorsList.contains(inbox.getId()) || incomingActors.contains(inbox.getId())){
+                continue;
+            }
+            /** it's the broadcast inbox, or a remote actor: takes its messages */
+            for(PPDU msg = inbox.poll(); msg != null; msg = inbox.poll()){
+                /** the messages received from other nodes (kept 
+                 * for an actor that moved away) are not sent again */
+                if(msg.isSent()){
+                    continue;
+                }
+                /** sets message as sent */
+                msg.setSent(true);
+                add(msg);
+            }
+        }
+    }
+    
+    /** Adds a message to the packets.
      * 
-     * @param packet A packet to be sent
+     * @param msg The message.
      */
-    private void sendPacket(String packet) {
-        byte[] bufferToSend = new byte[1472];
-        try {
-            bufferToSend = packet.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException ex) {
-            Logger.getLogger(MulticastMessageSender.class.getName()).log(Level.SEVERE, null, ex);
+    private void add(PPDU msg) {
+        if(!assembler.add(msg)) {
+            System.out.println("Warning in MulticastMessageSender: message too large for a packet, discarded: " + msg.getSource_id() + " -> " + msg.getDestination_id());
         }
+    }
 
-        DatagramPacket dp = new DatagramPacket(bufferToSend, bufferToSend.length, multicastGroup, multicastPort);
+    /**
+     * Enables the repair of the lost packets: keeps the last packets sent, 
+     * to send them again when another node asks for them (see <code>MulticastMessageReceiver.setRepair</code>).
+     * 
+     * @param packets Number of packets kept.
+     */
+    public synchronized void setRepair(int packets) {
+        repairPackets = new ByteBuffer[packets];
+        repairSequences = new int[packets];
+    }
+    
+    /**
+     * @return The id of this sender, in the header of its packets.
+     */
+    public int getSenderId() {
+        return senderId;
+    }
+
+    /** Sends a packet of messages to the other nodes, and gives it back to 
+     * the assembler unless it is kept for the repair.
+     * 
+     * @param packet A packet to be sent, with room for the header (from 0 to its limit).
+     */
+    synchronized void sendPacket(ByteBuffer packet) {
+        packet.putShort(0, MAGIC).put(2, VERSION).put(3, DATA).put(4, (byte) 0).putInt(5, senderId).putInt(9, sequence);
+        send(packet.duplicate());
+        if (repairPackets != null) {
+            int slot = Math.floorMod(sequence, repairPackets.length);
+            if (repairPackets[slot] != null) {
+                assembler.release(repairPackets[slot]);
+            }
+            repairPackets[slot] = packet;
+            repairSequences[slot] = sequence;
+        } else {
+            assembler.release(packet);
+        }
+        sequence++;
+    }
+    
+    /**
+     * Sends again the packets asked for by another node, if they are still kept.
+     * 
+     * @param first The sequence number of the first packet.
+     * @param count The number of packets.
+     */
+    synchronized void retransmit(int first, int count) {
+        if (repairPackets == null) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = Math.floorMod(first + i, repairPackets.length);
+            if (repairPackets[slot] != null && repairSequences[slot] == first + i) {
+                repairPackets[slot].put(4, FLAG_RETRANSMISSION);
+                send(repairPackets[slot].duplicate());
+            }
+        }
+    }
+    
+    /**
+     * Asks another node to send again a range of packets.
+     * 
+     * @param sender The id of the sender of the packets.
+     * @param first The sequence number of the first packet.
+     * @param count The number of packets.
+     */
+    void sendNack(int sender, int first, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 10);
+        buffer.putShort(MAGIC).put(VERSION).put(NACK).put((byte) 0).putInt(senderId).putInt(0);
+        buffer.putInt(sender).putInt(first).putShort((short) count);
+        buffer.flip();
+        send(buffer);
+    }
+    
+    /**
+     * Sends a datagram to the group.
+     * 
+     * @param datagram The datagram (from its position to its limit).
+     */
+    private void send(ByteBuffer datagram) {
         try {
+            if (channel != null) {
+                channel.send(datagram, target);
+                return;
+            }
+            byte[] bufferToSend = new byte[datagram.remaining()];
+            datagram.get(bufferToSend);
+            DatagramPacket dp = new DatagramPacket(bufferToSend, bufferToSend.length, multicastGroup, multicastPort);
             s.send(dp);
         } catch (IOException ex) {
             System.out.println("Error in MulticastMessageSender, while sending a packet:\n" + ex);
@@ -4,14 +4,24 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.actor.ActorStatus;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
 
 /**
  * This class listens to the multicast packets and updates the <code>SimStatus</code> accordingly.
+ * It either runs as a thread, on its own socket, or handles the packets 
+ * received by a <code>MulticastEventLoop</code>.
  * @author XT17
  * @author  Adriano Moreira
  * @author luisacabs
@@ -31,6 +41,27 @@ public class MulticastStatusReceiver extends Thread {
      * the reception and processing of new packets is suspended 
      * until the method resumeReception is called */
     private boolean pause = false; 
+    /** remote actors, whose position is extrapolated (senders using dead reckoning) or which are removed when no longer received */
+    DeadReckoningTable deadReckoning = new DeadReckoningTable();
+    /** time of the next extrapolation of the remote actors */
+    long nextExtrapolation = 0;
+    /** period of the updates of the joined tile groups, in milliseconds */
+    static final int MEMBERSHIP_PERIOD = 1000;
+    /** tiles, or null if all the actors are received from the base group */
+    StatusTiles tiles;
+    /** true to join all the tile groups; false to join only those near the local actors */
+    boolean allTiles;
+    /** tile groups joined */
+    BitSet joined = new BitSet();
+    /** time of the next update of the joined tile groups */
+    long nextMembership = 0;
+    /** channel and interface of the <code>MulticastEventLoop</code>; null when running on its own socket */
+    DatagramChannel channel;
+    NetworkInterface networkInterface;
+    /** memberships of the tile groups, when using the channel */
+    MembershipKey[] keys;
+    StatusPacketCodec.Decoder decoder = new StatusPacketCodec.Decoder();
+    ArrayList<ActorStatus> statuses = new ArrayList<>();
 
     
     /**
@@ -48,6 +79,8 @@ public class MulticastStatusReceiver extends Thread {
             System.out.println("\tMulticast Address is: " + multicastAddress);
             System.out.println("\tMulticastGroup: " + multicastGroup.getHostAddress());
             s.joinGroup(multicastGroup);
+            /** wakes up periodically to extrapolate the remote actors */
+            s.setSoTimeout(DeadReckoningTable.ROUND_PERIOD);
             localIP = InetAddress.getLocalHost().getHostAddress();
         }
         catch (UnknownHostException ex) {
@@ -60,6 +93,17 @@ public class MulticastStatusReceiver extends Thread {
         }
     }
     
+    /**
+     * Constructor: creates a multicast receiver for the packets received by 
+     * a <code>MulticastEventLoop</code>, on a channel that already joined the base group.
+     * @param channel The channel of the event loop, used to join the tile groups.
+     * @param networkInterface The interface where the groups are joined.
+     */
+    public MulticastStatusReceiver(DatagramChannel channel, NetworkInterface networkInterface) {
+        this.channel = channel;
+        this.networkInterface = networkInterface;
+    }
+
     /**
      * Sets the multicast sender port number.
      * To check if the incoming messages are its own.
@@ -70,16 +114,33 @@ public class MulticastStatusReceiver extends Thread {
         multicastSenderPort = port;
     }
     
+    /**
+     * Enables the area of interest filtering (see <code>StatusTiles</code>).
+     * 
+     * @param tiles The tiles.
+     * @param all True to join all the tile groups (GlobalCoordinator and SimScope); 
+     * false to join only the groups of the tiles near the local actors (LocalCoordinator).
+     */
+    public void setTiles(StatusTiles tiles, boolean all) {
+        this.tiles = tiles;
+        this.allTiles = all;
+        keys = new MembershipKey[tiles.size()];
+        if (all) {
+            for (int g = 0; g < tiles.size(); g++) {
+                setMembership(g, true);
+            }
+        }
+    }
+
     /**
      * Waits for the arrival of datagrams. 
      * Process the datagrams and updates <code>SimStatus</code> accordingly.
      */
     @Override
     public void run() {
-        DatagramPacket dp = new DatagramPacket(new byte[1472],1472);
-        String packet;
-        String[] packetParts;
-        ActorStatus as;
+        byte[] data = new byte[StatusPacketCodec.MAX_PACKET];
+        DatagramPacket dp = new DatagramPacket(data, data.length);
+        ByteBuffer packet = ByteBuffer.wrap(data);
         try {
             /** waiting for the arrival of multicast packets*/
             while(runningQ) {
@@ -87,10 +148,17 @@ public class MulticastStatusReceiver extends Thread {
                 synchronized(this) {
                     if (pause) {
                         wait();
+                        /** the status was cleared while paused */
+                        deadReckoning.clear();
                     }
                 }
                 /** waits for the arrival of a new packet */ 
-                s.receive(dp);
+                try {
+                    s.receive(dp);
+                } catch (SocketTimeoutException ex) {
+                    housekeeping();
+                    continue;
+                }
                 
                 
                 /** checks if the packet is arriving from this same host, and discards it if so*/
@@ -99,32 +167,11 @@ public class MulticastStatusReceiver extends Thread {
                     (dp.getPort() != multicastSenderPort))) {
                     /** packet is coming from other host*/
                     
-                    packet = new String(dp.getData(),0,dp.getLength());
-                    packetParts = packet.split("@");
-                    
-                    /** checks the packet type */
-                    if(packetParts[0].equalsIgnoreCase("01")) { 
-                        /** this is the first packet in a series, extracts part 1 (load/IP) and updates the <code>SimStatus</code> */
-                        SimStatus.setMachineLoad(packetParts[1]); 
-                        /** extracts the remaining packets (actor's status) and updates SimStatus */
-                        for(int i=2; i<packetParts.length; i++) {
-                            as = new ActorStatus(packetParts[i]);
-                            SimStatus.setActorStatus(as);
-                        }
-                    }
-                    
-                    /** this is one of the subsequent packets (no load information)*/
-                    else if(packetParts[0].equalsIgnoreCase("02")) { 
-                        /** extracts the actor's status and updates SimStatus */
-                        for(int i=1; i<packetParts.length; i++) {
-                            as = new ActorStatus(packetParts[i]);
-                            SimStatus.setActorStatus(as);
-                        }
-                    /** unknown packet type */    
-                    }else{ 
-                        System.out.println("MulticastReceiver.run(): received unknown packet type.");
-                    }
+                    packet.clear();
+                    packet.limit(dp.getLength());
+                    handlePacket(packet, dp.getAddress());
                 } 
+                housekeeping();
             }
         }
         catch (IOException ioE){
@@ -137,6 +184,134 @@ public class MulticastStatusReceiver extends Thread {
         }
     }
     
+    /**
+     * Processes a packet from another host and updates <code>SimStatus</code> accordingly.
+     * 
+     * @param packet The packet (from its position to its limit).
+     * @param source The source address of the packet.
+     */
+    public void handlePacket(ByteBuffer packet, InetAddress source) {
+        statuses.clear();
+        /** discards the packets of tile groups not joined (they may be delivered to all the sockets of the host bound to the port) */
+        int group = StatusPacketCodec.getGroup(packet);
+        if(tiles != null && group >= 0 && group != StatusTiles.BASE_GROUP && !joined.get(group)) {
+            return;
+        }
+        /** decodes the packet: header (load/IP/time) and actor's status */
+        if(decoder.decode(packet, source, statuses)) { 
+            SimStatus.setMachineLoad(decoder.getHostAddress(), decoder.getLoad(), decoder.getSimTime()); 
+            /** updates SimStatus with the actor's status */
+            long now = SimClock.currentTimeMillis();
+            for(ActorStatus as : statuses) {
+                /** the actors are tracked to extrapolate them and to remove the ones no longer received 
+                 * (their sender stopped, or the packet with their dying flag was lost) */
+                deadReckoning.update(as, now, decoder.getKeyframe());
+                SimStatus.setActorStatus(as);
+            }
+        /** unknown packet type */    
+        }else{ 
+            System.out.println("MulticastReceiver.run(): received unknown packet type.");
+        }
+    }
+
+    /**
+     * Periodic work, independent of the arrival of packets: extrapolates the 
+     * remote actors and updates the joined tile groups.
+     */
+    public void housekeeping() {
+        extrapolate();
+        updateMembership();
+    }
+
+    /**
+     * @return The number of status packets lost, detected by gaps in the sequence numbers of the senders.
+     */
+    public long getLostPackets() {
+        return decoder.getLost();
+    }
+
+    /**
+     * @return The status packets received, lost, reordered and duplicated, by sender.
+     */
+    public SequenceStats getStats() {
+        return decoder.getStats();
+    }
+
+    /**
+     * Updates <code>SimStatus</code> with the extrapolated position of the 
+     * remote actors, once per round of the senders.
+     */
+    private void extrapolate() {
+        long now = SimClock.currentTimeMillis();
+        if (now < nextExtrapolation) {
+            return;
+        }
+        nextExtrapolation = now + DeadReckoningTable.ROUND_PERIOD;
+        statuses.clear();
+        deadReckoning.extrapolate(now, statuses);
+        for (ActorStatus as : statuses) {
+            SimStatus.setActorStatus(as);
+        }
+    }
+    
+    /**
+     * Joins the groups of the tiles near the local actors, and leaves the
+     * others, once every <code>MEMBERSHIP_PERIOD</code>.
+     */
+    private void updateMembership() {
+        if (tiles == null || allTiles) {
+            return;
+        }
+        long now = SimClock.currentTimeMillis();
+        if (now < nextMembership) {
+            return;
+        }
+        nextMembership = now + MEMBERSHIP_PERIOD;
+        BitSet wanted = new BitSet();
+        ArrayList<String> localActorsList = new ArrayList<>(SimStatus.localActorsList);
+        for (String id : localActorsList) {
+            ActorStatus as = SimStatus.globalActors.get(id);
+            if (as != null) {
+                tiles.addGroupsNear(as.getActor_x(), as.getActor_y(), wanted);
+            }
+        }
+        for (int g = 0; g < tiles.size(); g++) {
+            if (wanted.get(g) != joined.get(g)) {
+                setMembership(g, wanted.get(g));
+            }
+        }
+    }
+
+    /**
+     * Joins or leaves a tile group.
+     * 
+     * @param group The index of the group.
+     * @param join True to join the group, false to leave it.
+     */
+    private void setMembership(int group, boolean join) {
+        try {
+            if (channel != null) {
+                if (join) {
+                    keys[group] = channel.join(tiles.getGroup(group), networkInterface);
+                } else if (keys[group] != null) {
+                    keys[group].drop();
+                    keys[group] = null;
+                }
+            } else if (join) {
+                s.joinGroup(tiles.getGroup(group));
+            } else {
+                s.leaveGroup(tiles.getGroup(group));
+            }
+            joined.set(group, join);
+            if (!join) {
+                /** the packets sent while the group is not joined are not lost */
+                decoder.forgetGroup(group);
+            }
+        } catch (IOException ex) {
+            System.out.println("Error in MulticastReceiver, while " + (join ? "joining " : "leaving ") + tiles.getGroup(group).getHostAddress() + ":\n" + ex);
+        }
+    }
+    
     /**
      * Stops the reception of datagrams for good.
      */
@@ -1,18 +1,23 @@
 package um.simulator.core.communications;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import um.simulator.actor.ActorStatus;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
 import um.simulator.core.NetworkLogging;
 
 /**
  * This class spreads the status of the local actors, using multicast. <br>
+ * The status is sent every 100 ms, in binary packets (see <code>StatusPacketCodec</code>).
+ * With area of interest filtering (see <code>StatusTiles</code>), the status of each 
+ * actor is sent to the group of its tile, and the machine load to the base group.
  * 
  * @author XT17 
  * @author Adriano Moreira
@@ -23,11 +28,21 @@ public class MulticastStatusSender extends Thread {
 
     InetAddress multicastGroup;
     int multicastPort;
-    MulticastSocket s;
+    InetSocketAddress target;
+    DatagramChannel channel;
+    /** encoder of the packets sent to the base group */
+    StatusPacketCodec.Encoder encoder;
+    /** tiles, or null if all the actors are sent to the base group */
+    StatusTiles tiles;
+    /** encoders and targets of the tile groups */
+    StatusPacketCodec.Encoder[] tileEncoders;
+    InetSocketAddress[] tileTargets;
     /** IP address of this host */
     String localIP;
     /** True if the multicast sender is running; set to false to stop it*/
     static boolean runningQ;
+    /** local actors of the current round */
+    ArrayList<String> localActorsList = new ArrayList<>();
     
     /**
      * Constructor: creates a multicast sender with the given IP address and port.
@@ -36,14 +51,31 @@ public class MulticastStatusSender extends Thread {
      * @param multicastPort A port number to where the datagrams should be sent
      */
     public MulticastStatusSender (String multicastAddress, int multicastPort) {
+        this(null, multicastAddress, multicastPort);
+    }
+
+    /**
+     * Constructor: creates a multicast sender that sends through the given channel.
+     * 
+     * @param channel The channel; null to open a new one.
+     * @param multicastAddress A multicast IP address
+     * @param multicastPort A port number to where the datagrams should be sent
+     */
+    public MulticastStatusSender (DatagramChannel channel, String multicastAddress, int multicastPort) {
         this.multicastPort = multicastPort;
         runningQ=true;
         try {
             multicastGroup = InetAddress.getByName(multicastAddress);
-            s = new MulticastSocket();
-            s.joinGroup(multicastGroup);
+            target = new InetSocketAddress(multicastGroup, multicastPort);
+            if (channel == null) {
+                channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                channel.bind(null);
+            }
+            this.channel = channel;
 
-            localIP = InetAddress.getLocalHost().getHostAddress();
+            InetAddress localHost = InetAddress.getLocalHost();
+            localIP = localHost.getHostAddress();
+            encoder = new StatusPacketCodec.Encoder(StatusPacketCodec.toInt(localHost), StatusTiles.BASE_GROUP);
         }
         catch (UnknownHostException ex) {
             System.out.println("Error creating MulticastSender:\n" + ex);
@@ -55,54 +87,54 @@ public class MulticastStatusSender extends Thread {
         }
     }
 
+    /**
+     * Enables dead reckoning: the status of an actor is only sent when the 
+     * receivers can not extrapolate it (see <code>StatusPacketCodec</code>).
+     * 
+     * @param threshold Largest error allowed in the extrapolated positions, in meters; 0 disables dead reckoning.
+     * @param keyframe Largest number of rounds (of 100 ms) between two status of the same actor.
+     */
+    public void setDeadReckoning(double threshold, int keyframe) {
+        encoder.setDeadReckoning(threshold, keyframe);
+        if (tiles != null) {
+            for (StatusPacketCodec.Encoder e : tileEncoders) {
+                e.setDeadReckoning(threshold, keyframe);
+            }
+        }
+    }
+
+    /**
+     * Enables the area of interest filtering: the status of each actor is
+     * sent to the group of its tile. Must be called before starting the sender.
+     * 
+     * @param tiles The tiles.
+     */
+    public void setTiles(StatusTiles tiles) {
+        this.tiles = tiles;
+        tileEncoders = new StatusPacketCodec.Encoder[tiles.size()];
+        tileTargets = new InetSocketAddress[tiles.size()];
+        for (int g = 0; g < tiles.size(); g++) {
+            tileEncoders[g] = new StatusPacketCodec.Encoder(encoder.address, g);
+            tileEncoders[g].setDeadReckoning(encoder.drThreshold, encoder.drKeyframe);
+            tileTargets[g] = new InetSocketAddress(tiles.getGroup(g), multicastPort);
+        }
+    }
+
     /**
      * Returns the local port being used.
      * 
      * @return multicast sender port 
      */
     public int getLocalPort() {
-        return (s.getLocalPort());
+        return (channel.socket().getLocalPort());
     }
     
     /** spreads the actor's status periodically */
     @Override
     public void run() {
-        
-        ArrayList<String> localActorsList = new ArrayList<>();
-        int load;
-        String packetType;
-        String packet;
-        Iterator itr;
-        ActorStatus as;
-        String actorDescription;
         try {           
             while(runningQ) {
-                localActorsList.clear();
-                localActorsList.addAll(SimStatus.localActorsList);
-                /** creates the first packet, starting with the machine load */
-                load = SimStatus.localActorsList.size();
-                packetType = "01";
-                packet = packetType + "@" + load + "/" + localIP;
-                /** all the subsequent types are "02" */
-                packetType = "02";
-                itr = localActorsList.iterator();
-                while(itr.hasNext()) {
-                    as = SimStatus.globalActors.get((String)itr.next());
-                    /** checks if the actor has been removed from globalActors */
-                    if(as != null) { 
-                        actorDescription = as.toString();
-                        /** checks if new actor fits into the current packet */
-                        if((packet.length() + actorDescription.length()) < 1472) 
-                            packet = packet + "@" + actorDescription;
-                        /** if the current packet is almost full, sends it */
-                        else { 
-                            sendPacket(packet);
-                            packet = packetType + "@" + actorDescription;
-                        }
-                    }
-                }
-                /** sends the final packet */
-                sendPacket(packet);
+                sendRound();
                 Thread.sleep(100);
             } 
         }
@@ -112,17 +144,66 @@ public class MulticastStatusSender extends Thread {
         }
     }
 
+    /** sends the status of all the local actors once (a round) */
+    public void sendRound() {
+        Iterator itr;
+        ActorStatus as;
+        StatusPacketCodec.Encoder e;
+        InetSocketAddress to;
+        long now;
+        localActorsList.clear();
+        localActorsList.addAll(SimStatus.localActorsList);
+        /** every packet starts with the machine load and the simulation time */
+        now = SimClock.currentTimeMillis();
+        encoder.startRound(localActorsList.size(), now);
+        if (tiles != null) {
+            for (StatusPacketCodec.Encoder te : tileEncoders) {
+                te.startRound(localActorsList.size(), now);
+            }
+        }
+        itr = localActorsList.iterator();
+        while(itr.hasNext()) {
+            as = SimStatus.globalActors.get((String)itr.next());
+            /** checks if the actor has been removed from globalActors */
+            if(as != null) { 
+                /** chooses the group of the actor's tile */
+                e = encoder;
+                to = target;
+                if (tiles != null) {
+                    int g = tiles.groupOf(as.getActor_x(), as.getActor_y());
+                    e = tileEncoders[g];
+                    to = tileTargets[g];
+                }
+                /** if the current packet is full, sends it and adds the actor to a new one */
+                if(!e.add(as)) { 
+                    sendPacket(e, to);
+                    e.newPacket();
+                    e.add(as);
+                }
+            }
+        }
+        /** sends the final packets (the one of the base group, even if empty, carries the machine load) */
+        sendPacket(encoder, target);
+        encoder.endRound();
+        if (tiles != null) {
+            for (int g = 0; g < tileEncoders.length; g++) {
+                if (!tileEncoders[g].isEmpty()) {
+                    sendPacket(tileEncoders[g], tileTargets[g]);
+                }
+                tileEncoders[g].endRound();
+            }
+        }
+    }
+
     /**
-     * Sends a multicast datagram.
+     * Sends the current packet of an encoder as a multicast datagram.
      * 
-     * @param packet A string representing the data to be sent.
+     * @param e The encoder.
+     * @param to The group.
      */
-    private void sendPacket(String packet) {
-        byte[] bufferToSend;
-        bufferToSend = packet.getBytes();
-        DatagramPacket dp = new DatagramPacket(bufferToSend, bufferToSend.length, multicastGroup, multicastPort);
+    private void sendPacket(StatusPacketCodec.Encoder e, InetSocketAddress to) {
         try {
-            s.send(dp);
+            channel.send(e.packet(), to);
 
         } catch (IOException ex) {
             System.out.println("Error in MulticastSender, while sending a packet:\n" + ex);
@@ -0,0 +1,189 @@
+package um.simulator.core.communications;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * This class tracks the sequence numbers of the packets received from the
+ * senders of a multicast stream (the actors' status or the messages), to
+ * detect the packets lost, reordered and duplicated.
+ *
+ * Each sender numbers its packets consecutively. A receiver keeps, for each
+ * sender (a peer), the highest sequence number received and which of the
+ * <code>WINDOW</code> numbers below it were received. A jump forward counts
+ * the numbers skipped as missing; a number below the highest that was not
+ * received yet is a late packet (reordered, or repaired if it is a
+ * retransmission) and is no longer missing; a number already received, or
+ * too old to be in the window, is a duplicate. The packets still missing are
+ * the ones lost.
+ *
+ * @version 1.0
+ */
+public class SequenceStats {
+
+    /** outcomes of a packet */
+    public static final int NEW = 0;
+    public static final int LATE = 1;
+    public static final int DUPLICATE = 2;
+    /** number of sequence numbers below the highest that are remembered */
+    static final int WINDOW = 64;
+
+    /** The packets received from a sender. */
+    public static class Peer {
+        final String name;
+        boolean sequenced = false;
+        int highest;
+        /** bit i set if highest - 1 - i was received */
+        long window;
+        /** number of sequence numbers skipped by the last packet (for the repair) */
+        int lastGap;
+        long received = 0;
+        long missing = 0;
+        long reordered = 0;
+        long repaired = 0;
+        long duplicates = 0;
+
+        Peer(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Tracks a packet received from the sender.
+         *
+         * @param sequence The sequence number of the packet.
+         * @param retransmission True if the packet was retransmitted on request.
+         * @return <code>NEW</code>, <code>LATE</code> or <code>DUPLICATE</code>.
+         */
+        public int accept(int sequence, boolean retransmission) {
+            lastGap = 0;
+            if (!sequenced) {
+                sequenced = true;
+                highest = sequence;
+                window = 0;
+                received++;
+                return NEW;
+            }
+            int d = sequence - highest;
+            if (d > 0) {
+                lastGap = d - 1;
+                missing += d - 1;
+                window = d > WINDOW ? 0 : (window << 1 | 1) << (d - 1);
+                highest = sequence;
+                received++;
+                return NEW;
+            }
+            int i = -d - 1;
+            if (d == 0 || i >= WINDOW || (window & (1L << i)) != 0) {
+                duplicates++;
+                return DUPLICATE;
+            }
+            window |= 1L << i;
+            missing--;
+            received++;
+            if (retransmission) {
+                repaired++;
+            } else {
+                reordered++;
+            }
+            return LATE;
+        }
+
+        /**
+         * Forgets the sequence numbers, when the packets of the sender stop
+         * being received on purpose (a tile group left).
+         */
+        public void reset() {
+            sequenced = false;
+        }
+
+        /** @return the number of sequence numbers skipped by the last packet */
+        public int getLastGap() {
+            return lastGap;
+        }
+
+        /** @return the fraction of the packets sent that were lost */
+        public double getLossRate() {
+            return received + missing == 0 ? 0 : (double) missing / (received + missing);
+        }
+
+        /** @return the fraction of the packets received that arrived out of order (repairs excluded) */
+        public double getReorderRate() {
+            return received == 0 ? 0 : (double) reordered / received;
+        }
+
+        /** @return the number of duplicates per packet received */
+        public double getDuplicateRate() {
+            return received == 0 ? 0 : (double) duplicates / received;
+        }
+    }
+
+    /** name of the stream, for the reports */
+    final String stream;
+    final LinkedHashMap<String, Peer> peers = new LinkedHashMap<>();
+
+    /**
+     * Constructor: creates the statistics of a stream.
+     *
+     * @param stream The name of the stream.
+     */
+    public SequenceStats(String stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Returns the statistics of a sender, creating them if it is new.
+     *
+     * @param name The name of the sender: its address and id.
+     * @return The statistics of the sender.
+     */
+    public synchronized Peer getPeer(String name) {
+        Peer peer = peers.get(name);
+        if (peer == null) {
+            peer = new Peer(name);
+            peers.put(name, peer);
+        }
+        return peer;
+    }
+
+    /**
+     * @return The number of packets lost, from all the senders.
+     */
+    public synchronized long getLost() {
+        long lost = 0;
+        for (Peer peer : peers.values()) {
+            lost += peer.missing;
+        }
+        return lost;
+    }
+
+    /**
+     * Writes the statistics of each sender: one line per sender, with the
+     * stream, the sender, the packets received, lost, reordered, repaired and
+     * duplicated, and the loss, reorder and duplicate rates.
+     *
+     * @param out Where the statistics are written.
+     * @throws IOException if an error occurs
+     */
+    public void write(Writer out) throws IOException {
+        ArrayList<Peer> list;
+        synchronized (this) {
+            list = new ArrayList<>(peers.values());
+        }
+        for (Peer p : list) {
+            out.write(String.format("%s\t%s\t%d\t%d\t%d\t%d\t%d\t%.4f\t%.4f\t%.4f\n", stream, p.name, p.received, p.missing,
+                    p.reordered, p.repaired, p.duplicates, p.getLossRate(), p.getReorderRate(), p.getDuplicateRate()));
+        }
+    }
+
+    /**
+     * Writes the header of the lines written by <code>write</code>.
+     *
+     * @param out Where the header is written.
+     * @throws IOException if an error occurs
+     */
+    public static void writeHeader(Writer out) throws IOException {
+        out.write("Stream\tSender\tReceived\tLost\tReordered\tRepaired\tDuplicates\tLoss rate\tReorder rate\tDuplicate rate\n");
+    }
+}
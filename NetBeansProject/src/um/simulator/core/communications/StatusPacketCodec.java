@@ -0,0 +1,441 @@
+package um.simulator.core.communications;
+
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import um.simulator.actor.ActorStatus;
+
+/**
+ * This class encodes and decodes the binary packets used to spread the status
+ * of the actors (<code>MulticastStatusSender</code> and
+ * <code>MulticastStatusReceiver</code>).
+ *
+ * Packet format (big endian):<br>
+ * header (29 bytes): magic (short), version (byte), dead reckoning keyframe
+ * interval (byte, in rounds; 0 if the sender does not use dead reckoning),
+ * group (byte, the index of the tile group or <code>StatusTiles.BASE_GROUP</code>), sender id
+ * (int, random, per sender), IPv4 address of the sender (int, 0 if unknown),
+ * sequence number (int, per sender and group, counting the packets sent), load (int) and simulation time (long);<br>
+ * followed by records, until the end of the packet:<br>
+ * - status record (27 bytes): actor index (int, positive), x, y, vx, vy and
+ * speed (float), flags (byte, bit 0: dying), traffic light state (byte) and
+ * lane (byte);<br>
+ * - name record: actor index with the highest bit set (int), actor id and
+ * label (byte length followed by UTF-8 each).
+ *
+ * The actor indices are chosen by each sender. The name of an actor is sent
+ * before its first status and then again every <code>NAMES_PERIOD</code>
+ * rounds, which also refreshes its label on the receivers (the labels are only
+ * displayed, so they are allowed to lag the status). The status of an actor
+ * whose name is still unknown to a receiver is discarded.
+ *
+ * With dead reckoning, the receivers extrapolate the position of the actors
+ * from their last status and velocity (see <code>DeadReckoningTable</code>),
+ * and the sender only sends the status of an actor when its position diverges
+ * from that extrapolation by more than a threshold, when its dying flag,
+ * traffic light state or lane change, or when the keyframe interval expires.
+ *
+ * @version 1.0
+ */
+public class StatusPacketCodec {
+
+    /** "BS" */
+    static final short MAGIC = 0x4253;
+    static final byte VERSION = 2;
+    /** largest packet, to fit in a single Ethernet frame */
+    public static final int MAX_PACKET = 1472;
+    static final int HEADER_SIZE = 29;
+    /** position of the sequence number in the header */
+    static final int SEQUENCE_OFFSET = 13;
+    static final int STATUS_SIZE = 27;
+    /** marks the name records */
+    static final int NAME_RECORD = 0x80000000;
+    static final int FLAG_DYING = 1;
+    /** rounds between the retransmissions of the names of the actors */
+    public static final int NAMES_PERIOD = 10;
+
+    /**
+     * Reads the group of a packet, without decoding it.
+     *
+     * @param packet    The packet (from its position to its limit).
+     * @return The index of the group of the packet, or -1 if the packet is not valid.
+     */
+    public static int getGroup(ByteBuffer packet) {
+        int start = packet.position();
+        if (packet.remaining() < HEADER_SIZE || packet.getShort(start) != MAGIC || packet.get(start + 2) != VERSION) {
+            return -1;
+        }
+        return packet.get(start + 4) & 0xff;
+    }
+
+    /**
+     * Converts an IPv4 address to an int.
+     *
+     * @param address An address.
+     * @return The address, or 0 if it is not an IPv4 address.
+     */
+    public static int toInt(InetAddress address) {
+        byte[] b = address.getAddress();
+        if (b.length != 4) {
+            return 0;
+        }
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+    }
+
+    /**
+     * Converts an IPv4 address, stored in an int, to its textual form.
+     *
+     * @param address An address.
+     * @return The address, as in <code>InetAddress.getHostAddress()</code>.
+     */
+    public static String toHostAddress(int address) {
+        return ((address >>> 24) & 0xff) + "." + ((address >>> 16) & 0xff) + "." + ((address >>> 8) & 0xff) + "." + (address & 0xff);
+    }
+
+    /**
+     * The state of a sender: the index of each local actor and the packet
+     * being filled, in a reusable direct buffer.
+     */
+    public static class Encoder {
+
+        /** An actor known by the encoder. */
+        static class Entry {
+            int index;
+            /** last round in which the actor was encoded */
+            int round;
+            /** last round in which the name of the actor was encoded; -1 if never */
+            int namedRound = -1;
+            /** last round in which the status of the actor was encoded; -1 if never */
+            int sentRound = -1;
+            /** last status encoded: time, position, velocity and the other fields */
+            long sentTime;
+            double sentX, sentY, sentVx, sentVy;
+            int sentState;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET);
+        final int senderId = new Random().nextInt();
+        final int address;
+        final int group;
+        final HashMap<String, Entry> entries = new HashMap<>();
+        int nextIndex = 0;
+        int sequence = 0;
+        int round = 0;
+        int load;
+        long simTime;
+        /** number of records in the current packet */
+        int records;
+        /** dead reckoning threshold, in meters; 0 if disabled */
+        double drThreshold = 0;
+        /** dead reckoning keyframe interval, in rounds */
+        int drKeyframe = 0;
+
+        /**
+         * Constructor: creates an encoder.
+         *
+         * @param address The IPv4 address of the sender, as in <code>toInt</code>.
+         * @param group The index of the group to which the packets are sent.
+         */
+        public Encoder(int address, int group) {
+            this.address = address;
+            this.group = group;
+        }
+
+        /**
+         * Enables dead reckoning.
+         *
+         * @param threshold Largest error allowed in the extrapolated
+         * positions, in meters; 0 disables dead reckoning.
+         * @param keyframe  Largest number of rounds between two status of the
+         * same actor (1 to 255).
+         */
+        public void setDeadReckoning(double threshold, int keyframe) {
+            drThreshold = threshold;
+            drKeyframe = threshold > 0 ? Math.max(1, Math.min(keyframe, 255)) : 0;
+        }
+
+        /**
+         * Starts a round: the status of all the local actors, in one or more
+         * packets.
+         *
+         * @param load  The number of local actors.
+         * @param simTime   The simulation time.
+         */
+        public void startRound(int load, long simTime) {
+            this.load = load;
+            this.simTime = simTime;
+            round++;
+            newPacket();
+        }
+
+        /**
+         * Ends a round, forgetting the actors that were not encoded in it.
+         */
+        public void endRound() {
+            Iterator<Entry> itr = entries.values().iterator();
+            while (itr.hasNext()) {
+                if (itr.next().round != round) {
+                    itr.remove();
+                }
+            }
+        }
+
+        /**
+         * Starts a new packet, writing its header.
+         */
+        public void newPacket() {
+            buffer.clear();
+            buffer.putShort(MAGIC).put(VERSION).put((byte) drKeyframe).put((byte) group);
+            buffer.putInt(senderId).putInt(address).putInt(0);
+            buffer.putInt(load).putLong(simTime);
+            records = 0;
+        }
+
+        /**
+         * Adds the status of an actor to the current packet, preceded by its
+         * name if needed. With dead reckoning, the status is only added if
+         * the receivers can not extrapolate it.
+         *
+         * @param as    The status of the actor.
+         * @return true if the status was added or does not need to be sent,
+         * false if the packet is full
+         */
+        public boolean add(ActorStatus as) {
+            Entry e = entries.get(as.getActorId());
+            if (e == null) {
+                e = new Entry();
+                e.index = nextIndex++ & ~NAME_RECORD;
+                entries.put(as.getActorId(), e);
+            }
+            int state = (as.actorDyingQ() ? FLAG_DYING : 0) | (as.getTlState() & 0xff) << 8 | (as.getLane() & 0xff) << 16;
+            if (drKeyframe > 0 && e.sentRound >= 0 && round - e.sentRound < drKeyframe && state == e.sentState) {
+                double dt = simTime - e.sentTime;
+                double dx = as.getActor_x() - (e.sentX + e.sentVx * dt);
+                double dy = as.getActor_y() - (e.sentY + e.sentVy * dt);
+                if (dx * dx + dy * dy <= drThreshold * drThreshold) {
+                    e.round = round;
+                    return true;
+                }
+            }
+            int start = buffer.position();
+            try {
+                if (e.namedRound < 0 || round - e.namedRound >= NAMES_PERIOD) {
+                    buffer.putInt(e.index | NAME_RECORD);
+                    putString(buffer, as.getActorId());
+                    putString(buffer, as.getLabel());
+                }
+                buffer.putInt(e.index);
+                buffer.putFloat(as.getActor_x().floatValue());
+                buffer.putFloat(as.getActor_y().floatValue());
+                buffer.putFloat(as.getActor_vx().floatValue());
+                buffer.putFloat(as.getActor_vy().floatValue());
+                buffer.putFloat(as.getActor_speed().floatValue());
+                buffer.put((byte) (as.actorDyingQ() ? FLAG_DYING : 0));
+                buffer.put((byte) as.getTlState());
+                buffer.put((byte) as.getLane());
+            } catch (BufferOverflowException ex) {
+                buffer.position(start);
+                return false;
+            }
+            if (buffer.position() - start > STATUS_SIZE) {
+                e.namedRound = round;
+            }
+            e.round = round;
+            e.sentRound = round;
+            e.sentTime = simTime;
+            e.sentX = as.getActor_x();
+            e.sentY = as.getActor_y();
+            e.sentVx = as.getActor_vx();
+            e.sentVy = as.getActor_vy();
+            e.sentState = state;
+            records++;
+            return true;
+        }
+
+        /**
+         * @return true if the current packet has no records
+         */
+        public boolean isEmpty() {
+            return records == 0;
+        }
+
+        /**
+         * Numbers the current packet, which is about to be sent (the empty 
+         * packets of the tile groups are not sent, so they are not numbered).
+         *
+         * @return The current packet, ready to be sent (position 0, limit at its end).
+         */
+        public ByteBuffer packet() {
+            buffer.putInt(SEQUENCE_OFFSET, sequence++);
+            ByteBuffer packet = buffer.duplicate();
+            packet.flip();
+            return packet;
+        }
+    }
+
+    /**
+     * The state of a receiver: the names of the actors of each sender.
+     */
+    public static class Decoder {
+
+        /** A sender known by the decoder. */
+        static class Sender {
+            String hostAddress;
+            int group;
+            SequenceStats.Peer peer;
+            final HashMap<Integer, String[]> names = new HashMap<>();
+        }
+
+        final HashMap<Integer, Sender> senders = new HashMap<>();
+        /** header of the last packet decoded */
+        String hostAddress;
+        int load;
+        long simTime;
+        int keyframe;
+        /** packets received, lost, reordered and duplicated, by sender */
+        final SequenceStats stats = new SequenceStats("status");
+
+        /**
+         * Decodes a packet.
+         *
+         * @param packet    The packet (from its position to its limit).
+         * @param source    The source address of the packet, used if the
+         * sender did not send its IPv4 address.
+         * @param statuses  List where the status of the actors is added.
+         * @return true if the packet was decoded, false if it is not valid
+         */
+        public boolean decode(ByteBuffer packet, InetAddress source, ArrayList<ActorStatus> statuses) {
+            try {
+                if (packet.getShort() != MAGIC || packet.get() != VERSION) {
+                    return false;
+                }
+                keyframe = packet.get() & 0xff;
+                int group = packet.get() & 0xff;
+                int senderId = packet.getInt();
+                int address = packet.getInt();
+                int sequence = packet.getInt();
+                load = packet.getInt();
+                simTime = packet.getLong();
+                Sender sender = senders.get(senderId);
+                if (sender == null) {
+                    sender = new Sender();
+                    sender.hostAddress = address != 0 ? toHostAddress(address) : source.getHostAddress();
+                    sender.peer = stats.getPeer(sender.hostAddress + "/" + Integer.toHexString(senderId) + "/" + group);
+                    senders.put(senderId, sender);
+                }
+                sender.group = group;
+                hostAddress = sender.hostAddress;
+                /** a duplicate carries nothing new; a late packet still carries the status of other actors */
+                if (sender.peer.accept(sequence, false) == SequenceStats.DUPLICATE) {
+                    return true;
+                }
+                while (packet.hasRemaining()) {
+                    int index = packet.getInt();
+                    if ((index & NAME_RECORD) != 0) {
+                        String id = getString(packet);
+                        String label = getString(packet);
+                        sender.names.put(index & ~NAME_RECORD, new String[]{id, label});
+                        continue;
+                    }
+                    float x = packet.getFloat();
+                    float y = packet.getFloat();
+                    float vx = packet.getFloat();
+                    float vy = packet.getFloat();
+                    float speed = packet.getFloat();
+                    int flags = packet.get();
+                    int tlState = packet.get();
+                    int lane = packet.get();
+                    String[] name = sender.names.get(index);
+                    if (name == null) {
+                        continue;
+                    }
+                    ActorStatus as = new ActorStatus(name[0], x, y, vx, vy, name[1]);
+                    as.setActor_speed((double) speed);
+                    as.setDying((flags & FLAG_DYING) != 0);
+                    as.setTlState(tlState);
+                    as.setLane(lane);
+                    statuses.add(as);
+                    if (as.actorDyingQ()) {
+                        sender.names.remove(index);
+                    }
+                }
+                return true;
+            } catch (BufferUnderflowException ex) {
+                return false;
+            }
+        }
+
+        /** @return the address of the sender of the last packet */
+        public String getHostAddress() {
+            return hostAddress;
+        }
+
+        /** @return the load of the sender of the last packet */
+        public int getLoad() {
+            return load;
+        }
+
+        /** @return the simulation time of the sender of the last packet */
+        public long getSimTime() {
+            return simTime;
+        }
+
+        /** @return the number of packets lost, detected by gaps in the sequence numbers of the senders */
+        public long getLost() {
+            return stats.getLost();
+        }
+
+        /** @return the packets received, lost, reordered and duplicated, by sender */
+        public SequenceStats getStats() {
+            return stats;
+        }
+
+        /**
+         * Forgets the sequence numbers of the senders of a group, when the
+         * group is left, so that the packets sent meanwhile are not counted
+         * as lost.
+         *
+         * @param group The index of the group.
+         */
+        public void forgetGroup(int group) {
+            for (Sender sender : senders.values()) {
+                if (sender.group == group) {
+                    sender.peer.reset();
+                }
+            }
+        }
+
+        /** @return the dead reckoning keyframe interval of the sender of the last packet, in rounds; 0 if it does not use dead reckoning */
+        public int getKeyframe() {
+            return keyframe;
+        }
+    }
+
+    static void putString(ByteBuffer buffer, String s) {
+        byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(b.length, 255);
+        buffer.put((byte) length);
+        buffer.put(b, 0, length);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.get() & 0xff;
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (buffer.hasArray()) {
+            String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return s;
+        }
+        byte[] b = new byte[length];
+        buffer.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
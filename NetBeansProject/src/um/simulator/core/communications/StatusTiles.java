@@ -0,0 +1,137 @@
+package um.simulator.core.communications;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.BitSet;
+import java.util.Properties;
+
+/**
+ * This class splits the map in square tiles, for the area of interest
+ * filtering of the actors' status.
+ *
+ * Each tile is hashed onto one of <code>groups</code> multicast groups, with
+ * consecutive addresses starting at <code>Multicast.TileIP</code> (and the
+ * port of <code>Multicast.IP</code>). The <code>MulticastStatusSender</code>
+ * sends the status of each actor to the group of its tile, and the machine
+ * load to the base group (<code>Multicast.IP</code>). A LocalCoordinator only
+ * joins the groups of the tiles within <code>halo</code> meters of its own
+ * actors; the GlobalCoordinator and SimScope join all the groups.
+ *
+ * The groups must be IPv4 addresses, and should not be link-local
+ * (224.0.0.x), since the switches do not filter those.
+ *
+ * @version 1.0
+ */
+public class StatusTiles {
+
+    /** index of the base group in the packet headers */
+    public static final int BASE_GROUP = 0xff;
+
+    final InetAddress[] groups;
+    /** size of the tiles, in meters */
+    final double tileSize;
+    /** distance from the local actors within which the tiles are joined, in meters */
+    final double halo;
+
+    /**
+     * Constructor: creates the tiles.
+     *
+     * @param firstGroup    The address of the first group.
+     * @param groups    The number of groups (1 to 255).
+     * @param tileSize  The size of the tiles, in meters.
+     * @param halo  The distance from the local actors within which the tiles are joined, in meters.
+     * @throws UnknownHostException if the address of a group is not valid
+     */
+    public StatusTiles(String firstGroup, int groups, double tileSize, double halo) throws UnknownHostException {
+        this.groups = new InetAddress[Math.max(1, Math.min(groups, BASE_GROUP))];
+        int first = StatusPacketCodec.toInt(InetAddress.getByName(firstGroup));
+        for (int i = 0; i < this.groups.length; i++) {
+            int a = first + i;
+            this.groups[i] = InetAddress.getByAddress(new byte[]{(byte) (a >>> 24), (byte) (a >>> 16), (byte) (a >>> 8), (byte) a});
+        }
+        this.tileSize = tileSize;
+        this.halo = halo;
+    }
+
+    /**
+     * Creates the tiles described in the settings.
+     *
+     * @param prop  The settings.
+     * @return The tiles, or null if the area of interest filtering is disabled.
+     */
+    public static StatusTiles fromProperties(Properties prop) {
+        int groups = Integer.parseInt(prop.getProperty("Multicast.TileGroups", "0").trim());
+        if (groups <= 0) {
+            return null;
+        }
+        try {
+            return new StatusTiles(prop.getProperty("Multicast.TileIP", "239.1.0.0").trim(), groups,
+                    Double.parseDouble(prop.getProperty("Multicast.TileSize", "500").trim()),
+                    Double.parseDouble(prop.getProperty("Multicast.TileHalo", "250").trim()));
+        } catch (UnknownHostException ex) {
+            System.out.println("Error in the settings of the tiles (Multicast.TileIP), sending all the actors to Multicast.IP:\n" + ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return The number of groups.
+     */
+    public int size() {
+        return groups.length;
+    }
+
+    /**
+     * @param group The index of a group.
+     * @return The address of the group.
+     */
+    public InetAddress getGroup(int group) {
+        return groups[group];
+    }
+
+    /**
+     * @param x A coordinate, in meters.
+     * @return The column (or row) of the tiles containing the coordinate.
+     */
+    long tileIndex(double x) {
+        return (long) Math.floor(x / tileSize);
+    }
+
+    /**
+     * @param col   The column of a tile.
+     * @param row   The row of a tile.
+     * @return The index of the group of the tile.
+     */
+    int groupOfTile(long col, long row) {
+        long h = (col * 0x9E3779B97F4A7C15L) ^ (row * 0xC2B2AE3D27D4EB4FL);
+        h ^= h >>> 29;
+        return (int) Math.floorMod(h, (long) groups.length);
+    }
+
+    /**
+     * @param x Position in the x axis.
+     * @param y Position in the y axis.
+     * @return The index of the group of the tile containing the position.
+     */
+    public int groupOf(double x, double y) {
+        return groupOfTile(tileIndex(x), tileIndex(y));
+    }
+
+    /**
+     * Adds the groups of the tiles within <code>halo</code> meters of a position.
+     *
+     * @param x Position in the x axis.
+     * @param y Position in the y axis.
+     * @param result    The set where the indices of the groups are added.
+     */
+    public void addGroupsNear(double x, double y, BitSet result) {
+        long colMax = tileIndex(x + halo);
+        long rowMin = tileIndex(y - halo);
+        long rowMax = tileIndex(y + halo);
+        for (long col = tileIndex(x - halo); col <= colMax; col++) {
+            for (long row = rowMin; row <= rowMax; row++) {
+                result.set(groupOfTile(col, row));
+            }
+        }
+    }
+}
@@ -5,8 +5,6 @@
 package um.simulator.core.communications;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -15,6 +13,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.core.LocalCoordinator;
 import um.simulator.core.SimStatus;
+import um.simulator.map.GlobalMap;
+import um.simulator.map.MapCache;
 
 /**
  * This class supports the permanent communication (signaling) with <code>GlobalCoordinator</code>.
@@ -32,8 +32,7 @@ public class TCPClient extends Thread {
     String serverIP;
     int serverPort;
     public Socket socket = null;
-    ObjectInputStream ois = null;
-    ObjectOutputStream oos = null;
+    TCPConnection connection = null;
     LocalCoordinator lCoord;
     /** specifies the entity this TCPClient belongs to */
     String type;
@@ -83,10 +82,8 @@ public class TCPClient extends Thread {
             socket = new Socket(serverIP, serverPort);
             System.out.println("     - TCPClient.run(): TCP connection completed.");
             localIP = InetAddress.getLocalHost().getHostAddress();
-            /** creates the input and output streams */
-            oos = new ObjectOutputStream (socket.getOutputStream());
-            oos.flush();
-            ois = new ObjectInputStream (socket.getInputStream());
+            /** creates the framed connection */
+            connection = new TCPConnection(socket);
         } 
         catch (IOException ioE) {
             System.out.println("TCPClient.run(): Connection problems in TCPClient");
@@ -96,19 +93,11 @@ public class TCPClient extends Thread {
             /** announces itself and its type */
             message.messageType = "01";
             message.messageStr = type;
-            oos.writeObject(message);
-            oos.flush();
+            connection.send(message);
             /** waits for GlobalCoordinator's appList */
             if(type.contains("localCoordinator")) {
                 while (!connected) {
-                    HashMap<String,String> appList = (HashMap<String,String>)ois.readObject();
-                    SimStatus.appList.putAll(appList);
-                    boolean aux = (boolean) ois.readObject();
-                    SimStatus.physical = aux; 
-                    aux = (boolean) ois.readObject();
-                    SimStatus.network = aux;
-                    aux = (boolean) ois.readObject();
-                    SimStatus.application = aux;
+                    connection.receiveSettings();
                     synchronized(this){
                         this.notify();
                     }
@@ -116,22 +105,36 @@ public class TCPClient extends Thread {
                 }
                 /** waits for message reception */
                 while(connected) {
-                    message = (TCPMessage) ois.readObject();
+                    message = connection.receive();
                     try {
                         lCoord.receiveMessage(message);
                     } catch (InterruptedException ex) {
                         Logger.getLogger(TCPClient.class.getName()).log(Level.SEVERE, null, ex);
                     }
                 } 
-                ois.close();
-                oos.close();
+                connection.close();
             /** if the tcp client is a visualization entity, the connection is closed after receiving the global maps*/
             }else{
                 if(type.contains("visualization")) {
-                    SimStatus.maps = (HashMap<String,um.simulator.map.GlobalMap>) ois.readObject();
+                    HashMap<String,GlobalMap> maps = new HashMap<>();
+                    /** one message "04" per map, with the encoded map, up to the message "08" */
+                    message = connection.receive();
+                    while (message.messageType.equals("04")) {
+                        GlobalMap gm = new GlobalMap();
+                        if (message.file != null && MapCache.load(message.file, gm)) {
+                            gm.beingUsedMap = true;
+                            maps.put(message.messageStr, gm);
+                        } else {
+                            System.out.println("Invalid map received: " + message.messageStr);
+                        }
+                        if (message.file != null) {
+                            message.file.delete();
+                        }
+                        message = connection.receive();
+                    }
+                    SimStatus.maps = maps;
                     mapsReceived = true;
-                    ois.close();
-                    oos.close();
+                    connection.close();
                 }
             }
         }        
@@ -143,9 +146,6 @@ public class TCPClient extends Thread {
                 System.out.println("Connection problems with the GlobalCoordinator:\n" + ioE);
             
         }
-        catch (ClassNotFoundException cnfE) {
-            System.out.println("Connection problems with the GlobalCoordinator:" + cnfE);
-        }
     }
     
     /**
@@ -154,8 +154,7 @@ public class TCPClient extends Thread {
      */
     public synchronized void sendMsg(TCPMessage msgToSend) {
         try {
-            oos.writeObject(msgToSend);
-            oos.flush();
+            connection.send(msgToSend);
         }
         catch (IOException ioE) {
             System.out.println("Error sending TCP message:\n" + ioE);
@@ -0,0 +1,492 @@
+package um.simulator.core.communications;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import um.simulator.core.SimStatus;
+import um.simulator.map.MapCache;
+
+/**
+ * This class implements the binary protocol of the TCP connections between
+ * the GlobalCoordinator and the LocalCoordinators (and SimScope).
+ *
+ * Each <code>TCPMessage</code> is sent as a frame: type (byte, the number of
+ * <code>messageType</code>), length (int) and payload. The strings are sent
+ * as a length (int, -1 for null) followed by UTF-8.
+ *
+ * The descriptions of the new actors (type "02") are split at ":" and each
+ * field is sent as an index in a dictionary of the strings already sent on
+ * the connection, or as a new string, which is added to the dictionary of
+ * both ends. The numbers that change from actor to actor (e.g. the initial
+ * position) are sent as doubles, out of the dictionary, and the actor id as
+ * its prefix, which is usually in the dictionary, and its number. A batch of
+ * new actors ("10") is sent as the number of actors and their descriptions.
+ *
+ * The payload of a map ("04"), a report ("06") or the state of a migrated
+ * actor ("13" and "14") is streamed after its
+ * frame, in <code>CHUNK</code> frames of up to <code>CHUNK_SIZE</code> bytes
+ * ending with an empty one, from a file, from memory or, for a map that is
+ * not cached, from the encoder (<code>MapCache.encode</code>); the receiver
+ * writes it to a temporary file (<code>TCPMessage.file</code>). The maps are
+ * written in the <code>MapCache</code> directory, so they are moved into the
+ * cache without being copied.
+ *
+ * No frame is longer than <code>CHUNK_SIZE</code>: a longer message (e.g. a
+ * large batch of new actors) is split in frames with the type
+ * <code>CONTINUED</code> | type, followed by a last one with the type, which
+ * the receiver joins, up to <code>MAX_MESSAGE</code> bytes.
+ *
+ * @version 1.0
+ */
+public class TCPConnection {
+
+    /** frame types other than the ones of the <code>TCPMessage</code>s */
+    static final int SETTINGS = 7;
+    static final int CHUNK = 9;
+    /** type of the batches of new actors ("10") */
+    static final int SPAWN_BATCH = 10;
+    /** largest chunk of a payload, and largest frame */
+    static final int CHUNK_SIZE = 64 * 1024;
+    /** flag of the type of the frames of a message followed by more of its frames */
+    static final int CONTINUED = 0x80;
+    /** largest message split in several frames */
+    static final int MAX_MESSAGE = 64 * 1024 * 1024;
+    /** largest number of strings in the dictionaries of the actor descriptions */
+    static final int MAX_STRINGS = 4096;
+
+    final Socket socket;
+    final DataInputStream in;
+    final DataOutputStream out;
+    /** payload of the frame being written */
+    final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    final DataOutputStream frameOut = new DataOutputStream(frame);
+    /** payload of the frame being read */
+    byte[] payload = new byte[256];
+    /** strings of the actor descriptions sent (and their index) and received */
+    final HashMap<String, Integer> sentStrings = new HashMap<>();
+    final ArrayList<String> receivedStrings = new ArrayList<>();
+    /** buffer of the chunks received */
+    final byte[] chunk = new byte[CHUNK_SIZE];
+    /** buffer of the chunks sent */
+    final byte[] sentChunk = new byte[CHUNK_SIZE];
+    /** the stream of the chunks of an encoded map */
+    final ChunkOutputStream chunks = new ChunkOutputStream();
+
+    /**
+     * Constructor: creates the protocol on a connected socket.
+     *
+     * @param socket The socket.
+     * @throws IOException if the streams of the socket can not be opened
+     */
+    public TCPConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE));
+    }
+
+    /**
+     * Sends a message, followed by its payload, if any.
+     *
+     * @param message The message.
+     * @throws IOException if an error occurs
+     */
+    public synchronized void send(TCPMessage message) throws IOException {
+        int type = Integer.parseInt(message.messageType);
+        frame.reset();
+        boolean withPayload = message.file != null || message.fileContent != null || message.map != null;
+        if (type == 2) {
+            writeDescription(message.messageStr);
+        } else if (type == SPAWN_BATCH) {
+            String[] descriptions = message.messageStr.split("\n");
+            writeVarint(descriptions.length);
+            for (String description : descriptions) {
+                writeDescription(description);
+            }
+        } else {
+            writeString(frameOut, message.messageStr);
+            writeString(frameOut, message.mapKey);
+            frameOut.writeBoolean(withPayload);
+        }
+        writeFrame(type);
+        if (withPayload) {
+            if (message.file != null) {
+                try (InputStream file = new FileInputStream(message.file)) {
+                    int n;
+                    while ((n = file.read(sentChunk)) > 0) {
+                        writeChunk(sentChunk, 0, n);
+                    }
+                }
+            } else if (message.map != null) {
+                chunks.count = 0;
+                MapCache.encode(message.map, chunks);
+            } else {
+                for (int i = 0; i < message.fileContent.length; i += CHUNK_SIZE) {
+                    writeChunk(message.fileContent, i, Math.min(CHUNK_SIZE, message.fileContent.length - i));
+                }
+            }
+            writeChunk(sentChunk, 0, 0);
+        }
+        out.flush();
+    }
+
+    /**
+     * Sends the settings of the simulation to a LocalCoordinator.
+     *
+     * @param appList The applications.
+     * @param physical True to report the events of the physical layer.
+     * @param network True to report the events of the network layer.
+     * @param application True to report the events of the application layer.
+     * @throws IOException if an error occurs
+     */
+    public synchronized void sendSettings(Map<String, String> appList, boolean physical, boolean network, boolean application) throws IOException {
+        frame.reset();
+        frameOut.writeInt(appList.size());
+        for (Map.Entry<String, String> app : appList.entrySet()) {
+            writeString(frameOut, app.getKey());
+            writeString(frameOut, app.getValue());
+        }
+        frameOut.writeBoolean(physical);
+        frameOut.writeBoolean(network);
+        frameOut.writeBoolean(application);
+        writeFrame(SETTINGS);
+        out.flush();
+    }
+
+    /**
+     * Waits for the settings of the simulation, and stores them in <code>SimStatus</code>.
+     *
+     * @throws IOException if an error occurs, or another message is received
+     */
+    public void receiveSettings() throws IOException {
+        ByteBuffer frame = readFrame();
+        if (frame.get(0) != SETTINGS) {
+            throw new IOException("unexpected frame type " + frame.get(0));
+        }
+        frame.position(1);
+        HashMap<String, String> appList = new HashMap<>();
+        for (int n = frame.getInt(); n > 0; n--) {
+            String app = readString(frame);
+            appList.put(app, readString(frame));
+        }
+        SimStatus.appList.putAll(appList);
+        SimStatus.physical = frame.get() != 0;
+        SimStatus.network = frame.get() != 0;
+        SimStatus.application = frame.get() != 0;
+    }
+
+    /**
+     * Waits for a message and its payload, if any.
+     *
+     * @return The message; its payload is in the temporary file <code>file</code>.
+     * @throws IOException if an error occurs, or the connection is closed
+     */
+    public TCPMessage receive() throws IOException {
+        ByteBuffer frame = readFrame();
+        int type = frame.get();
+        TCPMessage message = new TCPMessage(String.format("%02d", type));
+        if (type == 2) {
+            message.messageStr = readDescription(frame);
+            return message;
+        }
+        if (type == SPAWN_BATCH) {
+            StringBuilder descriptions = new StringBuilder();
+            for (int n = readVarint(frame); n > 0; n--) {
+                descriptions.append(readDescription(frame));
+                if (n > 1) {
+                    descriptions.append('\n');
+                }
+            }
+            message.messageStr = descriptions.toString();
+            return message;
+        }
+        if (type == SETTINGS || type == CHUNK) {
+            throw new IOException("unexpected frame type " + type);
+        }
+        message.messageStr = readString(frame);
+        message.mapKey = readString(frame);
+        if (frame.get() != 0) {
+            /** the maps are written in the cache directory, to be moved into the cache */
+            File directory = null;
+            if (type == 4 && MapCache.isEnabled()) {
+                directory = MapCache.getDirectory();
+                directory.mkdirs();
+            }
+            message.file = File.createTempFile("tcp", ".part", directory);
+            try (OutputStream file = new FileOutputStream(message.file)) {
+                int n;
+                while ((n = readChunk()) > 0) {
+                    file.write(chunk, 0, n);
+                }
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            System.out.println("Error closing the TCP connection:\n" + ex);
+        }
+    }
+
+    /**
+     * Writes the frame built in <code>frame</code>, split in several frames
+     * if it is longer than <code>CHUNK_SIZE</code>.
+     */
+    private void writeFrame(int type) throws IOException {
+        if (frame.size() <= CHUNK_SIZE) {
+            out.writeByte(type);
+            out.writeInt(frame.size());
+            frame.writeTo(out);
+            return;
+        }
+        if (frame.size() > MAX_MESSAGE) {
+            throw new IOException("message too long: " + frame.size() + " bytes");
+        }
+        byte[] data = frame.toByteArray();
+        int offset = 0;
+        for (; data.length - offset > CHUNK_SIZE; offset += CHUNK_SIZE) {
+            out.writeByte(CONTINUED | type);
+            out.writeInt(CHUNK_SIZE);
+            out.write(data, offset, CHUNK_SIZE);
+        }
+        out.writeByte(type);
+        out.writeInt(data.length - offset);
+        out.write(data, offset, data.length - offset);
+    }
+
+    private void writeChunk(byte[] data, int offset, int length) throws IOException {
+        out.writeByte(CHUNK);
+        out.writeInt(length);
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Reads a frame, joining the frames of a message split in several ones.
+     *
+     * @return The frame: its type (at position 0) and its payload.
+     */
+    private ByteBuffer readFrame() throws IOException {
+        int size = 0;
+        while (true) {
+            int type = in.readUnsignedByte();
+            int length = in.readInt();
+            if (length < 0 || length > CHUNK_SIZE || size + length > MAX_MESSAGE) {
+                throw new IOException("invalid frame length " + length);
+            }
+            if (payload.length < size + length + 1) {
+                payload = Arrays.copyOf(payload, Math.max(size + length + 1, 2 * payload.length));
+            }
+            payload[0] = (byte) (type & ~CONTINUED);
+            in.readFully(payload, size + 1, length);
+            size += length;
+            if ((type & CONTINUED) == 0) {
+                return ByteBuffer.wrap(payload, 0, size + 1);
+            }
+        }
+    }
+
+    /**
+     * Reads a chunk of a payload into <code>chunk</code>.
+     *
+     * @return The length of the chunk; 0 at the end of the payload.
+     */
+    private int readChunk() throws IOException {
+        int type = in.readUnsignedByte();
+        int length = in.readInt();
+        if (type != CHUNK || length < 0 || length > CHUNK_SIZE) {
+            throw new IOException("invalid chunk: type " + type + ", length " + length);
+        }
+        in.readFully(chunk, 0, length);
+        return length;
+    }
+
+    /**
+     * The payload of a message written as it is produced, in chunks.
+     */
+    private class ChunkOutputStream extends OutputStream {
+        /** length of the chunk in <code>sentChunk</code> */
+        int count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == CHUNK_SIZE) {
+                flush();
+            }
+            sentChunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == CHUNK_SIZE) {
+                    flush();
+                }
+                int n = Math.min(length, CHUNK_SIZE - count);
+                System.arraycopy(b, offset, sentChunk, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Writes the chunk, if it is not empty.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                writeChunk(sentChunk, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the description of an actor: the number of fields, the actor id
+     * (prefix and number, or the whole id if it does not end in a number)
+     * and the other fields.
+     */
+    private void writeDescription(String description) throws IOException {
+        String[] fields = description.split(":", -1);
+        writeVarint(fields.length);
+        String id = fields[0];
+        int dot = id.lastIndexOf('.');
+        int number = -1;
+        if (dot >= 0 && dot + 1 < id.length() && dot + 10 > id.length()) {
+            String suffix = id.substring(dot + 1);
+            if (suffix.chars().allMatch(Character::isDigit) && (suffix.length() == 1 || suffix.charAt(0) != '0')) {
+                number = Integer.parseInt(suffix);
+            }
+        }
+        if (number >= 0) {
+            writeVarint(number + 1);
+            writeToken(id.substring(0, dot + 1));
+        } else {
+            writeVarint(0);
+            writeToken(id);
+        }
+        for (int i = 1; i < fields.length; i++) {
+            writeToken(fields[i]);
+        }
+    }
+
+    private String readDescription(ByteBuffer frame) {
+        int n = readVarint(frame);
+        StringBuilder description = new StringBuilder();
+        int number = readVarint(frame);
+        description.append(readToken(frame));
+        if (number > 0) {
+            description.append(number - 1);
+        }
+        for (int i = 1; i < n; i++) {
+            description.append(':').append(readToken(frame));
+        }
+        return description.toString();
+    }
+
+    /**
+     * Writes a field of a description: 2 + its index in the dictionary, 1
+     * followed by a double (if the field is one, exactly as
+     * <code>Double.toString</code> writes it), or 0 followed by the string.
+     */
+    private void writeToken(String s) throws IOException {
+        Integer index = sentStrings.get(s);
+        if (index != null) {
+            writeVarint(index + 2);
+            return;
+        }
+        if (!s.isEmpty() && (Character.isDigit(s.charAt(0)) || s.charAt(0) == '-') && s.indexOf('.') > 0) {
+            try {
+                double d = Double.parseDouble(s);
+                if (Double.toString(d).equals(s)) {
+                    writeVarint(1);
+                    frameOut.writeDouble(d);
+                    return;
+                }
+            } catch (NumberFormatException ex) {
+                /** not a number: sent as a string */
+            }
+        }
+        writeVarint(0);
+        writeString(frameOut, s);
+        if (sentStrings.size() < MAX_STRINGS) {
+            sentStrings.put(s, sentStrings.size());
+        }
+    }
+
+    private String readToken(ByteBuffer frame) {
+        int index = readVarint(frame);
+        if (index > 1) {
+            return receivedStrings.get(index - 2);
+        }
+        if (index == 1) {
+            return Double.toString(frame.getDouble());
+        }
+        String s = readString(frame);
+        if (receivedStrings.size() < MAX_STRINGS) {
+            receivedStrings.add(s);
+        }
+        return s;
+    }
+
+    /** Writes an unsigned int in 1 to 5 bytes, 7 bits at a time. */
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            frameOut.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        frameOut.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer frame) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = frame.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(ByteBuffer frame) {
+        int length = frame.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return s;
+    }
+}
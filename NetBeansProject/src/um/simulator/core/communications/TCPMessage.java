@@ -5,22 +5,29 @@
 package um.simulator.core.communications;
 
 import java.io.File;
-import java.io.Serializable;
 import um.simulator.map.GlobalMap;
 
 /**
  * This class is a representation of a data packet used in actor's communications.
+ * It is sent as a binary frame by a <code>TCPConnection</code>.
  * 
  * @author João
  * @author luisacabs
  * @version 1.0
  * 
  */
-public class TCPMessage implements Serializable {
+public class TCPMessage {
     public String messageType;
     public String messageStr;
-    public GlobalMap map;
+    /** key of a map in the <code>MapCache</code> */
+    public String mapKey;
+    /** payload to be sent from memory (the state of a migrated actor), or null */
     public byte[] fileContent;
+    /** map to be sent as the payload, encoded as it is sent, or null */
+    public GlobalMap map;
+    /** payload to be sent from a file (an encoded map or a report), or, on 
+     * reception, the temporary file where it was written; null if none */
+    public File file;
     
 /**
  * Constructor: Creates a new packet with no parameters.
@@ -33,9 +40,19 @@ public TCPMessage () {
  * <code>messageType</code>: <br>
  * <b>"01"</b> <code>LocalCoordinator/Visualization</code> announces itself to the <code>GlobalCoordinator</code> <br>
  * <b>"02"</b> Used between <code>LocalCoordinator</code> and <code>GlobalCoordinator</code> to share <code>Actor</code>'s data <br>
- * <b>"03"</b> <code>LocalCoordinator</code> asks for the map specified in <code>messageStr</code> <br>
- * <b>"04"</b> <code>GlobalCoordinator</code> sends map to <code>LocalCoordinator</code> 
- * <b>"05"</b> <code>GlobalCoordinator</code> sends kill message to <code>LocalCoordinator</code>
+ * <b>"03"</b> <code>LocalCoordinator</code> asks for the map specified in <code>messageStr</code>; 
+ * with <code>mapKey</code>, asks for the whole map after missing it in its <code>MapCache</code> <br>
+ * <b>"04"</b> <code>GlobalCoordinator</code> sends map to <code>LocalCoordinator</code> or <code>Visualization</code>: 
+ * the key of a cached map (<code>mapKey</code>) or the encoded map (the payload, with 
+ * <code>mapKey</code> if the map is cached) <br>
+ * <b>"05"</b> <code>GlobalCoordinator</code> sends kill message to <code>LocalCoordinator</code> <br>
+ * <b>"06"</b> <code>LocalCoordinator</code> sends its counters (<code>messageStr</code>) and its report (the payload) <br>
+ * <b>"08"</b> <code>GlobalCoordinator</code> has sent all the maps to a <code>Visualization</code> <br>
+ * <b>"10"</b> <code>GlobalCoordinator</code> sends the data of several new <code>Actor</code>s, one per line <br>
+ * <b>"11"</b> <code>GlobalCoordinator</code> asks the <code>LocalCoordinator</code> running the <code>Actor</code> in <code>messageStr</code> to prepare its migration, and is answered back <br>
+ * <b>"12"</b> <code>GlobalCoordinator</code> asks the destination of a migration to keep the messages of the <code>Actor</code>, and is answered back <br>
+ * <b>"13"</b> <code>GlobalCoordinator</code> asks for the <code>Actor</code> to stop; the <code>LocalCoordinator</code> answers with its description and its state (the payload) <br>
+ * <b>"14"</b> <code>GlobalCoordinator</code> sends a migrated <code>Actor</code> (description and state) to the destination <br>
  * </p>
  * @param type      A string specifying the message type.
  */
@@ -91,15 +91,25 @@ public class TCPServer extends Thread
     }
     
     /**
-     * Sends a command to the lightest load <code>LocalCoordinator</code>. 
+     * Sends a command to the <code>LocalCoordinator</code> that owns the region 
+     * where the actor starts, or to the lightest load one. 
      * @param newActorDescription   A set of parameters for the creation of a new actor
      */
     public static void createNewActor(String newActorDescription) {
-        String ipMinLoad = SimStatus.getBestMachine();
-        TCPServerThread tcpThread = localCoordinators.get(ipMinLoad);
-        TCPMessage msgToSend = new TCPMessage ("02");
-        msgToSend.messageStr = newActorDescription;
-        tcpThread.sendMsg(msgToSend);
+        TCPServerThread tcpThread = null;
+        if (SimStatus.regions != null) {
+            String[] actorParams = newActorDescription.split(":", 4);
+            String owner = SimStatus.regions.getOwner(Double.parseDouble(actorParams[1]), Double.parseDouble(actorParams[2]));
+            tcpThread = localCoordinators.get(owner);
+        }
+        if (tcpThread == null) {
+            String ipMinLoad = SimStatus.getBestMachine();
+            tcpThread = localCoordinators.get(ipMinLoad);
+        }
+        if (SimStatus.migrator != null) {
+            SimStatus.migrator.actorCreated(newActorDescription.split(":", 2)[0], tcpThread.ipLocalCoordinator.getHostAddress());
+        }
+        tcpThread.createNewActor(newActorDescription);
     }
     
     public void shutdown(){
@@ -1,15 +1,14 @@
 package um.simulator.core.communications;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
 import um.simulator.core.GlobalCoordinator;
 import um.simulator.core.SimStatus;
 import um.simulator.map.GlobalMap;
+import um.simulator.map.MapCache;
 
 /**
  * This class represents a dedicated thread for each tcp connection.
@@ -25,9 +24,16 @@ import um.simulator.map.GlobalMap;
 public class TCPServerThread extends Thread{
     
     Socket socket=null;
-    ObjectInputStream ois = null;
-    ObjectOutputStream oos = null;
+    TCPConnection connection = null;
     public InetAddress ipLocalCoordinator;
+    /** descriptions of the new actors waiting to be sent in a batch */
+    final ArrayList<String> newActors = new ArrayList<>();
+    /** thread sending the batches of new actors; null until the client is a LocalCoordinator */
+    Thread newActorsSender = null;
+    /** time (ms) the new actors wait for others, to be sent together */
+    static final int BATCH_DELAY = 5;
+    /** largest number of new actors in a batch */
+    static final int MAX_BATCH = 256;
         
     /**
      * Constructor: creates a new thread for a given connection.
@@ -36,9 +42,7 @@ public class TCPServerThread extends Thread{
     public TCPServerThread(Socket socket){
         this.socket=socket;
         try {
-            oos = new ObjectOutputStream (socket.getOutputStream());
-            oos.flush();
-            ois = new ObjectInputStream (socket.getInputStream());
+            connection = new TCPConnection(socket);
         } 
         catch (IOException ioE) {
             System.out.println("Connection problems in TCPServerThread");
@@ -56,7 +60,7 @@ public class TCPServerThread extends Thread{
             
             ipLocalCoordinator=socket.getInetAddress();
             while (!connected) {
-                message = (TCPMessage) ois.readObject();
+                message = connection.receive();
                 messageType = message.messageType;
                 if(messageType.equals("01")) {
                     messageBody = message.messageStr;
@@ -69,11 +73,10 @@ public class TCPServerThread extends Thread{
                        typeClient = "localCoordinator";
                        TCPServer.localCoordinators.put(ipLocalCoordinator.getHostAddress(), this);
                        SimStatus.setMachineLoad("0.0/" + ipLocalCoordinator.getHostAddress()); 
-                       oos.writeObject(SimStatus.appList);
-                       oos.writeObject(SimStatus.physical);
-                       oos.writeObject(SimStatus.network);
-                       oos.writeObject(SimStatus.application);
-                       oos.flush();
+                       connection.sendSettings(SimStatus.appList, SimStatus.physical, SimStatus.network, SimStatus.application);
+                       newActorsSender = new Thread(this::sendNewActorsLoop, "TCPServerThread new actors");
+                       newActorsSender.setDaemon(true);
+                       newActorsSender.start();
                     }
                     /** if client is a Visualization sends maps and closes connection */
                     if(messageBody.contains("visualization"))
@@ -81,17 +84,25 @@ public class TCPServerThread extends Thread{
                        connected = true;
                        typeClient = "visualization";
 
+                       /** one message "04" per map being used, then "08" */
                        Iterator mi = SimStatus.maps.keySet().iterator();
-                       HashMap<String,GlobalMap> mapsToSend = new HashMap<>();
                        String mapId;
                        while (mi.hasNext()) {
                            mapId = (String) mi.next();
-                           if (SimStatus.maps.get(mapId).beingUsedMap) {
-                               mapsToSend.put(mapId, SimStatus.maps.get(mapId));
+                           GlobalMap map = SimStatus.maps.get(mapId);
+                           if (map.beingUsedMap) {
+                               TCPMessage msgToSend = new TCPMessage("04");
+                               msgToSend.messageStr = mapId;
+                               if (map.cacheKey != null) {
+                                   msgToSend.file = MapCache.getFile(map.cacheKey);
+                               }
+                               if (msgToSend.file == null) {
+                                   msgToSend.map = map;
+                               }
+                               connection.send(msgToSend);
                            }
                        }
-                       oos.writeObject(mapsToSend);
-                       oos.flush();
+                       connection.send(new TCPMessage("08"));
                     }
                 }
                 else
@@ -100,26 +111,22 @@ public class TCPServerThread extends Thread{
             if  (typeClient.equalsIgnoreCase("localCoordinator")) {
                 while(connected) {
                     
-                    message = (TCPMessage) ois.readObject();
+                    message = connection.receive();
                     if(message.messageType.equals("06")){
                         connected = false;
                     }
                     GlobalCoordinator.receiveMessage(this, message);   
                 }
+                newActorsSender.interrupt();
             }
             else {
-                oos.close();
-                ois.close();
+                connection.close();
             }
         }
         catch (IOException ioE) {
             if(connected)
                 System.out.println("Connection establishment problems with " + messageBody + ioE.getLocalizedMessage());
         }
-        catch (ClassNotFoundException cnfE) {
-            if(connected)
-                System.out.println("Connection establishment problems with " + messageBody + cnfE);
-        }
     }
    
     /**
@@ -127,11 +134,77 @@ public class TCPServerThread extends Thread{
      * @param msgToSend     a datagram packet to be sent
      */
     public synchronized void sendMsg (TCPMessage msgToSend) {
+        /** the new actors waiting are sent first, to keep the order of the messages */
+        sendNewActors();
         try {
-            oos.writeObject(msgToSend);
-            oos.flush();
+            connection.send(msgToSend);
         } catch (IOException ioE) {
             System.out.println("Error sending TCP message" + ioE);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Orders the LocalCoordinator to create a new actor. The new actors are
+     * sent in batches (a message "10"), after <code>BATCH_DELAY</code> ms, so
+     * that the actors created at the same time by several generators are sent
+     * together.
+     *
+     * @param newActorDescription   A set of parameters for the creation of a new actor
+     */
+    public void createNewActor(String newActorDescription) {
+        synchronized (newActors) {
+            newActors.add(newActorDescription);
+            if (newActors.size() == 1) {
+                newActors.notify();
+            }
+        }
+    }
+
+    /**
+     * Sends the batches of new actors, until the connection is closed.
+     */
+    void sendNewActorsLoop() {
+        try {
+            while (true) {
+                synchronized (newActors) {
+                    while (newActors.isEmpty()) {
+                        newActors.wait();
+                    }
+                }
+                Thread.sleep(BATCH_DELAY);
+                sendNewActors();
+            }
+        } catch (InterruptedException ex) {
+            /** the connection is closed */
+        }
+    }
+
+    /**
+     * Sends the new actors waiting: one message "02", or messages "10" of up
+     * to <code>MAX_BATCH</code> actors.
+     */
+    synchronized void sendNewActors() {
+        while (true) {
+            TCPMessage msgToSend;
+            synchronized (newActors) {
+                if (newActors.isEmpty()) {
+                    return;
+                }
+                int n = Math.min(newActors.size(), MAX_BATCH);
+                if (n == 1) {
+                    msgToSend = new TCPMessage("02");
+                    msgToSend.messageStr = newActors.get(0);
+                } else {
+                    msgToSend = new TCPMessage("10");
+                    msgToSend.messageStr = String.join("\n", newActors.subList(0, n));
+                }
+                newActors.subList(0, n).clear();
+            }
+            try {
+                connection.send(msgToSend);
+            } catch (IOException ioE) {
+                System.out.println("Error sending TCP message" + ioE);
+            }
+        }
+    }
+}
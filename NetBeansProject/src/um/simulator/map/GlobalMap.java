@@ -2,14 +2,12 @@ package um.simulator.map;
 
 import java.io.*;
 import java.util.*;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * This class represents a map used by the actors to define their movements
@@ -42,8 +40,35 @@ public class GlobalMap implements Serializable {
     public ArrayList<MapLine> lines = new ArrayList<>();
 
     /** the list of neighbours of each point in the map,
-     * (those that are directly connected through a line segment) */
-    public ArrayList<HashSet<Integer>> pointsNeighbours = new ArrayList<>();
+     * (those that are directly connected through a line segment).
+     * Only used while the map is built: the actors use the compact graph 
+     * (<code>neighboursOffsets</code> and <code>neighboursTargets</code>); 
+     * it is released by <code>buildGraph</code> and rebuilt when needed. */
+    public transient ArrayList<HashSet<Integer>> pointsNeighbours = new ArrayList<>();
+
+    /** the graph of the map in compressed sparse row format: the neighbours of 
+     * point i are <code>neighboursTargets[neighboursOffsets[i]]</code> to 
+     * <code>neighboursTargets[neighboursOffsets[i + 1] - 1]</code> */
+    public int[] neighboursOffsets = {0};
+    public int[] neighboursTargets = new int[0];
+
+    /** the coordinates of each point in the map */
+    public double[] pointsX = new double[0];
+    public double[] pointsY = new double[0];
+
+    /** the id of each point in the map, indexed by its quantized coordinates 
+     * (see <code>pointKey</code>) */
+    public HashMap<Long, Integer> pointsIndex = new HashMap<>();
+
+    /** size of the quantum used to index the points' coordinates, in meters */
+    public static final double POINTS_INDEX_QUANTUM = 0.001;
+
+    /** the id of the first line containing each point in the map (-1 if none) */
+    public int[] pointsLine = new int[0];
+
+    /** the key of the map in the <code>MapCache</code>; null if the map is 
+     * not a base map (e.g. merged maps) */
+    public String cacheKey = null;
 
     public ArrayList<MapPoint> busStops = new ArrayList<>();
 
@@ -64,10 +89,19 @@ public class GlobalMap implements Serializable {
         this.baseMap = map.baseMap;
         this.mergedMap = map.mergedMap;
         this.beingUsedMap = map.beingUsedMap;
-        this.points = map.getPoints();
-        this.lines = map.getLines();
+        /** the lists and the index are copied, as a merge appends to them */
+        this.points = new ArrayList<>(map.getPoints());
+        this.lines = new ArrayList<>(map.getLines());
         this.linesColour = map.linesColour;
-        this.pointsNeighbours = map.getPointsNeighbours();
+        /** the graph arrays are never modified, only replaced */
+        this.pointsNeighbours = null;
+        this.neighboursOffsets = map.neighboursOffsets;
+        this.neighboursTargets = map.neighboursTargets;
+        this.pointsX = map.pointsX;
+        this.pointsY = map.pointsY;
+        this.pointsIndex = new HashMap<>(map.pointsIndex);
+        this.cacheKey = map.cacheKey;
+        this.pointsLine = map.pointsLine.clone();
         this.busStops = map.getStops();
         this.trafficLights = map.getTrafficLights();
         this.tramStops = map.getTramStops();
@@ -95,7 +129,17 @@ public class GlobalMap implements Serializable {
         Double originLat= Double.parseDouble(prop.getProperty("Map.originLat","0"));
         CoordinatesHelper.calculateConstants(originLon, originLat);
         if (nameFile.contains(".osm")) {
-            loadOSM(nameFile);
+            /** loads the compiled map from the cache, if possible */
+            MapCache.setDirectory(prop.getProperty("Map.CacheDir", "cache"));
+            if (MapCache.isEnabled()) {
+                cacheKey = MapCache.computeKey(nameFile, originLon, originLat);
+            }
+            if (cacheKey == null || !MapCache.load(cacheKey, this)) {
+                loadOSM(nameFile);
+                if (cacheKey != null) {
+                    MapCache.save(cacheKey, this);
+                }
+            }
         } else {
             System.out.println("Global_Map error: unknown file extension. Filenames must be .osm.");
             System.exit(0);
@@ -151,96 +195,218 @@ public class GlobalMap implements Serializable {
      * @return  All neighbours.
      */
     public ArrayList<HashSet<Integer>> getPointsNeighbours() {
+        if (pointsNeighbours == null) {
+            /** rebuilds the lists from the compact graph */
+            pointsNeighbours = new ArrayList<>(points.size());
+            for (int i = 0; i < points.size(); i++) {
+                HashSet<Integer> neighbours = new HashSet<>();
+                if (i + 1 < neighboursOffsets.length) {
+                    for (int j = neighboursOffsets[i]; j < neighboursOffsets[i + 1]; j++) {
+                        neighbours.add(neighboursTargets[j]);
+                    }
+                }
+                pointsNeighbours.add(neighbours);
+            }
+        }
         return pointsNeighbours;
     }
 
     /**
-     * Loads a map from a file in OpenStreetsMaps format (.osm).
-     * @param nameFile  A path to the map file.
+     * Builds the compact graph and the coordinates arrays from the points and
+     * their lists of neighbours, and releases the lists.
      */
-    
-    private void loadOSM(String nameFile) throws ParserConfigurationException, SAXException {
-
-        ArrayList<Integer> newLine = new ArrayList<>();
-        MapPoint previousNode;
-        File osmfile = new File(nameFile);
+    private void buildGraph() {
+        int n = points.size();
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] = offsets[i] + pointsNeighbours.get(i).size();
+        }
+        int[] targets = new int[offsets[n]];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            int j = offsets[i];
+            for (Integer pId : pointsNeighbours.get(i)) {
+                targets[j++] = pId;
+            }
+            Arrays.sort(targets, offsets[i], offsets[i + 1]);
+            xs[i] = points.get(i).getX();
+            ys[i] = points.get(i).getY();
+        }
+        neighboursOffsets = offsets;
+        neighboursTargets = targets;
+        pointsX = xs;
+        pointsY = ys;
+        pointsNeighbours = null;
+    }
 
-        /** load and parse the OpenStreetMaps XML file */
-        DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilder = dbfac.newDocumentBuilder();
-        Document document = null;
-        try {
-            document = docBuilder.parse(osmfile);
-        } catch (IOException ex) {
-            System.out.println("GlobalMap.loadOSM(): fatal ERROR loading file  " + nameFile + "!");
-            System.exit(0);
+    /**
+     * Sets the contents of an empty map, decoded from the <code>MapCache</code>:
+     * the indexes of the points and lines are rebuilt.
+     * @param points    The points of the map.
+     * @param lines The lines of the map.
+     * @param offsets   The offsets of the compact graph.
+     * @param xs    The x values of the points.
+     * @param ys    The y values of the points.
+     * @param targets   The targets of the compact graph.
+     */
+    void setContents(ArrayList<MapPoint> points, ArrayList<MapLine> lines, int[] offsets, double[] xs, double[] ys, int[] targets) {
+        this.points = points;
+        this.lines = new ArrayList<>(lines.size());
+        this.pointsIndex = new HashMap<>();
+        for (MapPoint mp : points) {
+            pointsIndex.put(pointKey(mp.getX(), mp.getY()), mp.getId());
         }
+        for (MapLine ml : lines) {
+            this.lines.add(ml);
+            indexLine(ml);
+        }
+        neighboursOffsets = offsets;
+        neighboursTargets = targets;
+        pointsX = xs;
+        pointsY = ys;
+        pointsNeighbours = null;
+        this.addBusStops(points);
+        this.addTrafficLights(points);
+        this.addTramStops(points);
+    }
 
-        /** get all the nodes from the XML document */
-        HashMap<String, OSMnode> nodes = getNodes(document);
+    /**
+     * Chooses the next point of an actor moving through the map, without 
+     * allocating memory: goes back to the previous point with a given 
+     * probability (or if it is a dead end), otherwise chooses one of the other
+     * neighbours of the current point with equal probability. An actor that
+     * has no previous point yet (its first hop) cannot go back, so it chooses
+     * among all the neighbours, and stays on an isolated point.
+     * 
+     * @param current   The id of the current point.
+     * @param previous  The id of the previous point.
+     * @param goBackProbability The probability of going back to the previous point.
+     * @param random    The random numbers generator of the actor.
+     * @return  The id of the next point.
+     */
+    public int chooseNextPoint(int current, int previous, double goBackProbability, Random random) {
+        int from = neighboursOffsets[current];
+        int to = neighboursOffsets[current + 1];
+        if (previous < 0) {
+            /** first hop: there is no previous point to go back to */
+            return to > from ? neighboursTargets[from + random.nextInt(to - from)] : current;
+        }
+        if (random.nextDouble() < goBackProbability || to - from <= 1) {
+            /** goes back with GOBACKPROBABILITY probability */
+            return previous;
+        }
+        /** selects among the other options with equal probability */
+        int options = to - from;
+        for (int j = from; j < to; j++) {
+            if (neighboursTargets[j] == previous) {
+                options--;
+                break;
+            }
+        }
+        int choice = random.nextInt(options);
+        for (int j = from; j < to; j++) {
+            if (neighboursTargets[j] != previous && choice-- == 0) {
+                return neighboursTargets[j];
+            }
+        }
+        return previous;
+    }
 
-        List<OSMway> ways = getWays(document);
-        /** for each way */
-        for (OSMway w : ways) {
-            previousNode = null;
-            /** for each point in the current way */
-            for (String nodeId : w.getNdList()) {
-                
-                MapPoint currentNode = new MapPoint();
-                
-                /** all points in cartesian values */
-                HashMap<String, Double> xyPoint;
-
-                Double pointLon=Double.parseDouble(nodes.get(nodeId).getLon());
-                Double pointLat=Double.parseDouble(nodes.get(nodeId).getLat());
-                
-                xyPoint = CoordinatesHelper.toXY(pointLon, pointLat);
-                currentNode.setX(xyPoint.get("x"));
-                currentNode.setY(xyPoint.get("y"));
-                currentNode.setTags(nodes.get(nodeId).getTags());
-
-                /** checks if a node with the same coordinates already exists */
-                int currentNodeId = getMapPointID(currentNode.getX(), currentNode.getY());
-                /** it's a new node */
-                if (currentNodeId == -1) { 
-                    currentNode.setId(points.size());
-                    points.add(currentNode);
-                    pointsNeighbours.add(new HashSet<Integer>());
-                    
-                /** a node with the same coordinates already exists */        
-                }else{ 
-                    currentNode.setId(currentNodeId);
-                }
-                
-                /** if not the first point in the current way, add previous and current points 
-                 * as connected in the pointsNeighbours
-                 */
-                if (previousNode != null) { 
-                    pointsNeighbours.get(previousNode.getId()).add(currentNode.getId());
-                    pointsNeighbours.get(currentNode.getId()).add(previousNode.getId());  
-                    
-                }
+    /**
+     * @param id    The point's id.
+     * @return  The point value in the x axis.
+     */
+    public double getPointX(int id) {
+        return pointsX[id];
+    }
 
-                /** adds all point's ids from the nodes */
-                newLine.add(currentNode.getId());
-                previousNode = currentNode;
-               
-            } 
-            
-            /** creates a new MapLine from this way 
-             * and adds it to the list of maps lines
-             */
-            if (newLine.size() > 1) {
-                MapLine newMapLine = new MapLine();
-                newMapLine.setId(lines.size());
-                newMapLine.setPoints((ArrayList) newLine.clone());
-                newMapLine.setTags(w.getTags());
+    /**
+     * @param id    The point's id.
+     * @return  The point value in the y axis.
+     */
+    public double getPointY(int id) {
+        return pointsY[id];
+    }
 
-                lines.add(newMapLine);
-                newLine.clear();
+    /**
+     * Loads a map from a file in OpenStreetsMaps format (.osm).
+     * The file is read in two passes, with a streaming (StAX) parser: the 
+     * first one finds the nodes used by the ways (<code>readWayNodes</code>), 
+     * and the second one keeps only those nodes, in a compact table, until 
+     * the ways are read. The nodes used by the ways become points of the map,
+     * so the memory used while loading is bounded by the size of the road 
+     * graph, not by the number of nodes in the file.
+     * @param nameFile  A path to the map file.
+     */
+    private void loadOSM(String nameFile) throws XMLStreamException {
+
+        OSMIdSet wayNodes = readWayNodes(nameFile);
+        OSMNodeTable nodes = new OSMNodeTable();
+        ArrayList<Long> ndList = new ArrayList<>();
+        Map<String, String> tags = null;
+        boolean deleted = false;
+        boolean inWay = false;
+        long nodeId = 0;
+        double lon = 0, lat = 0;
+        InputStream in = openOSM(nameFile);
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "node":
+                            deleted = "delete".equals(reader.getAttributeValue(null, "action"));
+                            if (!deleted) {
+                                nodeId = Long.parseLong(reader.getAttributeValue(null, "id"));
+                                lat = Double.parseDouble(reader.getAttributeValue(null, "lat"));
+                                lon = Double.parseDouble(reader.getAttributeValue(null, "lon"));
+                            }
+                            tags = null;
+                            inWay = false;
+                            break;
+                        case "way":
+                            deleted = "delete".equals(reader.getAttributeValue(null, "action"));
+                            tags = new HashMap<>();
+                            inWay = true;
+                            ndList.clear();
+                            break;
+                        case "nd":
+                            ndList.add(Long.parseLong(reader.getAttributeValue(null, "ref")));
+                            break;
+                        case "tag":
+                            tags = addTag(tags, inWay, reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v"));
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "node":
+                            if (!deleted && wayNodes.contains(nodeId)) {
+                                nodes.add(nodeId, lon, lat, tags);
+                            }
+                            tags = null;
+                            break;
+                        case "way":
+                            if (!deleted) {
+                                addWay(ndList, tags, nodes);
+                            }
+                            tags = null;
+                            inWay = false;
+                            break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+            try {
+                in.close();
+            } catch (IOException ex) {
+                Logger.getLogger(GlobalMap.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-        
+
+        buildGraph();
         this.addBusStops(points);
         this.addTrafficLights(points);
         this.addTramStops(points);
@@ -248,80 +414,160 @@ public class GlobalMap implements Serializable {
     }
 
     /**
-     * Gets all nodes from a .xml document.
-     * @param xmlDocument   A .xml document.
-     * @return a list of <code>OSMNodes</code> extracted from the provided XML document
-     * 
+     * Reads the ids of the nodes used by the ways of a .osm map, which are 
+     * the only nodes kept while it is loaded.
+     * @param nameFile  A path to the map file.
+     * @return  The ids of the nodes of the ways that are not deleted.
      */
-    public static HashMap<String, OSMnode> getNodes(Document xmlDocument) {
-        HashMap<String, OSMnode> osmNodes = new HashMap<>();
-
-        Node osmRoot = xmlDocument.getFirstChild();
-        NodeList osmXMLNodes = osmRoot.getChildNodes();
-        for (int i = 1; i < osmXMLNodes.getLength(); i++) {
-            Node item = osmXMLNodes.item(i);
-            if (item.getNodeName().equals("node")) {
-                NamedNodeMap attributes = item.getAttributes();
-                NodeList tagXMLNodes = item.getChildNodes();
-                Map<String, String> tags = new HashMap<>();
-                Map<String, String> busStops = new HashMap<>();
-                Map<String, String> lights = new HashMap<>();
-                Map<String, String> tramStops = new HashMap<>();
-                Node namedItemAction = attributes.getNamedItem("action");
-
-                if (namedItemAction == null || !namedItemAction.getNodeValue().equals("delete")) {
-                    for (int j = 1; j < tagXMLNodes.getLength(); j++) {
-                        Node tagItem = tagXMLNodes.item(j);
-                        NamedNodeMap tagAttributes = tagItem.getAttributes();
-
-                        if (tagAttributes != null) {
-                            String kValue = tagAttributes.getNamedItem("k").getNodeValue();
-
-                            switch (kValue) {
-                            
-                                case "highway":
-                                    String ValueH = tagAttributes.getNamedItem("v").getNodeValue();
-                                    if (ValueH.equals("traffic_signals")) {
-                                        tags.put(kValue, ValueH);
-                                        lights.put(kValue, ValueH);
-                                    }
-                                    break;
-                                    
-                                     case "name":
-                                    String ValueN = tagAttributes.getNamedItem("v").getNodeValue();
-                                    if (ValueN.equals("bus_stop")) {
-                                        tags.put(kValue, ValueN);
-                                        busStops.put(kValue, ValueN);
-                                    }
-                                    if (ValueN.equals("tram_stop")) {
-                                        tags.put(kValue, ValueN);
-                                        tramStops.put(kValue, ValueN);
-                                    }
-                                    break;
+    private static OSMIdSet readWayNodes(String nameFile) throws XMLStreamException {
+        OSMIdSet ids = new OSMIdSet();
+        boolean inWay = false;
+        boolean deleted = false;
+        InputStream in = openOSM(nameFile);
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "way":
+                            deleted = "delete".equals(reader.getAttributeValue(null, "action"));
+                            inWay = true;
+                            break;
+                        case "nd":
+                            if (inWay && !deleted) {
+                                ids.add(Long.parseLong(reader.getAttributeValue(null, "ref")));
                             }
-                        }
+                            break;
                     }
+                } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("way")) {
+                    inWay = false;
+                }
+            }
+        } finally {
+            reader.close();
+            try {
+                in.close();
+            } catch (IOException ex) {
+                Logger.getLogger(GlobalMap.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return ids;
+    }
 
-                    Node namedItemID = attributes.getNamedItem("id");
-                    Node namedItemLat = attributes.getNamedItem("lat");
-                    Node namedItemLon = attributes.getNamedItem("lon");
-                    Node namedItemVersion = attributes.getNamedItem("version");
-
-                    String id = namedItemID.getNodeValue();
-                    String latitude = namedItemLat.getNodeValue();
-                    String longitude = namedItemLon.getNodeValue();
+    /**
+     * Opens a .osm map file; the simulator stops if it cannot be read.
+     * @param nameFile  A path to the map file.
+     * @return  The stream of the file.
+     */
+    private static InputStream openOSM(String nameFile) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(nameFile));
+        } catch (IOException ex) {
+            System.out.println("GlobalMap.loadOSM(): fatal ERROR loading file  " + nameFile + "!");
+            System.exit(0);
+        }
+        return in;
+    }
 
-                    String version = "0";
-                    if (namedItemVersion != null) {
-                        version = namedItemVersion.getNodeValue();
-                    }
-                    osmNodes.put(id, new OSMnode(id, latitude, longitude, version, tags, busStops, lights, tramStops));
-                }
+    /**
+     * Keeps the tags of the nodes and ways that are used by the simulator: 
+     * traffic lights, bus and tram stops for the nodes, and speed limits, 
+     * lanes and one way restrictions for the ways.
+     * @param tags  The tags kept so far for the current element (null for a 
+     * node without tags).
+     * @param way   True if the current element is a way.
+     * @param k The key of the tag.
+     * @param v The value of the tag.
+     * @return The tags kept for the current element.
+     */
+    private static Map<String, String> addTag(Map<String, String> tags, boolean way, String k, String v) {
+        if (k == null || v == null) {
+            return tags;
+        }
+        if (way) {
+            switch (k) {
+                case "maxspeed":
+                case "minspeed":
+                case "lanes":
+                case "oneway":
+                    tags.put(k, v);
+                    break;
             }
+        } else if ((k.equals("highway") && v.equals("traffic_signals")) 
+                || (k.equals("name") && (v.equals("bus_stop") || v.equals("tram_stop")))) {
+            if (tags == null) {
+                tags = new HashMap<>();
+            }
+            tags.put(k, v);
         }
-        return osmNodes;
+        return tags;
     }
 
+    /**
+     * Adds the points and the line of a way to the map.
+     * @param ndList    The ids of the nodes of the way.
+     * @param tags  The tags of the way.
+     * @param nodes The nodes read so far.
+     */
+    private void addWay(ArrayList<Long> ndList, Map<String, String> tags, OSMNodeTable nodes) {
+        ArrayList<Integer> newLine = new ArrayList<>();
+        int previousNodeId = -1;
+        /** for each point in the current way */
+        for (Long ref : ndList) {
+            int node = nodes.indexOf(ref);
+            if (node < 0) {
+                System.out.println("WARNING: GlobalMap.loadOSM(): way references unknown node " + ref + "; the node is skipped.");
+                continue;
+            }
+            /** all points in cartesian values */
+            HashMap<String, Double> xyPoint = CoordinatesHelper.toXY(nodes.getLon(node), nodes.getLat(node));
+            double x = xyPoint.get("x");
+            double y = xyPoint.get("y");
+
+            /** checks if a node with the same coordinates already exists */
+            int currentNodeId = getMapPointID(x, y);
+            /** it's a new node */
+            if (currentNodeId == -1) {
+                MapPoint currentNode = new MapPoint();
+                currentNode.setX(x);
+                currentNode.setY(y);
+                Map<String, String> nodeTags = nodes.getTags(node);
+                currentNode.setTags(nodeTags == null ? new HashMap<String, String>() : nodeTags);
+                currentNodeId = points.size();
+                currentNode.setId(currentNodeId);
+                points.add(currentNode);
+                pointsIndex.put(pointKey(x, y), currentNodeId);
+                pointsNeighbours.add(new HashSet<Integer>());
+            }
+
+            /** if not the first point in the current way, add previous and current points 
+             * as connected in the pointsNeighbours
+             */
+            if (previousNodeId != -1) {
+                pointsNeighbours.get(previousNodeId).add(currentNodeId);
+                pointsNeighbours.get(currentNodeId).add(previousNodeId);
+            }
+
+            /** adds all point's ids from the nodes */
+            newLine.add(currentNodeId);
+            previousNodeId = currentNodeId;
+        }
+
+        /** creates a new MapLine from this way 
+         * and adds it to the list of maps lines
+         */
+        if (newLine.size() > 1) {
+            MapLine newMapLine = new MapLine();
+            newMapLine.setId(lines.size());
+            newMapLine.setPoints(newLine);
+            newMapLine.setTags(tags);
+
+            lines.add(newMapLine);
+            indexLine(newMapLine);
+        }
+    }
 
     /** 
      * Adds all existing bus stops.
@@ -369,79 +615,6 @@ public class GlobalMap implements Serializable {
     }
 
      
-    /**
-     * Reads ways from a .xml Document.
-     * @param xmlDocument   A .xml Document.
-     * @return  A list of <code>OSMWay</code>'s.
-     */
-    
-    public static List<OSMway> getWays(Document xmlDocument) {
-        List<OSMway> osmWays = new ArrayList<>();
-        Node osmRoot = xmlDocument.getFirstChild();
-        NodeList osmXMLNodes = osmRoot.getChildNodes();
-        for (int i = 1; i < osmXMLNodes.getLength(); i++) {
-            Node item = osmXMLNodes.item(i);
-            if (item.getNodeName().equals("way")) {
-                NamedNodeMap attributes = item.getAttributes();
-                NodeList tagXMLNodes = item.getChildNodes();
-                Map<String, String> tags = new HashMap<>();
-                /** nodes belonging to this way */
-                ArrayList<String> ndlist = new ArrayList<>();
-                Node namedItemAction = attributes.getNamedItem("action");
-                if (namedItemAction == null || !namedItemAction.getNodeValue().equals("delete")) {
-                    for (int j = 1; j < tagXMLNodes.getLength(); j++) {
-                        Node tagItem = tagXMLNodes.item(j);
-                        NamedNodeMap tagAttributes = tagItem.getAttributes();
-                        if (tagItem.getNodeName().equalsIgnoreCase("tag") && tagAttributes != null) {
-                            String kValue = tagAttributes.getNamedItem("k").getNodeValue();
-                            switch (kValue) {
-                                case "maxspeed":
-                                    String vValue = tagAttributes.getNamedItem("v").getNodeValue();
-                                    tags.put(kValue, vValue);
-                                    break;
-
-                                case "minspeed":
-                                    String vValueM = tagAttributes.getNamedItem("v").getNodeValue();
-                                    tags.put(kValue, vValueM);
-                                    break;
-
-                                case "lanes":
-                                    String vValueL = tagAttributes.getNamedItem("v").getNodeValue();
-                                    tags.put(kValue, vValueL);
-                                    break;
-
-                                case "oneway":
-                                    String vValueO = tagAttributes.getNamedItem("v").getNodeValue();
-                                    tags.put(kValue, vValueO);
-                                    break;
-                            }
-                        } 
-                        /** if it is a reference to a node */
-                        else if (tagItem.getNodeName().equalsIgnoreCase("nd") && tagAttributes != null) {
-                            String Ref = tagAttributes.getNamedItem("ref").getNodeValue();
-                            ndlist.add(Ref);
-                        }
-                    }
-
-                    Node namedItemID = attributes.getNamedItem("id");
-                    String id = namedItemID.getNodeValue();
-
-                    Node namedItemVisible = attributes.getNamedItem("visible");
-                    boolean visible = true;
-                    if (namedItemVisible.getNodeValue().equalsIgnoreCase("false")) {
-                        visible = false;
-                    } else if (namedItemVisible.getNodeValue().equalsIgnoreCase("true")) {
-                        visible = true;
-                    }
-
-                    osmWays.add(new OSMway(id, visible, ndlist, tags));
-                }
-            }
-        }
-        return osmWays;
-    }
-
-    
     /**
      * Merges a <code>GlobalMap</code> into the current <code>GlobalMap</code>.
      *
@@ -453,6 +626,9 @@ public class GlobalMap implements Serializable {
         HashMap<Integer, Integer> pointIdsMapping = new HashMap();
         ArrayList<Integer> newLine = new ArrayList<>();
 
+        pointsNeighbours = getPointsNeighbours();
+        /** the merged map is not a base map, it has no cached copy */
+        cacheKey = null;
         if (mapToMerge.points.size() <= 0) {
             /** there are points to merge */
             System.out.println("WARNING: GlobalMap.mergeWith(): the provided map is empty (no points)! Doing nothing.");
@@ -467,8 +643,11 @@ public class GlobalMap implements Serializable {
                 newPointId = getMapPointID(mp.getX(), mp.getY());
                 /** its a new node! */
                 if (newPointId == -1) { 
-                    mp.setId(points.size());
-                    points.add(mp.clone());
+                    /** the point of the other map keeps its id */
+                    MapPoint copy = mp.clone();
+                    copy.setId(points.size());
+                    points.add(copy);
+                    pointsIndex.put(pointKey(mp.getX(), mp.getY()), copy.getId());
                     pointIdsMapping.put(pId, points.size() - 1);
                     pointsNeighbours.add(new HashSet<Integer>());
                 /** a point with the same coordinates already exists */
@@ -504,25 +683,63 @@ public class GlobalMap implements Serializable {
                 MapLine newMapLine = new MapLine();
                 newMapLine.setId(lines.size());
                 newMapLine.setPoints((ArrayList) newLine.clone());
+                newMapLine.setTags(ml.getTags());
                 lines.add(newMapLine);
+                indexLine(newMapLine);
                 newLine.clear();
             }
         }
+        buildGraph();
     }
 
     /**
      * Gets a point with the given cartesian values.
+     * Points rounding to the same cell of <code>POINTS_INDEX_QUANTUM</code> (1 mm) 
+     * are considered the same; two points closer than that may round to 
+     * neighbouring cells, and are then different points, as they were when 
+     * the coordinates were compared exactly.
      * @param x Value in the x axis.
      * @param y Value in the y axis.
-     * @return The point id.
+     * @return The point id, or -1 if there is no such point.
      */
     public int getMapPointID(double x, double y) {
-        for (MapPoint pl : points) {
-            if ((pl.getX() == x) && (pl.getY() == y)) {
-                return pl.getId();
+        Integer id = pointsIndex.get(pointKey(x, y));
+        if (id == null) {
+            return -1;
+        }
+        return id;
+    }
+
+    /**
+     * Computes the key of a point in <code>pointsIndex</code>: its coordinates, 
+     * rounded to <code>POINTS_INDEX_QUANTUM</code>, packed in a long.
+     * @param x Value in the x axis.
+     * @param y Value in the y axis.
+     * @return The key of the point.
+     */
+    public static long pointKey(double x, double y) {
+        long qx = Math.round(x / POINTS_INDEX_QUANTUM);
+        long qy = Math.round(y / POINTS_INDEX_QUANTUM);
+        return (qx << 32) ^ (qy & 0xffffffffL);
+    }
+
+    /**
+     * Adds a new line to <code>pointsLine</code>: it becomes the line of the 
+     * points that were not in any line yet.
+     * @param ml    A line of the map.
+     */
+    private void indexLine(MapLine ml) {
+        if (pointsLine.length < points.size()) {
+            int oldLength = pointsLine.length;
+            pointsLine = Arrays.copyOf(pointsLine, Math.max(points.size(), 2 * oldLength));
+            Arrays.fill(pointsLine, oldLength, pointsLine.length, -1);
+        }
+        for (Object pId : ml.getPoints()) {
+            int id = (Integer) pId;
+            if (pointsLine[id] == -1) {
+                pointsLine[id] = ml.getId();
             }
         }
-        return -1;
     }
 
     /**
@@ -531,10 +748,8 @@ public class GlobalMap implements Serializable {
      * @return A <code>MapLine</code>.
      */
     public MapLine getMapLine(int id) {
-        for (MapLine ml : lines) {
-            if ((ml.getPoints().contains(id))) {
-                return ml;
-            }
+        if (id >= 0 && id < pointsLine.length && pointsLine[id] >= 0) {
+            return lines.get(pointsLine[id]);
         }
         return null;
     }
@@ -549,6 +764,7 @@ public class GlobalMap implements Serializable {
         for (MapPoint pl : points) {
             System.out.print(pl.getId() + ", ");
         }
+        ArrayList<HashSet<Integer>> pointsNeighbours = getPointsNeighbours();
         System.out.println("\npointsNeighbours(" + pointsNeighbours.size() + "): ");
         for (int i = 0; i < pointsNeighbours.size(); i++) {
             System.out.print(i + "-[");
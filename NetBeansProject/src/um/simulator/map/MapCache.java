@@ -0,0 +1,377 @@
+package um.simulator.map;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a cache of compiled maps, in a compact binary format.
+ *
+ * The first time an .osm file is loaded, the resulting <code>GlobalMap</code>
+ * is written to the cache directory (<code>Map.CacheDir</code>), in a file
+ * named after a hash of the contents of the .osm file and of the origin of the
+ * projection. The next loads read it through a read-only
+ * <code>MappedByteBuffer</code>, so the coordinators running on the same host
+ * share the pages of the file.
+ *
+ * The same format is used to send the maps from the GlobalCoordinator to the
+ * LocalCoordinators.
+ *
+ * Format (big endian): magic, version, flags, lines colour, points (x and y
+ * arrays, then the tags of the tagged points), graph (CSR offsets and targets)
+ * and lines (points and tags). Strings are a short length followed by UTF-8.
+ *
+ * @version 1.0
+ */
+public class MapCache {
+
+    /** "BUMC" */
+    static final int MAGIC = 0x42554D43;
+    /** version of the format; files with another version are rebuilt */
+    static final int VERSION = 1;
+
+    /** the cache directory; null if the cache is disabled */
+    static File directory = new File("cache");
+
+    /**
+     * Sets the cache directory.
+     *
+     * @param path  The path of the directory; null or empty to disable the cache.
+     */
+    public static void setDirectory(String path) {
+        if (path == null || path.trim().isEmpty()) {
+            directory = null;
+        } else {
+            directory = new File(path.trim());
+        }
+    }
+
+    /**
+     * @return The cache directory, or null if the cache is disabled.
+     */
+    public static File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return true if the cache is enabled
+     */
+    public static boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Computes the key of a map: a hash of the .osm file, the origin of the
+     * projection and the version of the format.
+     *
+     * @param osmFile   A path to the map file.
+     * @param originLon Longitude of the origin of the projection.
+     * @param originLat Latitude of the origin of the projection.
+     * @return The key of the map.
+     * @throws IOException if the file can not be read
+     */
+    public static String computeKey(String osmFile, double originLon, double originLat) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        byte[] block = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(osmFile)) {
+            int n;
+            while ((n = in.read(block)) > 0) {
+                digest.update(block, 0, n);
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(20);
+        header.putDouble(originLon).putDouble(originLat).putInt(VERSION);
+        digest.update(header.array());
+        StringBuilder key = new StringBuilder();
+        byte[] hash = digest.digest();
+        for (int i = 0; i < 16; i++) {
+            key.append(String.format("%02x", hash[i]));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key   The key of a map.
+     * @return The cache file of the map.
+     */
+    static File cacheFile(String key) {
+        return new File(directory, key + ".map");
+    }
+
+    /**
+     * @param key   The key of a map.
+     * @return true if the map is in the cache
+     */
+    public static boolean contains(String key) {
+        return isEnabled() && cacheFile(key).isFile();
+    }
+
+    /**
+     * Loads a map from the cache.
+     *
+     * @param key   The key of the map.
+     * @param map   An empty map, to be filled.
+     * @return true if the map was loaded, false if it is not in the cache or
+     * the file is invalid
+     */
+    public static boolean load(String key, GlobalMap map) {
+        if (!contains(key)) {
+            return false;
+        }
+        return load(cacheFile(key), map);
+    }
+
+    /**
+     * Loads a map from a file in the format of the cache.
+     *
+     * @param file  The file.
+     * @param map   An empty map, to be filled.
+     * @return true if the map was loaded, false if the file is invalid
+     */
+    public static boolean load(File file, GlobalMap map) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer, map);
+        } catch (IOException ex) {
+            Logger.getLogger(MapCache.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Writes a map to the cache. The file is written aside and then renamed,
+     * so that other coordinators never read a partial file.
+     *
+     * @param key   The key of the map.
+     * @param map   The map.
+     */
+    public static void save(String key, GlobalMap map) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            directory.mkdirs();
+            File tmp = File.createTempFile(key, ".tmp", directory);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                encode(map, out);
+            }
+            Files.move(tmp.toPath(), cacheFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(MapCache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Moves a file with an encoded map (received from the GlobalCoordinator)
+     * to the cache. The file should be in the cache directory, so that the
+     * move is atomic.
+     *
+     * @param key   The key of the map.
+     * @param file  The file, in the format of the cache.
+     * @throws IOException if the file can not be moved
+     */
+    public static void save(String key, File file) throws IOException {
+        Files.move(file.toPath(), cacheFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param key   The key of a map.
+     * @return The cache file of the map, or null if it is not in the cache.
+     */
+    public static File getFile(String key) {
+        return contains(key) ? cacheFile(key) : null;
+    }
+
+    /**
+     * Encodes a map in the format of the cache, as it is written to a stream.
+     *
+     * @param map   The map.
+     * @param stream    The stream where the encoded map is written.
+     * @throws IOException if an error occurs
+     */
+    public static void encode(GlobalMap map, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        int n = map.points.size();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeByte((map.baseMap ? 1 : 0) | (map.mergedMap ? 2 : 0));
+        writeString(out, map.linesColour);
+
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(map.points.get(i).getX());
+        }
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(map.points.get(i).getY());
+        }
+        int tagged = 0;
+        for (MapPoint mp : map.points) {
+            if (mp.getTags() != null && !mp.getTags().isEmpty()) {
+                tagged++;
+            }
+        }
+        out.writeInt(tagged);
+        for (int i = 0; i < n; i++) {
+            Map<String, String> tags = map.points.get(i).getTags();
+            if (tags != null && !tags.isEmpty()) {
+                out.writeInt(i);
+                writeTags(out, tags);
+            }
+        }
+
+        for (int i = 0; i <= n; i++) {
+            out.writeInt(map.neighboursOffsets[i]);
+        }
+        out.writeInt(map.neighboursOffsets[n]);
+        for (int j = 0; j < map.neighboursOffsets[n]; j++) {
+            out.writeInt(map.neighboursTargets[j]);
+        }
+
+        out.writeInt(map.lines.size());
+        for (MapLine ml : map.lines) {
+            ArrayList<?> linePoints = ml.getPoints();
+            out.writeInt(linePoints.size());
+            for (Object pId : linePoints) {
+                out.writeInt((Integer) pId);
+            }
+            writeTags(out, ml.getTags());
+        }
+        out.flush();
+    }
+
+    /**
+     * Decodes a map in the format of the cache.
+     *
+     * @param buffer    The encoded map.
+     * @param map   An empty map, to be filled.
+     * @return true if the map was decoded, false if the format is not valid
+     */
+    public static boolean decode(ByteBuffer buffer, GlobalMap map) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return false;
+            }
+            int flags = buffer.get();
+            map.baseMap = (flags & 1) != 0;
+            map.mergedMap = (flags & 2) != 0;
+            map.linesColour = readString(buffer);
+
+            int n = buffer.getInt();
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            buffer.asDoubleBuffer().get(xs);
+            buffer.position(buffer.position() + 8 * n);
+            buffer.asDoubleBuffer().get(ys);
+            buffer.position(buffer.position() + 8 * n);
+            ArrayList<MapPoint> points = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                MapPoint mp = new MapPoint();
+                mp.setId(i);
+                mp.setX(xs[i]);
+                mp.setY(ys[i]);
+                points.add(mp);
+            }
+            int tagged = buffer.getInt();
+            for (int t = 0; t < tagged; t++) {
+                points.get(buffer.getInt()).setTags(readTags(buffer));
+            }
+            /** the points and lines without tags share an empty (immutable) map */
+            Map<String, String> noTags = Collections.emptyMap();
+            for (MapPoint mp : points) {
+                if (mp.getTags() == null) {
+                    mp.setTags(noTags);
+                }
+            }
+
+            int[] offsets = new int[n + 1];
+            buffer.asIntBuffer().get(offsets);
+            buffer.position(buffer.position() + 4 * (n + 1));
+            int[] targets = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(targets);
+            buffer.position(buffer.position() + 4 * targets.length);
+
+            int nLines = buffer.getInt();
+            ArrayList<MapLine> lines = new ArrayList<>(nLines);
+            for (int l = 0; l < nLines; l++) {
+                int size = buffer.getInt();
+                ArrayList<Integer> linePoints = new ArrayList<>(size);
+                for (int k = 0; k < size; k++) {
+                    linePoints.add(buffer.getInt());
+                }
+                MapLine ml = new MapLine();
+                ml.setId(l);
+                ml.setPoints(linePoints);
+                ml.setTags(readTags(buffer));
+                lines.add(ml);
+            }
+            map.setContents(points, lines, offsets, xs, ys, targets);
+            return true;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.out.println("WARNING: MapCache.decode(): invalid map data: " + ex);
+            return false;
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        byte[] b = new byte[buffer.getShort() & 0xffff];
+        buffer.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    static void writeTags(DataOutputStream out, Map<String, String> tags) throws IOException {
+        if (tags == null) {
+            out.writeShort(0);
+            return;
+        }
+        out.writeShort(tags.size());
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            writeString(out, tag.getKey());
+            writeString(out, tag.getValue());
+        }
+    }
+
+    static Map<String, String> readTags(ByteBuffer buffer) {
+        int count = buffer.getShort() & 0xffff;
+        if (count == 0) {
+            return Collections.emptyMap();
+        }
+        HashMap<String, String> tags = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String k = readString(buffer);
+            tags.put(k, readString(buffer));
+        }
+        return tags;
+    }
+}
@@ -16,6 +16,18 @@ public class MapLine implements Serializable {
     private int lineId;
     private ArrayList<Integer> points;
     private Map<String, String> tags;
+    /** speed limit, in km/h, parsed from the "maxspeed" tag */
+    private double maxSpeed = DEFAULT_MAX_SPEED;
+    /** number of lanes, parsed from the "lanes" tag */
+    private int lanes = DEFAULT_LANES;
+    /** one way restriction, parsed from the "oneway" tag: 0 - both directions, 
+     * 1 - in the direction of the points, -1 - in the opposite direction */
+    private int oneway = 0;
+
+    /** speed limit, in km/h, of the lines without a valid "maxspeed" tag */
+    public static final double DEFAULT_MAX_SPEED = 50;
+    /** number of lanes of the lines without a valid "lanes" tag */
+    public static final int DEFAULT_LANES = 1;
     
     /**
      * @param ln_id The id of the line.
@@ -36,6 +48,62 @@ public class MapLine implements Serializable {
      */
     public void setTags(Map<String, String> Tags) {
         tags = Tags;
+        parseTags();
+    }
+
+    /**
+     * Parses the tags used by the movement of the actors into fields, so that
+     * the values are not parsed on every update.
+     */
+    private void parseTags() {
+        maxSpeed = DEFAULT_MAX_SPEED;
+        lanes = DEFAULT_LANES;
+        oneway = 0;
+        if (tags == null) {
+            return;
+        }
+        String value = tags.get("maxspeed");
+        if (value != null) {
+            /** e.g. "50", "30 mph", "50;70"; non numeric values ("none", "signals") are ignored */
+            double speed = parseLeadingNumber(value);
+            if (speed > 0) {
+                maxSpeed = value.contains("mph") ? speed * 1.609344 : speed;
+            }
+        }
+        value = tags.get("lanes");
+        if (value != null) {
+            int n = (int) parseLeadingNumber(value);
+            if (n > 0) {
+                lanes = n;
+            }
+        }
+        value = tags.get("oneway");
+        if (value != null) {
+            value = value.trim();
+            if (value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("true") || value.equals("1")) {
+                oneway = 1;
+            } else if (value.equals("-1") || value.equalsIgnoreCase("reverse")) {
+                oneway = -1;
+            }
+        }
+    }
+
+    /**
+     * Parses the number at the beginning of a tag value.
+     * @param value The tag value.
+     * @return The number, or -1 if the value does not start with a number.
+     */
+    static double parseLeadingNumber(String value) {
+        value = value.trim();
+        int end = 0;
+        while (end < value.length() && (Character.isDigit(value.charAt(end)) || value.charAt(end) == '.')) {
+            end++;
+        }
+        try {
+            return Double.parseDouble(value.substring(0, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     /**
@@ -59,4 +127,25 @@ public class MapLine implements Serializable {
         return tags;
     }
 
+    /**
+     * @return Speed limit of the <code>MapLine</code>, in km/h.
+     */
+    public double getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * @return Number of lanes of the <code>MapLine</code>.
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return One way restriction of the <code>MapLine</code>: 0 - both directions, 
+     * 1 - in the direction of the points, -1 - in the opposite direction.
+     */
+    public int getOneway() {
+        return oneway;
+    }
 }
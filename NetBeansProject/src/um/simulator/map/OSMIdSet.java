@@ -0,0 +1,81 @@
+package um.simulator.map;
+
+/**
+ * This class is a set of node ids of a .osm map, in a primitive array: an
+ * open addressing hash table, used to keep only the nodes referenced by the
+ * ways while the map is loaded.
+ *
+ * @version 1.0
+ */
+class OSMIdSet {
+
+    /** the ids, by slot of the hash table */
+    private long[] ids;
+    /** true for the slots that hold an id */
+    private boolean[] used;
+    private int size = 0;
+
+    /**
+     * Constructor: creates an empty set.
+     */
+    OSMIdSet() {
+        ids = new long[1024];
+        used = new boolean[1024];
+    }
+
+    /**
+     * Adds an id to the set.
+     *
+     * @param id    The node id.
+     */
+    void add(long id) {
+        int slot = find(id);
+        if (!used[slot]) {
+            ids[slot] = id;
+            used[slot] = true;
+            size++;
+            if (2 * size > used.length) {
+                rehash();
+            }
+        }
+    }
+
+    /**
+     * @param id    The node id.
+     * @return True if the id is in the set.
+     */
+    boolean contains(long id) {
+        return used[find(id)];
+    }
+
+    /**
+     * Finds the slot of an id: the slot holding it, or the free slot where it
+     * should be added.
+     */
+    private int find(long id) {
+        int mask = used.length - 1;
+        long h = id * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while (used[slot] && ids[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Doubles the size of the hash table.
+     */
+    private void rehash() {
+        long[] oldIds = ids;
+        boolean[] oldUsed = used;
+        ids = new long[2 * oldIds.length];
+        used = new boolean[2 * oldUsed.length];
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                int slot = find(oldIds[i]);
+                ids[slot] = oldIds[i];
+                used[slot] = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package um.simulator.map;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class stores the nodes of a .osm map while it is loaded, in primitive
+ * arrays: an open addressing hash table from the node ids to the coordinates.
+ * Only the tags used by the simulator are kept, and only for the nodes that
+ * have them. <code>GlobalMap.loadOSM</code> adds only the nodes used by the
+ * ways (see <code>OSMIdSet</code>).
+ *
+ * @version 1.0
+ */
+class OSMNodeTable {
+
+    /** node ids, by slot of the hash table */
+    private long[] ids;
+    /** index of the node in the coordinates arrays, by slot (-1 if the slot is free) */
+    private int[] slots;
+    private double[] lons;
+    private double[] lats;
+    /** tags of the nodes that have any, by index */
+    private final HashMap<Integer, Map<String, String>> tags = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * Constructor: creates an empty table.
+     */
+    OSMNodeTable() {
+        ids = new long[1024];
+        slots = new int[1024];
+        Arrays.fill(slots, -1);
+        lons = new double[512];
+        lats = new double[512];
+    }
+
+    /**
+     * Adds a node to the table. A node with an existing id replaces the old one.
+     *
+     * @param id    The node id.
+     * @param lon   The node's longitude.
+     * @param lat   The node's latitude.
+     * @param nodeTags  The node's tags, or null if it has none.
+     */
+    void add(long id, double lon, double lat, Map<String, String> nodeTags) {
+        int slot = find(id);
+        int index;
+        if (slots[slot] >= 0) {
+            index = slots[slot];
+        } else {
+            if (size == lons.length) {
+                lons = Arrays.copyOf(lons, 2 * size);
+                lats = Arrays.copyOf(lats, 2 * size);
+            }
+            index = size++;
+            ids[slot] = id;
+            slots[slot] = index;
+            if (2 * size > slots.length) {
+                rehash();
+            }
+        }
+        lons[index] = lon;
+        lats[index] = lat;
+        if (nodeTags != null) {
+            tags.put(index, nodeTags);
+        } else {
+            tags.remove(index);
+        }
+    }
+
+    /**
+     * @param id    The node id.
+     * @return The index of the node, or -1 if there is no node with the given id.
+     */
+    int indexOf(long id) {
+        return slots[find(id)];
+    }
+
+    double getLon(int index) {
+        return lons[index];
+    }
+
+    double getLat(int index) {
+        return lats[index];
+    }
+
+    /**
+     * @param index The index of the node.
+     * @return The tags of the node, or null if it has none.
+     */
+    Map<String, String> getTags(int index) {
+        return tags.get(index);
+    }
+
+    /**
+     * Finds the slot of an id: the slot holding it, or the free slot where it
+     * should be added.
+     */
+    private int find(long id) {
+        int mask = slots.length - 1;
+        long h = id * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while (slots[slot] >= 0 && ids[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Doubles the size of the hash table.
+     */
+    private void rehash() {
+        long[] oldIds = ids;
+        int[] oldSlots = slots;
+        ids = new long[2 * oldIds.length];
+        slots = new int[2 * oldSlots.length];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] >= 0) {
+                int slot = find(oldIds[i]);
+                ids[slot] = oldIds[i];
+                slots[slot] = oldSlots[i];
+            }
+        }
+    }
+}
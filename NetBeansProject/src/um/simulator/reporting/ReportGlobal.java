@@ -14,6 +14,7 @@ import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.actor.ActorStatus;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
 import um.simulator.map.GlobalMap;
 
@@ -67,7 +68,7 @@ public class ReportGlobal extends Thread {
             fos = new FileOutputStream(setsFileName);
             props = new Properties();
             /** write the initial simulation time: */
-            props.setProperty("SimulationStartAt", String.valueOf(System.currentTimeMillis()));
+            props.setProperty("SimulationStartAt", String.valueOf(SimClock.currentTimeMillis()));
             /** write all the parameters in the settings file */
             for(String propKey : simProperties.stringPropertyNames()) {
                 String propValue = simProperties.getProperty(propKey);
@@ -157,7 +158,7 @@ public class ReportGlobal extends Thread {
     @Override
     public void run() {
         while(keepRecording) {
-            samplingTimeStamp = System.currentTimeMillis();
+            samplingTimeStamp = SimClock.currentTimeMillis();
             try {
                 logActorsStatus(samplingTimeStamp);
                 updateCount++;
@@ -165,7 +166,7 @@ public class ReportGlobal extends Thread {
                     logLoads(samplingTimeStamp);
                     updateCount = 0;
                 }
-                Thread.sleep(actsUpdatePace - samplingTimeStamp + System.currentTimeMillis()); 
+                SimClock.sleep(SimClock.remainingTime(actsUpdatePace, SimClock.currentTimeMillis() - samplingTimeStamp)); 
             } catch (InterruptedException ex) {
                 Logger.getLogger(ReportGlobal.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -175,7 +176,7 @@ public class ReportGlobal extends Thread {
             
             bwLoad.close();
             bwActs.close();
-            props.setProperty("SimulationStopAt", String.valueOf(System.currentTimeMillis()));
+            props.setProperty("SimulationStopAt", String.valueOf(SimClock.currentTimeMillis()));
             props.store(fos, "BartUM simulation in " + getCurrentDateTime());
             fos.close();
         } catch (IOException ex) {
@@ -20,6 +20,7 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import um.simulator.comm.network.NPDU;
+import um.simulator.core.SimClock;
 import um.simulator.core.SimStatus;
 
 /**
@@ -121,7 +122,7 @@ public class ReportLocal {
             }
             if(report){
                 try {
-                    bw.write(System.currentTimeMillis() + " " + ActorID + " S " + layer + " "
+                    bw.write(SimClock.currentTimeMillis() + " " + ActorID + " S " + layer + " "
                             + pdu + " " + bufferSize + "\n");
                     
                 } catch (IOException ex) {
@@ -169,7 +170,7 @@ public class ReportLocal {
             }
             if(report){
                 try {
-                    bw.write(System.currentTimeMillis() + " " + ActorID + " R " + layer + " "
+                    bw.write(SimClock.currentTimeMillis() + " " + ActorID + " R " + layer + " "
                             + pdu + " " +bufferSize + "\n");
                 } catch (IOException ex) {
                     Logger.getLogger(ReportLocal.class.getName()).log(Level.SEVERE, null, ex);
@@ -190,7 +191,7 @@ public class ReportLocal {
     public synchronized void reportDroppedDuplicateNetworkMessage(String ActorID, String npdu, int bufferSize, boolean destination){
        if (status && SimStatus.network) {
            try {
-               bw.write(System.currentTimeMillis() + " " + ActorID + " D 3 " + npdu + " " +  bufferSize + "\n");
+               bw.write(SimClock.currentTimeMillis() + " " + ActorID + " D 3 " + npdu + " " +  bufferSize + "\n");
                nrofDroppedDup++;
                if(destination)
                    nrofDupDestination++;
@@ -211,7 +212,7 @@ public class ReportLocal {
     public synchronized void reportDroppedTTLNetworkMessage(String ActorID,String npdu,int bufferSize){
         if (status && SimStatus.network) {
             try {
-                bw.write(System.currentTimeMillis() + " " + ActorID + " T 3 " + npdu + " " +  bufferSize + "\n");
+                bw.write(SimClock.currentTimeMillis() + " " + ActorID + " T 3 " + npdu + " " +  bufferSize + "\n");
                 nrofDroppedTTL++;
             } catch (IOException ex) {
                 Logger.getLogger(ReportLocal.class.getName()).log(Level.SEVERE, null, ex);
@@ -230,7 +231,7 @@ public class ReportLocal {
     public synchronized void reportDroppedBufferNetworkMessage(String ActorID,String data,int bufferSize){
         if (status && SimStatus.network) {
             try {
-                bw.write(System.currentTimeMillis() + " " + ActorID + " B 3 " + data + " " +  bufferSize + "\n");
+                bw.write(SimClock.currentTimeMillis() + " " + ActorID + " B 3 " + data + " " +  bufferSize + "\n");
                 nrofDroppedBuf++;
             } catch (IOException ex) {
                 Logger.getLogger(ReportLocal.class.getName()).log(Level.SEVERE, null, ex);
@@ -267,7 +268,7 @@ public class ReportLocal {
     public long delayCalculator(String pdu){
         long init,current, delay;
         init = Long.parseLong(pdu.split(":")[0]);
-        current = System.currentTimeMillis();
+        current = SimClock.currentTimeMillis();
         delay = current-init;
         return delay;
     }
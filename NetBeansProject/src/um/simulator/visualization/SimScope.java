@@ -11,6 +11,7 @@ import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import um.simulator.core.communications.MulticastStatusReceiver;
+import um.simulator.core.communications.StatusTiles;
 import um.simulator.core.communications.TCPClient;
 import um.simulator.core.SimStatus;
 import um.simulator.reporting.ReportingPlayer;
@@ -31,6 +32,8 @@ public class SimScope extends javax.swing.JFrame {
     private final String globalCoordinatorIPaddress;
     private final int globalCoordinatorPort;
     static MulticastStatusReceiver multicastReceiver;
+    /** tiles of the area of interest filtering, or null if disabled */
+    static StatusTiles tiles;
     private final String multicastAddress;
     private final int multicastPort;
     public static boolean keepUpdating = true; //used to control whether the simPanel should be updated or not
@@ -71,6 +74,7 @@ public class SimScope extends javax.swing.JFrame {
 	globalCoordinatorPort = Integer.parseInt(prop.getProperty("GlobalCoordinator.port","7575"));
         multicastAddress = prop.getProperty("Multicast.IP");        
 	multicastPort = Integer.parseInt(prop.getProperty("Multicast.port","7070"));
+        tiles = StatusTiles.fromProperties(prop);
         System.out.println(" done.");
         new SimPanelUpdater(pace).start();
     }
@@ -853,6 +857,9 @@ public class SimScope extends javax.swing.JFrame {
                     if(multicastReceiver == null) {
                         writeMessage("3. Starting to monitor the ongoing simulation...\n");
                         multicastReceiver = new MulticastStatusReceiver(multicastAddress, multicastPort);
+                        if(tiles != null) {
+                            multicastReceiver.setTiles(tiles, true);
+                        }
                         multicastReceiver.start();
                     }
                     else {